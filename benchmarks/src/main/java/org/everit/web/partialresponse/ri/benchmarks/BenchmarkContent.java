@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri.benchmarks;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.everit.templating.CompiledTemplate;
+import org.everit.web.partialresponse.ri.tests.servlet.IndexTemplates;
+
+/**
+ * Content and templates that are shared by the benchmarks.
+ */
+public final class BenchmarkContent {
+
+  private static final String FRAGMENT_TEMPLATE = "<div id=\"fragment_%d\""
+      + " data-eht-fragment=\"'fragment_%d'\" class=\"border\">"
+      + "<span data-eht-text=\"sample_msg\">sample_msg</span>"
+      + "<ul><li>fragment_%d_a</li><li>fragment_%d_b</li></ul></div>";
+
+  private static final String ROW_TEMPLATE =
+      "<tr data-key=\"%d\"><td>%d</td><td>árvíztűrő tükörfúrógép</td></tr>";
+
+  /**
+   * Compiles the source of a template in the same way as the IndexServlet of the tests project.
+   *
+   * @param template
+   *          The source of the template.
+   * @return The compiled template.
+   */
+  public static CompiledTemplate compileSource(final String template) {
+    return IndexTemplates.compileSource(template, BenchmarkContent.class.getClassLoader());
+  }
+
+  /**
+   * Compiles a template from the classpath in the same way as the IndexServlet of the tests
+   * project.
+   *
+   * @param templateName
+   *          The name of the template resource.
+   * @return The compiled template.
+   */
+  public static CompiledTemplate compileTemplate(final String templateName) {
+    String source = IndexTemplates.readResource(BenchmarkContent.class.getClassLoader(),
+        templateName);
+    if (source == null) {
+      throw new IllegalArgumentException("Resource not found: " + templateName);
+    }
+    return compileSource(source);
+  }
+
+  /**
+   * Creates the source of a page template with many small fragments. The fragments are named
+   * <code>fragment_0</code>, <code>fragment_1</code> and so on and they display the
+   * <code>sample_msg</code> variable.
+   *
+   * @param fragmentCount
+   *          The number of the fragments.
+   * @return The source of the template.
+   */
+  public static String fragmentPage(final int fragmentCount) {
+    StringBuilder sb = new StringBuilder("<html><body>");
+    for (int i = 0; i < fragmentCount; i++) {
+      sb.append(String.format(FRAGMENT_TEMPLATE, i, i, i, i));
+    }
+    return sb.append("</body></html>").toString();
+  }
+
+  /**
+   * Creates HTML table rows that are at least as long as the specified size.
+   *
+   * @param size
+   *          The minimum number of characters of the payload.
+   * @return The payload.
+   */
+  public static String payload(final int size) {
+    StringBuilder sb = new StringBuilder(size + ROW_TEMPLATE.length() * 2);
+    int i = 0;
+    while (sb.length() < size) {
+      sb.append(String.format(ROW_TEMPLATE, i, i));
+      i++;
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Creates a request that only answers the header methods. Every other method returns
+   * <code>null</code> or the default value of its primitive return type.
+   *
+   * @param headers
+   *          The headers of the request.
+   * @return The request.
+   */
+  public static HttpServletRequest request(final Map<String, String> headers) {
+    return (HttpServletRequest) Proxy.newProxyInstance(BenchmarkContent.class.getClassLoader(),
+        new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+          if ("getHeader".equals(method.getName())) {
+            return headers.get(args[0]);
+          }
+          Class<?> returnType = method.getReturnType();
+          if (returnType == boolean.class) {
+            return false;
+          }
+          if (returnType == int.class) {
+            return 0;
+          }
+          if (returnType == long.class) {
+            return 0L;
+          }
+          return null;
+        });
+  }
+
+  private BenchmarkContent() {
+  }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri.benchmarks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.everit.templating.CompiledTemplate;
+import org.everit.web.partialresponse.ri.OutputMode;
+import org.everit.web.partialresponse.ri.PartialResponseBuilder;
+import org.everit.web.partialresponse.ri.PartialResponseConfiguration;
+import org.everit.web.partialresponse.ri.ResponseCompression;
+import org.everit.web.partialresponse.ri.tests.servlet.IndexTemplates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the CPU cost of the compression levels on the AJAX actions of the IndexServlet in the
+ * tests project. The time is reported by JMH, the number of bytes sent to the client is reported
+ * as a secondary result by {@link ResponseSizeCounters}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+  private static final String UPDATE_STRING = "update_";
+
+  @Param({ "identity", "gzip", "deflate" })
+  public String acceptEncoding;
+
+  private PartialResponseConfiguration configuration;
+
+  @Param({ "1", "4", "6" })
+  public int level;
+
+  private CompiledTemplate pageTemplate;
+
+  private HttpServletRequest request;
+
+  private MockHttpServletResponse response;
+
+  private int recordSize(final ResponseSizeCounters counters) {
+    int size = response.finish();
+    counters.responseBytes = size;
+    return size;
+  }
+
+  /**
+   * Same as IndexServlet.doReplace1 without the fragment cache.
+   */
+  @Benchmark
+  public int replace1(final ResponseSizeCounters counters) {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(request, response,
+        configuration)) {
+      Map<String, Object> vars = new HashMap<>();
+      IndexTemplates.appendVars("replace", vars);
+      prb.replace("#div_table_2", writer -> pageTemplate.render(writer, vars, "div_table_2"));
+    }
+    return recordSize(counters);
+  }
+
+  /**
+   * Same as IndexServlet.doReplace2.
+   */
+  @Benchmark
+  public int replace2(final ResponseSizeCounters counters) {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(request, response,
+        configuration)) {
+      prb.replace("#new_content",
+          "<div id=\"new_content\">replace_new_content_with_hard_code_html</div>");
+
+      Map<String, Object> vars = new HashMap<>();
+      IndexTemplates.appendVars("replace", vars);
+
+      prb.replace("#main_div", writer -> pageTemplate.render(writer, vars, "main_div"));
+
+      IndexTemplates.appendVars(UPDATE_STRING + "_DIV_TABLE_2", vars);
+      prb.replace("#div_table_2", writer -> pageTemplate.render(writer, vars, "div_table_2"));
+
+      IndexTemplates.appendVars(UPDATE_STRING + "_DIV_TABLE_1", vars);
+      prb.replace("#div_table_1", writer -> pageTemplate.render(writer, vars, "div_table_1"));
+
+      IndexTemplates.appendVars(UPDATE_STRING + "_SUB_DIV_0", vars);
+      prb.replace("#sub_div_0", writer -> pageTemplate.render(writer, vars, "sub_div_0"));
+
+      IndexTemplates.appendVars(UPDATE_STRING + "_SUB_DIV_1", vars);
+      prb.replace("div:nth-child(3)",
+          writer -> pageTemplate.render(writer, vars, "sub_div_1"));
+    }
+    return recordSize(counters);
+  }
+
+  /**
+   * Same as IndexServlet.doResetToDefault without the fragment cache.
+   */
+  @Benchmark
+  public int resetToDefault(final ResponseSizeCounters counters) {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(request, response,
+        configuration)) {
+      Map<String, Object> vars = new HashMap<>();
+      IndexTemplates.appendVars("default", vars);
+      prb.replaceById(writer -> pageTemplate.render(writer, vars, "full_content"));
+    }
+    return recordSize(counters);
+  }
+
+  /**
+   * Compiles the template and creates the request, the response and the compression.
+   */
+  @Setup
+  public void setUp() {
+    pageTemplate = BenchmarkContent.compileTemplate(IndexTemplates.PAGE_RESOURCE);
+    request = BenchmarkContent.request(
+        Collections.singletonMap("Accept-Encoding", acceptEncoding));
+    response = new MockHttpServletResponse();
+    configuration = new PartialResponseConfiguration()
+        .outputMode(OutputMode.OUTPUT_STREAM)
+        .compression(new ResponseCompression(level, ResponseCompression.DEFAULT_THRESHOLD, 1));
+  }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri.benchmarks;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.everit.templating.CompiledTemplate;
+import org.everit.web.partialresponse.ri.OutputMode;
+import org.everit.web.partialresponse.ri.PartialResponseBuilder;
+import org.everit.web.partialresponse.ri.PartialResponseConfiguration;
+import org.everit.web.partialresponse.ri.tests.servlet.IndexTemplates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the sequential and the concurrent rendering of the fragments of
+ * IndexServlet.doReplace2. Every fragment waits for a simulated backend call before it is rendered,
+ * so with latency the sequential variant takes the sum of the calls and the concurrent variant
+ * takes the slowest one.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentRenderingBenchmark {
+
+  private static final String[][] FRAGMENTS = new String[][] {
+      { "#main_div", "main_div", "replace" },
+      { "#div_table_2", "div_table_2", "update__DIV_TABLE_2" },
+      { "#div_table_1", "div_table_1", "update__DIV_TABLE_1" },
+      { "#sub_div_0", "sub_div_0", "update__SUB_DIV_0" },
+      { "div:nth-child(3)", "sub_div_1", "update__SUB_DIV_1" } };
+
+  @Param({ "0", "1000" })
+  public long backendLatencyMicros;
+
+  private PartialResponseConfiguration configuration;
+
+  @Param({ "WRITER", "OUTPUT_STREAM" })
+  public OutputMode outputMode;
+
+  private CompiledTemplate pageTemplate;
+
+  private MockHttpServletResponse response;
+
+  private final Map<String, Map<String, Object>> varsByFragment = new HashMap<>();
+
+  /**
+   * Renders the fragments on the render executor of the builder.
+   */
+  @Benchmark
+  public int concurrent() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, configuration)) {
+      for (String[] fragment : FRAGMENTS) {
+        prb.replaceConcurrently(fragment[0], renderer(fragment[1]));
+      }
+    }
+    return response.finish();
+  }
+
+  private Consumer<PrintWriter> renderer(final String fragmentId) {
+    Map<String, Object> vars = varsByFragment.get(fragmentId);
+    return writer -> {
+      if (backendLatencyMicros > 0) {
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(backendLatencyMicros));
+      }
+      pageTemplate.render(writer, vars, fragmentId);
+    };
+  }
+
+  /**
+   * Renders the fragments one after another on the calling thread.
+   */
+  @Benchmark
+  public int sequential() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, configuration)) {
+      for (String[] fragment : FRAGMENTS) {
+        prb.replace(fragment[0], renderer(fragment[1]));
+      }
+    }
+    return response.finish();
+  }
+
+  /**
+   * Compiles the template and creates the variables of the fragments.
+   */
+  @Setup
+  public void setUp() {
+    pageTemplate = BenchmarkContent.compileTemplate(IndexTemplates.PAGE_RESOURCE);
+    response = new MockHttpServletResponse();
+    configuration = new PartialResponseConfiguration().outputMode(outputMode);
+    for (String[] fragment : FRAGMENTS) {
+      Map<String, Object> vars = new HashMap<>();
+      IndexTemplates.appendVars(fragment[2], vars);
+      varsByFragment.put(fragment[1], vars);
+    }
+  }
+
+}
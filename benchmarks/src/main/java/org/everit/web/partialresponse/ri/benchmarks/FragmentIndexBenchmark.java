@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri.benchmarks;
+
+import java.io.CharArrayWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.templating.CompiledTemplate;
+import org.everit.web.partialresponse.ri.TemplateFragmentIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares rendering a fragment of a page with hundreds of fragments by passing its name to the
+ * template of the whole page with rendering the template of the fragment that is looked up in a
+ * {@link TemplateFragmentIndex}. The rendered fragment is the last one of the page.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FragmentIndexBenchmark {
+
+  @Param({ "100", "500" })
+  public int fragmentCount;
+
+  private String fragmentId;
+
+  private TemplateFragmentIndex<CompiledTemplate> fragments;
+
+  private CompiledTemplate pageTemplate;
+
+  private final Map<String, Object> vars = new HashMap<>();
+
+  private final CharArrayWriter writer = new CharArrayWriter();
+
+  /**
+   * Renders the fragment with the template of the fragment.
+   *
+   * @return The number of the rendered characters.
+   */
+  @Benchmark
+  public int fragmentTemplate() {
+    writer.reset();
+    fragments.get(fragmentId).render(writer, vars);
+    return writer.size();
+  }
+
+  /**
+   * Renders the fragment with the template of the whole page.
+   *
+   * @return The number of the rendered characters.
+   */
+  @Benchmark
+  public int pageTemplate() {
+    writer.reset();
+    pageTemplate.render(writer, vars, fragmentId);
+    return writer.size();
+  }
+
+  /**
+   * Compiles the page template and its fragments.
+   */
+  @Setup
+  public void setUp() {
+    String source = BenchmarkContent.fragmentPage(fragmentCount);
+    pageTemplate = BenchmarkContent.compileSource(source);
+    fragments = new TemplateFragmentIndex<>(source, BenchmarkContent::compileSource);
+    fragmentId = "fragment_" + (fragmentCount - 1);
+    vars.put("sample_msg", "updated_sample_msg");
+  }
+
+}
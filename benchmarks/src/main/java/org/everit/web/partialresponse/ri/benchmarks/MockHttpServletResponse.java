@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * {@link HttpServletResponse} that collects the response body in memory. The instance, its writer
+ * and its output stream are reused between invocations like servlet containers do, so only the work
+ * of the partial response builder is measured.
+ */
+public class MockHttpServletResponse implements HttpServletResponse {
+
+  /**
+   * Output stream that writes to the in-memory body.
+   */
+  private class MockServletOutputStream extends ServletOutputStream {
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(final WriteListener writeListener) {
+      try {
+        writeListener.onWritePossible();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) {
+      body.write(b, off, len);
+    }
+
+    @Override
+    public void write(final int b) {
+      body.write(b);
+    }
+
+  }
+
+  private static final int INITIAL_BODY_SIZE = 64 * 1024;
+
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream(INITIAL_BODY_SIZE);
+
+  private String characterEncoding = StandardCharsets.ISO_8859_1.name();
+
+  private boolean committed;
+
+  private String contentType;
+
+  private final Map<String, String> headers = new LinkedHashMap<>();
+
+  private final MockServletOutputStream outputStream = new MockServletOutputStream();
+
+  private int status = SC_OK;
+
+  private PrintWriter writer;
+
+  @Override
+  public void addCookie(final Cookie cookie) {
+  }
+
+  @Override
+  public void addDateHeader(final String name, final long date) {
+    setDateHeader(name, date);
+  }
+
+  @Override
+  public void addHeader(final String name, final String value) {
+    setHeader(name, value);
+  }
+
+  @Override
+  public void addIntHeader(final String name, final int value) {
+    setIntHeader(name, value);
+  }
+
+  @Override
+  public boolean containsHeader(final String name) {
+    return headers.containsKey(name);
+  }
+
+  @Override
+  public String encodeRedirectUrl(final String url) {
+    return url;
+  }
+
+  @Override
+  public String encodeRedirectURL(final String url) {
+    return url;
+  }
+
+  @Override
+  public String encodeUrl(final String url) {
+    return url;
+  }
+
+  @Override
+  public String encodeURL(final String url) {
+    return url;
+  }
+
+  /**
+   * Flushes the writer of the response and marks the response as committed.
+   *
+   * @return The number of bytes that were written to the response since the last
+   *         {@link #reset()}.
+   */
+  public int finish() {
+    flushBuffer();
+    return body.size();
+  }
+
+  @Override
+  public void flushBuffer() {
+    if (writer != null) {
+      writer.flush();
+    }
+    committed = true;
+  }
+
+  @Override
+  public int getBufferSize() {
+    return INITIAL_BODY_SIZE;
+  }
+
+  /**
+   * The bytes that were written to the response since the last {@link #reset()}.
+   */
+  public byte[] getBody() {
+    return body.toByteArray();
+  }
+
+  @Override
+  public String getCharacterEncoding() {
+    return characterEncoding;
+  }
+
+  @Override
+  public String getContentType() {
+    return contentType;
+  }
+
+  @Override
+  public String getHeader(final String name) {
+    return headers.get(name);
+  }
+
+  @Override
+  public Collection<String> getHeaderNames() {
+    return new ArrayList<>(headers.keySet());
+  }
+
+  @Override
+  public Collection<String> getHeaders(final String name) {
+    String value = headers.get(name);
+    if (value == null) {
+      return Collections.emptyList();
+    }
+    return Collections.singletonList(value);
+  }
+
+  @Override
+  public Locale getLocale() {
+    return Locale.getDefault();
+  }
+
+  @Override
+  public ServletOutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  @Override
+  public int getStatus() {
+    return status;
+  }
+
+  @Override
+  public PrintWriter getWriter() {
+    if (writer == null) {
+      writer = new PrintWriter(new OutputStreamWriter(outputStream,
+          Charset.forName(characterEncoding)), false);
+    }
+    return writer;
+  }
+
+  @Override
+  public boolean isCommitted() {
+    return committed;
+  }
+
+  /**
+   * Clears the body, the headers and the status so the response can be used for the next
+   * invocation. The writer is kept.
+   */
+  @Override
+  public void reset() {
+    resetBuffer();
+    headers.clear();
+    status = SC_OK;
+    committed = false;
+  }
+
+  @Override
+  public void resetBuffer() {
+    if (writer != null) {
+      writer.flush();
+    }
+    body.reset();
+  }
+
+  @Override
+  public void sendError(final int sc) {
+    status = sc;
+  }
+
+  @Override
+  public void sendError(final int sc, final String msg) {
+    status = sc;
+  }
+
+  @Override
+  public void sendRedirect(final String location) {
+    status = SC_FOUND;
+    headers.put("Location", location);
+  }
+
+  @Override
+  public void setBufferSize(final int size) {
+  }
+
+  @Override
+  public void setCharacterEncoding(final String charset) {
+    if (writer == null) {
+      characterEncoding = charset;
+    }
+  }
+
+  @Override
+  public void setContentLength(final int len) {
+    setContentLengthLong(len);
+  }
+
+  @Override
+  public void setContentLengthLong(final long len) {
+    headers.put("Content-Length", String.valueOf(len));
+  }
+
+  @Override
+  public void setContentType(final String type) {
+    contentType = type;
+  }
+
+  @Override
+  public void setDateHeader(final String name, final long date) {
+    headers.put(name, String.valueOf(date));
+  }
+
+  @Override
+  public void setHeader(final String name, final String value) {
+    headers.put(name, value);
+  }
+
+  @Override
+  public void setIntHeader(final String name, final int value) {
+    headers.put(name, String.valueOf(value));
+  }
+
+  @Override
+  public void setLocale(final Locale loc) {
+  }
+
+  @Override
+  public void setStatus(final int sc) {
+    status = sc;
+  }
+
+  @Override
+  public void setStatus(final int sc, final String sm) {
+    status = sc;
+  }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri.benchmarks;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.everit.web.partialresponse.ri.OutputMode;
+import org.everit.web.partialresponse.ri.PartialResponseBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the serialization cost of the {@link PartialResponseBuilder} commands with string and
+ * {@link Consumer} content.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartialResponseBuilderBenchmark {
+
+  @Param({ "1", "10", "100" })
+  public int commandCount;
+
+  @Param({ "WRITER", "OUTPUT_STREAM", "BUFFERED" })
+  public OutputMode outputMode;
+
+  private String payload;
+
+  private Consumer<PrintWriter> payloadProvider;
+
+  @Param({ "64", "1024", "16384" })
+  public int payloadSize;
+
+  private MockHttpServletResponse response;
+
+  private String[] selectors;
+
+  @Benchmark
+  public int appendConsumer() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      for (int i = 0; i < commandCount; i++) {
+        prb.append(selectors[i], payloadProvider);
+      }
+    }
+    return response.finish();
+  }
+
+  @Benchmark
+  public int appendString() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      for (int i = 0; i < commandCount; i++) {
+        prb.append(selectors[i], payload);
+      }
+    }
+    return response.finish();
+  }
+
+  @Benchmark
+  public int prependConsumer() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      for (int i = 0; i < commandCount; i++) {
+        prb.prepend(selectors[i], payloadProvider);
+      }
+    }
+    return response.finish();
+  }
+
+  @Benchmark
+  public int prependString() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      for (int i = 0; i < commandCount; i++) {
+        prb.prepend(selectors[i], payload);
+      }
+    }
+    return response.finish();
+  }
+
+  @Benchmark
+  public int replaceByIdConsumer() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      for (int i = 0; i < commandCount; i++) {
+        prb.replaceById(payloadProvider);
+      }
+    }
+    return response.finish();
+  }
+
+  @Benchmark
+  public int replaceByIdString() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      for (int i = 0; i < commandCount; i++) {
+        prb.replaceById(payload);
+      }
+    }
+    return response.finish();
+  }
+
+  @Benchmark
+  public int replaceConsumer() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      for (int i = 0; i < commandCount; i++) {
+        prb.replace(selectors[i], payloadProvider);
+      }
+    }
+    return response.finish();
+  }
+
+  @Benchmark
+  public int replaceString() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      for (int i = 0; i < commandCount; i++) {
+        prb.replace(selectors[i], payload);
+      }
+    }
+    return response.finish();
+  }
+
+  /**
+   * Creates the payload, the selectors and the response that are reused by every invocation.
+   */
+  @Setup
+  public void setUp() {
+    payload = BenchmarkContent.payload(payloadSize);
+    String content = payload;
+    payloadProvider = (writer) -> writer.write(content);
+    selectors = new String[commandCount];
+    for (int i = 0; i < commandCount; i++) {
+      selectors[i] = "#div_table_" + i;
+    }
+    response = new MockHttpServletResponse();
+  }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.everit.templating.CompiledTemplate;
+import org.everit.web.partialresponse.ri.FragmentRenderCache;
+import org.everit.web.partialresponse.ri.OutputMode;
+import org.everit.web.partialresponse.ri.PartialResponseBuilder;
+import org.everit.web.partialresponse.ri.tests.servlet.IndexTemplates;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the <code>pageTemplate.render(writer, vars, fragmentId)</code> pattern of the
+ * IndexServlet in the tests project. Each benchmark mirrors one of the AJAX actions of the servlet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateFragmentBenchmark {
+
+  private static final int FRAGMENT_CACHE_MAX_BYTES = 1024 * 1024;
+
+  private static final int FRAGMENT_CACHE_MAX_ENTRIES = 16;
+
+  private static final String UPDATE_STRING = "update_";
+
+  @Param({ "WRITER", "OUTPUT_STREAM", "BUFFERED" })
+  public OutputMode outputMode;
+
+  private FragmentRenderCache fragmentCache;
+
+  private CompiledTemplate pageTemplate;
+
+  private MockHttpServletResponse response;
+
+  /**
+   * Same as IndexServlet.doReplace1.
+   */
+  @Benchmark
+  public int replace1() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      Map<String, Object> vars = new HashMap<>();
+      IndexTemplates.appendVars("replace", vars);
+      prb.replace("#div_table_2", writer -> pageTemplate.render(writer, vars, "div_table_2"));
+    }
+    return response.finish();
+  }
+
+  /**
+   * Same as IndexServlet.doReplace2.
+   */
+  @Benchmark
+  public int replace2() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      prb.replace("#new_content",
+          "<div id=\"new_content\">replace_new_content_with_hard_code_html</div>");
+
+      Map<String, Object> vars = new HashMap<>();
+      IndexTemplates.appendVars("replace", vars);
+
+      prb.replace("#main_div", writer -> pageTemplate.render(writer, vars, "main_div"));
+
+      IndexTemplates.appendVars(UPDATE_STRING + "_DIV_TABLE_2", vars);
+      prb.replace("#div_table_2", writer -> pageTemplate.render(writer, vars, "div_table_2"));
+
+      IndexTemplates.appendVars(UPDATE_STRING + "_DIV_TABLE_1", vars);
+      prb.replace("#div_table_1", writer -> pageTemplate.render(writer, vars, "div_table_1"));
+
+      IndexTemplates.appendVars(UPDATE_STRING + "_SUB_DIV_0", vars);
+      prb.replace("#sub_div_0", writer -> pageTemplate.render(writer, vars, "sub_div_0"));
+
+      IndexTemplates.appendVars(UPDATE_STRING + "_SUB_DIV_1", vars);
+      prb.replace("div:nth-child(3)",
+          writer -> pageTemplate.render(writer, vars, "sub_div_1"));
+    }
+    return response.finish();
+  }
+
+  /**
+   * Same as IndexServlet.doReplaceById2.
+   */
+  @Benchmark
+  public int replaceById2() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      prb.replaceById(
+          "<div id=\"new_content\">replace_by_id_new_content_with_hard_code_html</div>");
+
+      Map<String, Object> vars = new HashMap<>();
+      IndexTemplates.appendVars("replace_by_id", vars);
+
+      prb.replaceById(writer -> pageTemplate.render(writer, vars, "main_div"));
+
+      IndexTemplates.appendVars(UPDATE_STRING + "_DIV_TABLE_2", vars);
+      prb.replaceById(writer -> pageTemplate.render(writer, vars, "div_table_2"));
+
+      IndexTemplates.appendVars(UPDATE_STRING + "_DIV_TABLE_1", vars);
+      prb.replaceById(writer -> pageTemplate.render(writer, vars, "div_table_1"));
+
+      IndexTemplates.appendVars(UPDATE_STRING + "_SUB_DIV_0", vars);
+      prb.replaceById(writer -> pageTemplate.render(writer, vars, "sub_div_0"));
+
+      IndexTemplates.appendVars(UPDATE_STRING + "_SUB_DIV_1", vars);
+      prb.replaceById(writer -> pageTemplate.render(writer, vars, "sub_div_1"));
+    }
+    return response.finish();
+  }
+
+  /**
+   * Same as IndexServlet.doResetToDefault.
+   */
+  @Benchmark
+  public int resetToDefault() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      Map<String, Object> vars = new HashMap<>();
+      IndexTemplates.appendVars("default", vars);
+      prb.replaceById(writer -> pageTemplate.render(writer, vars, "full_content"));
+    }
+    return response.finish();
+  }
+
+  /**
+   * Same as {@link #resetToDefault()}, but the fragment comes from a {@link FragmentRenderCache}.
+   */
+  @Benchmark
+  public int resetToDefaultCached() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(response, outputMode)) {
+      Map<String, Object> vars = new HashMap<>();
+      IndexTemplates.appendVars("default", vars);
+      prb.replaceById(fragmentCache.get("full_content", "default",
+          writer -> pageTemplate.render(writer, vars, "full_content")));
+    }
+    return response.finish();
+  }
+
+  /**
+   * Compiles the template and creates the response and the fragment cache.
+   */
+  @Setup
+  public void setUp() {
+    fragmentCache = new FragmentRenderCache(FRAGMENT_CACHE_MAX_ENTRIES, FRAGMENT_CACHE_MAX_BYTES,
+        1, TimeUnit.HOURS);
+    pageTemplate = BenchmarkContent.compileTemplate(IndexTemplates.PAGE_RESOURCE);
+    response = new MockHttpServletResponse();
+  }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.everit.web.partialresponse.ri.OutputMode;
+import org.everit.web.partialresponse.ri.PartialResponseBuilder;
+import org.everit.web.partialresponse.ri.PartialResponseConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the HTML envelope with the binary format of the partial response. The write benchmark
+ * measures the builder. The frame benchmark measures how fast the selectors and the payloads of a
+ * written response are found, which is the part of the client side processing that the binary
+ * format replaces. For the HTML envelope it only looks for the markup of the replace commands, so
+ * the result is a lower bound of parsing the envelope. The parse time in browsers is measured by
+ * selector_benchmark.html in the tests project. The response sizes are reported as a secondary
+ * result by {@link ResponseSizeCounters}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+
+  private static final String BINARY = "binary";
+
+  private static final String BINARY_CONTENT_TYPE = "application/x-partial-response";
+
+  private static final int BINARY_HEADER_LENGTH = 4;
+
+  private static final String CONTENT_START = "'>";
+
+  private static final String REPLACE_END = "</partial-replace>";
+
+  private static final String REPLACE_START = "<partial-replace selector='";
+
+  private static final int VARINT_MASK = 0x7f;
+
+  private byte[] body;
+
+  @Param({ "10", "1000" })
+  public int commandCount;
+
+  private PartialResponseConfiguration configuration;
+
+  @Param({ "html", BINARY })
+  public String format;
+
+  private String payload;
+
+  @Param({ "100", "2000" })
+  public int payloadSize;
+
+  private int position;
+
+  private HttpServletRequest request;
+
+  private MockHttpServletResponse response;
+
+  /**
+   * Finds the selectors and the payloads of the written response.
+   *
+   * @param counters
+   *          The counters that receive the size of the response.
+   * @return The number of characters of the selectors and the payloads.
+   */
+  @Benchmark
+  public int frame(final ResponseSizeCounters counters) {
+    counters.responseBytes = body.length;
+    if (BINARY.equals(format)) {
+      return frameBinary();
+    }
+    return frameHtml();
+  }
+
+  private int frameBinary() {
+    int length = 0;
+    position = BINARY_HEADER_LENGTH;
+    while (position < body.length) {
+      byte opcode = body[position++];
+      String selector = readString();
+      String attribute = readString();
+      String content = readString();
+      if (opcode != 0) {
+        length += selector.length() + attribute.length() + content.length();
+      }
+    }
+    return length;
+  }
+
+  private int frameHtml() {
+    String text = new String(body, StandardCharsets.UTF_8);
+    int length = 0;
+    int commandStart = text.indexOf(REPLACE_START);
+    while (commandStart >= 0) {
+      int selectorStart = commandStart + REPLACE_START.length();
+      int selectorEnd = text.indexOf(CONTENT_START, selectorStart);
+      String selector = text.substring(selectorStart, selectorEnd);
+      int contentStart = selectorEnd + CONTENT_START.length();
+      int contentEnd = text.indexOf(REPLACE_END, contentStart);
+      String content = text.substring(contentStart, contentEnd);
+      length += selector.length() + content.length();
+      commandStart = text.indexOf(REPLACE_START, contentEnd + REPLACE_END.length());
+    }
+    return length;
+  }
+
+  private String readString() {
+    int length = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = body[position++];
+      length |= (b & VARINT_MASK) << shift;
+      shift += 7;
+    } while ((b & ~VARINT_MASK) != 0);
+    String value = new String(body, position, length, StandardCharsets.UTF_8);
+    position += length;
+    return value;
+  }
+
+  /**
+   * Creates the request that accepts the format and writes the response that the frame benchmark
+   * decodes.
+   */
+  @Setup
+  public void setUp() {
+    String accept = BINARY.equals(format) ? BINARY_CONTENT_TYPE : "text/html";
+    request = BenchmarkContent.request(Collections.singletonMap("Accept", accept));
+    response = new MockHttpServletResponse();
+    configuration = new PartialResponseConfiguration()
+        .outputMode(OutputMode.OUTPUT_STREAM)
+        .binaryFormat(true);
+    payload = BenchmarkContent.payload(payloadSize);
+    writeResponse();
+    body = response.getBody();
+  }
+
+  /**
+   * Writes a replace command for every row.
+   *
+   * @param counters
+   *          The counters that receive the size of the response.
+   * @return The number of bytes of the response.
+   */
+  @Benchmark
+  public int write(final ResponseSizeCounters counters) {
+    int size = writeResponse();
+    counters.responseBytes = size;
+    return size;
+  }
+
+  private int writeResponse() {
+    response.reset();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(request, response,
+        configuration)) {
+      for (int i = 0; i < commandCount; i++) {
+        prb.replace("#row_" + i, payload);
+      }
+    }
+    return response.finish();
+  }
+
+}
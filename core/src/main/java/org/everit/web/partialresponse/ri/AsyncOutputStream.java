@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Queues the written bytes and writes them to the non-blocking output stream of the response only
+ * when it is ready, so the thread that builds the partial response never waits for the client. The
+ * asynchronous processing of the request is completed when the stream is closed and every queued
+ * chunk has been written.
+ */
+final class AsyncOutputStream extends OutputStream implements WriteListener {
+
+  /**
+   * Fails the completion if the container times out or fails the asynchronous processing.
+   */
+  private final class CompletionListener implements AsyncListener {
+
+    @Override
+    public void onComplete(final AsyncEvent event) {
+      synchronized (AsyncOutputStream.this) {
+        if (!completion.isDone()) {
+          fail(new IOException("Asynchronous processing completed before the partial response"
+              + " was written"));
+        }
+      }
+    }
+
+    @Override
+    public void onError(final AsyncEvent event) {
+      AsyncOutputStream.this.onError(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(final AsyncEvent event) {
+      // Nothing to do.
+    }
+
+    @Override
+    public void onTimeout(final AsyncEvent event) {
+      AsyncOutputStream.this.onError(
+          new TimeoutException("Asynchronous processing timed out before the partial response"
+              + " was written"));
+    }
+
+  }
+
+  private final AsyncContext asyncContext;
+
+  private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+
+  private boolean closed;
+
+  private final CompletableFuture<Void> completion;
+
+  private boolean flushRequested;
+
+  private final ServletOutputStream target;
+
+  /**
+   * Constructor that registers itself as the write listener of the target.
+   *
+   * @param target
+   *          The output stream of the response.
+   * @param asyncContext
+   *          The context of the started asynchronous processing.
+   * @param completion
+   *          Completed when the whole partial response is written to the target or completed
+   *          exceptionally if writing fails.
+   */
+  AsyncOutputStream(final ServletOutputStream target, final AsyncContext asyncContext,
+      final CompletableFuture<Void> completion) {
+    this.target = target;
+    this.asyncContext = asyncContext;
+    this.completion = completion;
+    asyncContext.addListener(new CompletionListener());
+    target.setWriteListener(this);
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    drain();
+  }
+
+  /**
+   * Writes the queued chunks while the target is ready. If the target is not ready, the container
+   * calls {@link #onWritePossible()} later.
+   */
+  private void drain() {
+    if (completion.isDone()) {
+      return;
+    }
+    try {
+      while (target.isReady()) {
+        byte[] chunk = chunks.poll();
+        if (chunk != null) {
+          target.write(chunk);
+        } else if (flushRequested) {
+          flushRequested = false;
+          target.flush();
+        } else {
+          if (closed) {
+            completion.complete(null);
+            asyncContext.complete();
+          }
+          return;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  private void fail(final Throwable cause) {
+    chunks.clear();
+    if (completion.completeExceptionally(cause)) {
+      asyncContext.complete();
+    }
+  }
+
+  @Override
+  public synchronized void flush() {
+    flushRequested = true;
+    drain();
+  }
+
+  @Override
+  public synchronized void onError(final Throwable t) {
+    fail(t);
+  }
+
+  @Override
+  public synchronized void onWritePossible() {
+    drain();
+  }
+
+  @Override
+  public synchronized void write(final byte[] b, final int off, final int len) {
+    if (completion.isDone() || len == 0) {
+      return;
+    }
+    chunks.add(Arrays.copyOfRange(b, off, off + len));
+    drain();
+  }
+
+  @Override
+  public void write(final int b) {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * {@link ResponseOutput} that writes the commands in a length-prefixed binary format instead of
+ * the HTML envelope, so the client finds the command boundaries without parsing or scanning the
+ * response. The format starts with the bytes of {@link #FORMAT_HEADER} followed by frames:
+ *
+ * <pre>
+ * opcode (1 byte)
+ * selector length (varint), selector (UTF-8)
+ * attribute length (varint), attribute (UTF-8)
+ * payload length (varint), payload (UTF-8)
+ * </pre>
+ *
+ * <p>
+ * The lengths are unsigned LEB128 numbers. The opcodes are defined by {@link CommandType}. The
+ * content of a command is collected in memory until the command ends, because its length has to
+ * be written before it. The last frame has the opcode {@link #END_OPCODE} and the number of the
+ * commands as its attribute if the number is written.
+ */
+final class BinaryResponseOutput extends ResponseOutput {
+
+  /**
+   * The media type that the client sends in the <code>Accept</code> header if it can process the
+   * binary format.
+   */
+  static final String CONTENT_TYPE = "application/x-partial-response";
+
+  static final byte END_OPCODE = 0;
+
+  /**
+   * The magic bytes and the version of the format.
+   */
+  static final byte[] FORMAT_HEADER = { 'E', 'P', 'R', 1 };
+
+  private static final int INITIAL_CAPACITY = 8192;
+
+  private static final int MAX_VARINT_LENGTH = 5;
+
+  private static final int VARINT_CONTINUATION = 0x80;
+
+  private static final int VARINT_MASK = 0x7f;
+
+  private static byte[] toBytes(final String value) {
+    return (value != null) ? value.getBytes(StandardCharsets.UTF_8) : new byte[0];
+  }
+
+  private static int writeBytes(final byte[] target, final int offset, final byte[] bytes) {
+    int position = writeVarint(target, offset, bytes.length);
+    System.arraycopy(bytes, 0, target, position, bytes.length);
+    return position + bytes.length;
+  }
+
+  private static int writeVarint(final byte[] target, final int offset, final int value) {
+    int position = offset;
+    int remaining = value;
+    while ((remaining & ~VARINT_MASK) != 0) {
+      target[position++] = (byte) ((remaining & VARINT_MASK) | VARINT_CONTINUATION);
+      remaining >>>= 7;
+    }
+    target[position++] = (byte) remaining;
+    return position;
+  }
+
+  private String attributeValue;
+
+  private final Utf8Buffer buffer = new Utf8Buffer(INITIAL_CAPACITY, null);
+
+  private String selector;
+
+  private final ResponseOutput target;
+
+  private final PrintWriter writer = new PrintWriter(buffer.writer(), false);
+
+  /**
+   * Constructor.
+   *
+   * @param target
+   *          The output where the frames are written.
+   */
+  BinaryResponseOutput(final ResponseOutput target) {
+    this.target = target;
+  }
+
+  @Override
+  void close() {
+    target.close();
+  }
+
+  @Override
+  boolean discard() {
+    buffer.reset();
+    return target.discard();
+  }
+
+  @Override
+  void endCommand(final CommandType type) {
+    writeFrame(type.opcode, selector, attributeValue);
+  }
+
+  @Override
+  void endResponse(final int commandCount) {
+    writeFrame(END_OPCODE, null, (commandCount >= 0) ? String.valueOf(commandCount) : null);
+  }
+
+  @Override
+  void flush() {
+    target.flush();
+  }
+
+  @Override
+  long size() {
+    return target.size() + buffer.size();
+  }
+
+  @Override
+  void startCommand(final CommandType type, final String selector, final String attributeValue) {
+    this.selector = selector;
+    this.attributeValue = attributeValue;
+  }
+
+  @Override
+  void startResponse() {
+    target.write(FORMAT_HEADER);
+  }
+
+  @Override
+  void write(final byte[] content) {
+    buffer.write(content);
+  }
+
+  @Override
+  void write(final ByteBuffer content) {
+    buffer.write(content);
+  }
+
+  @Override
+  void write(final Markup markup) {
+    buffer.write(markup.bytes);
+  }
+
+  @Override
+  void write(final String text) {
+    buffer.write(text, 0, text.length());
+  }
+
+  private void writeFrame(final byte opcode, final String frameSelector,
+      final String frameAttribute) {
+    byte[] selectorBytes = toBytes(frameSelector);
+    byte[] attributeBytes = toBytes(frameAttribute);
+    byte[] header = new byte[1 + 3 * MAX_VARINT_LENGTH + selectorBytes.length
+        + attributeBytes.length];
+    header[0] = opcode;
+    int length = writeBytes(header, 1, selectorBytes);
+    length = writeBytes(header, length, attributeBytes);
+    length = writeVarint(header, length, buffer.size());
+    target.write(Arrays.copyOf(header, length));
+    if (buffer.size() > 0) {
+      target.write(buffer.toByteArray());
+      buffer.reset();
+    }
+    selector = null;
+    attributeValue = null;
+  }
+
+  @Override
+  PrintWriter writer() {
+    return writer;
+  }
+
+}
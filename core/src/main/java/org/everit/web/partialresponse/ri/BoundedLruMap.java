@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Thread-safe map that evicts the least recently used values if the number of values or their
+ * total size exceeds the limit. The size of a value is supplied by the caller when the value is
+ * stored. The map is serializable if its keys and values are.
+ *
+ * @param <K>
+ *          The type of the keys.
+ * @param <V>
+ *          The type of the values.
+ */
+final class BoundedLruMap<K, V> implements Serializable {
+
+  /**
+   * A stored value with its size.
+   */
+  private static final class Node<V> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final long size;
+
+    final V value;
+
+    Node(final V value, final long size) {
+      this.value = value;
+      this.size = size;
+    }
+
+  }
+
+  private static final long serialVersionUID = 1L;
+
+  private long byteSize;
+
+  private final LinkedHashMap<K, Node<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final long maxBytes;
+
+  private final int maxEntries;
+
+  /**
+   * Constructor.
+   *
+   * @param maxEntries
+   *          The maximum number of values.
+   * @param maxBytes
+   *          The maximum total size of the values.
+   */
+  BoundedLruMap(final int maxEntries, final long maxBytes) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("Maximum number of entries must be positive: "
+          + maxEntries);
+    }
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("Maximum size must be positive: " + maxBytes);
+    }
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * The total size of the stored values.
+   */
+  long byteSize() {
+    lock.lock();
+    try {
+      return byteSize;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes every value.
+   */
+  void clear() {
+    lock.lock();
+    try {
+      entries.clear();
+      byteSize = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the value of a key and marks it as the most recently used one.
+   *
+   * @param key
+   *          The key.
+   * @return The value or <code>null</code> if the key has no value.
+   */
+  V get(final K key) {
+    return get(key, (value) -> true);
+  }
+
+  /**
+   * Returns the value of a key if it is still valid. A value that is not valid any more (e.g.
+   * expired) is removed.
+   *
+   * @param key
+   *          The key.
+   * @param valid
+   *          Decides whether the stored value can be returned.
+   * @return The value or <code>null</code> if the key has no valid value.
+   */
+  V get(final K key, final Predicate<? super V> valid) {
+    lock.lock();
+    try {
+      Node<V> node = entries.get(key);
+      if (node == null) {
+        return null;
+      }
+      if (valid.test(node.value)) {
+        return node.value;
+      }
+      removeNode(key);
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stores the value of a key and evicts the least recently used values if the limits are
+   * exceeded. The previous value of the key is removed even if the new one is not stored, because
+   * it is larger than the size limit.
+   *
+   * @param key
+   *          The key.
+   * @param value
+   *          The value.
+   * @param size
+   *          The size of the value.
+   * @return <code>true</code> if the value was stored.
+   */
+  boolean put(final K key, final V value, final long size) {
+    lock.lock();
+    try {
+      removeNode(key);
+      if (size > maxBytes) {
+        return false;
+      }
+      entries.put(key, new Node<>(value, size));
+      byteSize += size;
+      Iterator<Node<V>> iterator = entries.values().iterator();
+      while (((entries.size() > maxEntries) || (byteSize > maxBytes)) && iterator.hasNext()) {
+        byteSize -= iterator.next().size;
+        iterator.remove();
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes the value of a key.
+   *
+   * @param key
+   *          The key.
+   */
+  void remove(final K key) {
+    lock.lock();
+    try {
+      removeNode(key);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void removeNode(final K key) {
+    Node<V> removed = entries.remove(key);
+    if (removed != null) {
+      byteSize -= removed.size;
+    }
+  }
+
+  /**
+   * The number of stored values.
+   */
+  int size() {
+    lock.lock();
+    try {
+      return entries.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
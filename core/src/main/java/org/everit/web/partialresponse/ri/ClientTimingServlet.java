@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that collects the measurements of partialresponse.js (see <code>epr_timing</code> and
+ * <code>epr_timing_endpoint</code>): how long the browsers parse the partial responses of an
+ * action and how long they apply the commands of a selector. The durations are collected into
+ * {@link Histogram}s in microseconds. The number of the histograms is limited, so clients cannot
+ * make the servlet allocate memory without bounds; the measurements beyond the limit are dropped.
+ *
+ * <p>
+ * Every batch is posted as form parameters. The n<sup>th</sup> value of the <code>action</code>,
+ * <code>measure</code>, <code>selector</code> and <code>durations</code> parameters belong
+ * together, where <code>durations</code> is a comma separated list of microseconds.
+ */
+public class ClientTimingServlet extends HttpServlet {
+
+  /**
+   * The action and the selector of a histogram. The selector is <code>null</code> for the parsing.
+   */
+  private static final class Key {
+
+    final String action;
+
+    final String selector;
+
+    Key(final String action, final String selector) {
+      this.action = action;
+      this.selector = selector;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return action.equals(other.action) && Objects.equals(selector, other.selector);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(action, selector);
+    }
+
+  }
+
+  /**
+   * The default maximum number of the histograms.
+   */
+  public static final int DEFAULT_MAX_HISTOGRAMS = 1024;
+
+  /**
+   * The name of the measurement of applying a command.
+   */
+  public static final String MEASURE_APPLY = "apply";
+
+  /**
+   * The name of the measurement of parsing a partial response.
+   */
+  public static final String MEASURE_PARSE = "parse";
+
+  private static final String PARAM_ACTION = "action";
+
+  private static final String PARAM_DURATIONS = "durations";
+
+  private static final String PARAM_MEASURE = "measure";
+
+  private static final String PARAM_SELECTOR = "selector";
+
+  private static final long serialVersionUID = 1L;
+
+  private final transient ConcurrentMap<Key, Histogram> histograms = new ConcurrentHashMap<>();
+
+  private final int maxHistograms;
+
+  /**
+   * Constructor that keeps at most {@value #DEFAULT_MAX_HISTOGRAMS} histograms.
+   */
+  public ClientTimingServlet() {
+    this(DEFAULT_MAX_HISTOGRAMS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxHistograms
+   *          The maximum number of the histograms that are kept.
+   * @throws IllegalArgumentException
+   *           if maxHistograms is negative.
+   */
+  public ClientTimingServlet(final int maxHistograms) {
+    if (maxHistograms < 0) {
+      throw new IllegalArgumentException("Max histograms cannot be negative!");
+    }
+    this.maxHistograms = maxHistograms;
+  }
+
+  private static String[] parameterValues(final HttpServletRequest request, final String name) {
+    String[] values = request.getParameterValues(name);
+    return (values != null) ? values : new String[0];
+  }
+
+  private static long[] parseDurations(final String durations) {
+    if (durations.isEmpty()) {
+      return new long[0];
+    }
+    String[] parts = durations.split(",");
+    long[] result = new long[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      result[i] = Long.parseLong(parts[i].trim());
+    }
+    return result;
+  }
+
+  /**
+   * Records the posted measurements. The response is 400 Bad Request if the parameters are
+   * malformed; nothing is recorded in that case.
+   */
+  @Override
+  protected void doPost(final HttpServletRequest req, final HttpServletResponse resp)
+      throws IOException {
+    String[] actions = parameterValues(req, PARAM_ACTION);
+    String[] measures = parameterValues(req, PARAM_MEASURE);
+    String[] selectors = parameterValues(req, PARAM_SELECTOR);
+    String[] durations = parameterValues(req, PARAM_DURATIONS);
+    int length = actions.length;
+    if (measures.length != length || selectors.length != length || durations.length != length) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Mismatching timing parameters");
+      return;
+    }
+
+    Key[] keys = new Key[length];
+    long[][] values = new long[length][];
+    try {
+      for (int i = 0; i < length; i++) {
+        keys[i] = key(actions[i], measures[i], selectors[i]);
+        values[i] = parseDurations(durations[i]);
+      }
+    } catch (IllegalArgumentException e) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+      return;
+    }
+
+    for (int i = 0; i < length; i++) {
+      Histogram histogram = histogram(keys[i]);
+      if (histogram != null) {
+        for (long value : values[i]) {
+          histogram.record(value);
+        }
+      }
+    }
+    resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  /**
+   * The actions that have measurements.
+   *
+   * @return The names of the actions.
+   */
+  public Set<String> getActions() {
+    Set<String> result = new TreeSet<>();
+    for (Key key : histograms.keySet()) {
+      result.add(key.action);
+    }
+    return Collections.unmodifiableSet(result);
+  }
+
+  /**
+   * The time of applying the commands of a selector in the partial responses of an action.
+   *
+   * @param action
+   *          The name of the action or an empty string if the client did not specify it.
+   * @param selector
+   *          The selector of the commands or the name of the commands without selector (e.g.
+   *          <code>partial-replace</code> for replacing by id or <code>partial-fill</code> for the
+   *          fills of every deferred fragment).
+   * @return The histogram in microseconds or <code>null</code> if there is no measurement.
+   */
+  public Histogram getApplyTimes(final String action, final String selector) {
+    return histograms.get(new Key(action, Objects.requireNonNull(selector,
+        "Selector cannot be null!")));
+  }
+
+  /**
+   * The time of parsing the partial responses of an action.
+   *
+   * @param action
+   *          The name of the action or an empty string if the client did not specify it.
+   * @return The histogram in microseconds or <code>null</code> if there is no measurement.
+   */
+  public Histogram getParseTimes(final String action) {
+    return histograms.get(new Key(action, null));
+  }
+
+  /**
+   * The selectors that have apply time measurements in the partial responses of an action.
+   *
+   * @param action
+   *          The name of the action.
+   * @return The selectors.
+   */
+  public Set<String> getSelectors(final String action) {
+    Set<String> result = new TreeSet<>();
+    for (Key key : histograms.keySet()) {
+      if (key.action.equals(action) && key.selector != null) {
+        result.add(key.selector);
+      }
+    }
+    return Collections.unmodifiableSet(result);
+  }
+
+  private Histogram histogram(final Key key) {
+    Histogram histogram = histograms.get(key);
+    if (histogram == null && histograms.size() < maxHistograms) {
+      histogram = histograms.computeIfAbsent(key, k -> new Histogram());
+    }
+    return histogram;
+  }
+
+  private Key key(final String action, final String measure, final String selector) {
+    if (MEASURE_PARSE.equals(measure)) {
+      return new Key(action, null);
+    } else if (MEASURE_APPLY.equals(measure)) {
+      return new Key(action, selector);
+    }
+    throw new IllegalArgumentException("Unknown measure: " + measure);
+  }
+
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link ResponseOutput} that keeps the commands in memory until the builder is closed and then
+ * writes them to the target without the redundant ones. A command is dropped if a later command
+ * replaces the same target, because the replaced element takes the result of the earlier command
+ * with itself. The consecutive appends and prepends of the same selector are merged into one
+ * command.
+ */
+final class CoalescingResponseOutput extends ResponseOutput {
+
+  /**
+   * A command that was written to the output.
+   */
+  private static final class Command {
+
+    final byte[] bytes;
+
+    /**
+     * The index where the content of the command starts, right after the start tag.
+     */
+    final int contentStart;
+
+    final String key;
+
+    final CommandType type;
+
+    Command(final CommandType type, final String key, final byte[] bytes,
+        final int contentStart) {
+      this.type = type;
+      this.key = key;
+      this.bytes = bytes;
+      this.contentStart = contentStart;
+    }
+
+    /**
+     * The index where the end tag of the command starts.
+     */
+    int contentEnd() {
+      int i = bytes.length - 1;
+      while (bytes[i] != '<') {
+        i--;
+      }
+      return i;
+    }
+
+  }
+
+  private static final int INITIAL_CAPACITY = 8192;
+
+  /**
+   * The key that identifies the target of the command or <code>null</code> if a later replace of
+   * the same target does not make the command redundant. The placeholders of the deferred
+   * fragments are kept, because their fill commands would not find them otherwise.
+   */
+  private static String targetKey(final CommandType type, final String selector) {
+    switch (type) {
+      case APPEND:
+      case PATCH:
+      case PATCH_LIST:
+      case PREPEND:
+      case REPLACE:
+        return selector;
+      case REPLACE_BY_ID_VERSIONED:
+        return '#' + selector;
+      default:
+        return null;
+    }
+  }
+
+  private final Utf8Buffer buffer = new Utf8Buffer(INITIAL_CAPACITY, null);
+
+  private final List<Command> commands = new ArrayList<>();
+
+  private int currentContentStart;
+
+  private String currentKey;
+
+  private CommandType currentType;
+
+  /**
+   * The size of the recorded commands that are not written to the target yet.
+   */
+  private long recordedSize;
+
+  private long savedByteCount;
+
+  private final ResponseOutput target;
+
+  private final PrintWriter writer = new PrintWriter(buffer.writer(), false);
+
+  /**
+   * Constructor.
+   *
+   * @param target
+   *          The output where the coalesced commands are written.
+   */
+  CoalescingResponseOutput(final ResponseOutput target) {
+    this.target = target;
+  }
+
+  @Override
+  void close() {
+    target.close();
+  }
+
+  @Override
+  boolean discard() {
+    commands.clear();
+    buffer.reset();
+    recordedSize = 0;
+    return target.discard();
+  }
+
+  @Override
+  void endCommand(final CommandType type) {
+    super.endCommand(type);
+    commands.add(new Command(currentType, currentKey, buffer.toByteArray(), currentContentStart));
+    recordedSize += buffer.size();
+    buffer.reset();
+    currentType = null;
+    currentKey = null;
+  }
+
+  /**
+   * Writes the recorded commands to the target without the redundant ones and ends the response
+   * with the number of the written commands.
+   */
+  @Override
+  void endResponse(final int commandCount) {
+    int writtenCount = writeCommands();
+    recordedSize = 0;
+    target.endResponse((commandCount >= 0) ? writtenCount : -1);
+  }
+
+  @Override
+  void flush() {
+    // The commands are kept until the builder is closed.
+  }
+
+  private int mergeableCount(final List<Command> remaining, final int from) {
+    Command first = remaining.get(from);
+    if (first.type != CommandType.APPEND && first.type != CommandType.PREPEND) {
+      return 1;
+    }
+    int to = from + 1;
+    while (to < remaining.size() && remaining.get(to).type == first.type
+        && first.key.equals(remaining.get(to).key)) {
+      to++;
+    }
+    return to - from;
+  }
+
+  /**
+   * Merges the appends or the prepends of the same selector into one command. The contents of the
+   * prepends are reversed, so the merged content is placed in the same order as the separate
+   * contents would be.
+   */
+  private byte[] merge(final List<Command> run) {
+    Command first = run.get(0);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(first.bytes.length * run.size());
+    out.write(first.bytes, 0, first.contentStart);
+    List<Command> ordered = run;
+    if (first.type == CommandType.PREPEND) {
+      ordered = new ArrayList<>(run);
+      Collections.reverse(ordered);
+    }
+    for (Command command : ordered) {
+      out.write(command.bytes, command.contentStart,
+          command.contentEnd() - command.contentStart);
+    }
+    int contentEnd = first.contentEnd();
+    out.write(first.bytes, contentEnd, first.bytes.length - contentEnd);
+    return out.toByteArray();
+  }
+
+  /**
+   * Collects the commands that are not superseded by a later replace of the same target.
+   */
+  private List<Command> removeSuperseded() {
+    List<Command> remaining = new ArrayList<>(commands.size());
+    Set<String> replacedKeys = new HashSet<>();
+    for (int i = commands.size() - 1; i >= 0; i--) {
+      Command command = commands.get(i);
+      if (command.key == null) {
+        remaining.add(command);
+      } else if (replacedKeys.contains(command.key)) {
+        savedByteCount += command.bytes.length;
+      } else {
+        remaining.add(command);
+        if (command.type == CommandType.REPLACE
+            || command.type == CommandType.REPLACE_BY_ID_VERSIONED) {
+          replacedKeys.add(command.key);
+        }
+      }
+    }
+    Collections.reverse(remaining);
+    return remaining;
+  }
+
+  /**
+   * The number of bytes that were not written to the target, because the commands were dropped or
+   * merged.
+   */
+  long savedByteCount() {
+    return savedByteCount;
+  }
+
+  @Override
+  long size() {
+    return target.size() + recordedSize + buffer.size();
+  }
+
+  /**
+   * Starts recording a command. Everything that is written until
+   * {@link #endCommand(CommandType)} belongs to the command. The position after the start tag is
+   * recorded, so the content can be found without parsing the selector.
+   */
+  @Override
+  void startCommand(final CommandType type, final String selector, final String attributeValue) {
+    currentType = type;
+    currentKey = targetKey(type, selector);
+    super.startCommand(type, selector, attributeValue);
+    currentContentStart = buffer.size();
+  }
+
+  @Override
+  void startResponse() {
+    target.startResponse();
+  }
+
+  @Override
+  void write(final byte[] content) {
+    if (currentType != null) {
+      buffer.write(content);
+    } else {
+      target.write(content);
+    }
+  }
+
+  @Override
+  void write(final ByteBuffer content) {
+    if (currentType != null) {
+      buffer.write(content);
+    } else {
+      target.write(content);
+    }
+  }
+
+  @Override
+  void write(final Markup markup) {
+    if (currentType != null) {
+      buffer.write(markup.bytes);
+    } else {
+      target.write(markup);
+    }
+  }
+
+  @Override
+  void write(final String text) {
+    if (currentType != null) {
+      buffer.write(text, 0, text.length());
+    } else {
+      target.write(text);
+    }
+  }
+
+  /**
+   * Writes the recorded commands to the target without the redundant ones.
+   *
+   * @return The number of the written commands.
+   */
+  private int writeCommands() {
+    List<Command> remaining = removeSuperseded();
+    int writtenCount = 0;
+    int i = 0;
+    while (i < remaining.size()) {
+      int count = mergeableCount(remaining, i);
+      if (count == 1) {
+        target.write(remaining.get(i).bytes);
+      } else {
+        List<Command> run = remaining.subList(i, i + count);
+        byte[] merged = merge(run);
+        for (Command command : run) {
+          savedByteCount += command.bytes.length;
+        }
+        savedByteCount -= merged.length;
+        target.write(merged);
+      }
+      writtenCount++;
+      i += count;
+    }
+    commands.clear();
+    return writtenCount;
+  }
+
+  @Override
+  PrintWriter writer() {
+    return writer;
+  }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+/**
+ * The commands of the partial response with their markup in the HTML envelope, their opcode in
+ * the binary format (see {@link BinaryResponseOutput}) and their names in the JSON format (see
+ * {@link JsonResponseOutput}).
+ */
+enum CommandType {
+
+  APPEND(4, "<partial-append selector='", null, "</partial-append>",
+      "append", "selector", null),
+
+  DEFER(7, "<partial-defer selector='", "' slot='", "</partial-defer>",
+      "defer", "selector", "slot"),
+
+  /**
+   * The selector of the command is the slot of the deferred fragment.
+   */
+  FILL(8, "<partial-fill slot='", null, "</partial-fill>",
+      "fill", "slot", null),
+
+  /**
+   * The attribute holds the version of the fragment that the client must hold and its version after
+   * the patch, separated by a space. The content is the operations of {@link MirrorDiff}.
+   */
+  PATCH(9, "<partial-patch selector='", "' versions='", "</partial-patch>",
+      "patch", "selector", "versions"),
+
+  PATCH_LIST(6, "<partial-patch-list selector='", "' key='", "</partial-patch-list>",
+      "patchList", "selector", "key"),
+
+  PREPEND(5, "<partial-prepend selector='", null, "</partial-prepend>",
+      "prepend", "selector", null),
+
+  REPLACE(1, "<partial-replace selector='", "' version='", "</partial-replace>",
+      "replace", "selector", "version"),
+
+  REPLACE_BY_ID(2, "<partial-replace>", null, "</partial-replace>",
+      "replaceById", null, null),
+
+  /**
+   * The selector of the command is the id of the replaced element.
+   */
+  REPLACE_BY_ID_VERSIONED(3, "<partial-replace version-key='#", "' version='",
+      "</partial-replace>", "replaceById", "id", "version");
+
+  /**
+   * The markup that precedes the value of the attribute after the selector or <code>null</code> if
+   * the command has no such attribute.
+   */
+  final Markup attribute;
+
+  final Markup endTag;
+
+  /**
+   * The start of the property that holds the attribute after the selector in the JSON format or
+   * <code>null</code> if the command has no such attribute.
+   */
+  final Markup jsonAttribute;
+
+  /**
+   * The start of the property that holds the selector in the JSON format or <code>null</code> if
+   * the command has no target attribute.
+   */
+  final Markup jsonSelector;
+
+  /**
+   * The start of the command object with its <code>op</code> property in the JSON format.
+   */
+  final Markup jsonStart;
+
+  final byte opcode;
+
+  /**
+   * The name of the command in the JSON format and in the metrics (see
+   * {@link PartialResponseMetrics}).
+   */
+  final String operation;
+
+  /**
+   * The start tag until the value of the selector.
+   */
+  final Markup startTag;
+
+  CommandType(final int opcode, final String startTag, final String attribute,
+      final String endTag, final String operation, final String jsonSelectorName,
+      final String jsonAttributeName) {
+    this.opcode = (byte) opcode;
+    this.startTag = new Markup(startTag);
+    this.attribute = (attribute != null) ? new Markup(attribute) : null;
+    this.endTag = new Markup(endTag);
+    this.operation = operation;
+    jsonStart = new Markup("{\"op\":\"" + operation + "\"");
+    jsonSelector = (jsonSelectorName != null) ? new Markup(",\"" + jsonSelectorName + "\":\"")
+        : null;
+    jsonAttribute = (jsonAttributeName != null)
+        ? new Markup("\",\"" + jsonAttributeName + "\":\"") : null;
+  }
+
+}
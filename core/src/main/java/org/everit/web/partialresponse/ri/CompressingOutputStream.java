@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Compresses the bytes written by {@link StreamResponseOutput} with a pooled {@link Deflater}. The
+ * bytes are held back until the threshold of the {@link ResponseCompression} is reached. If the
+ * stream is closed before, they are written uncompressed and the response does not get the
+ * <code>Content-Encoding</code> header. Flushing starts the compression regardless of the
+ * threshold, because the client is waiting for the flushed commands.
+ */
+final class CompressingOutputStream extends OutputStream {
+
+  private static final byte[] GZIP_HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0,
+      0, 0, 0, 0, 0, (byte) 0xff };
+
+  private static final int OUTPUT_BUFFER_SIZE = 8192;
+
+  private static final int ZLIB_CHECK_BASE = 31;
+
+  private static final int ZLIB_CMF = 0x78;
+
+  private static final int ZLIB_DEFAULT_LEVEL = 6;
+
+  /**
+   * The header of the zlib format (RFC 1950) that is expected by the <code>deflate</code> content
+   * encoding.
+   */
+  private static byte[] zlibHeader(final int level) {
+    int compressionLevel;
+    if (level <= Deflater.BEST_SPEED) {
+      compressionLevel = 0;
+    } else if (level < ZLIB_DEFAULT_LEVEL) {
+      compressionLevel = 1;
+    } else if (level == ZLIB_DEFAULT_LEVEL) {
+      compressionLevel = 2;
+    } else {
+      compressionLevel = 3;
+    }
+    int flags = compressionLevel << 6;
+    flags += (ZLIB_CHECK_BASE - (((ZLIB_CMF << 8) + flags) % ZLIB_CHECK_BASE)) % ZLIB_CHECK_BASE;
+    return new byte[] { ZLIB_CMF, (byte) flags };
+  }
+
+  private final Checksum checksum;
+
+  private final ResponseCompression compression;
+
+  private Deflater deflater;
+
+  private final String encoding;
+
+  private byte[] outputBuffer;
+
+  private byte[] pending = new byte[0];
+
+  private int pendingCount;
+
+  private final HttpServletResponse response;
+
+  private final OutputStream target;
+
+  private long uncompressedSize;
+
+  CompressingOutputStream(final OutputStream target, final HttpServletResponse response,
+      final ResponseCompression compression, final String encoding) {
+    this.target = target;
+    this.response = response;
+    this.compression = compression;
+    this.encoding = encoding;
+    checksum = ResponseCompression.GZIP.equals(encoding) ? new CRC32() : new Adler32();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (deflater == null) {
+      target.write(pending, 0, pendingCount);
+      pendingCount = 0;
+      return;
+    }
+    try {
+      deflater.finish();
+      while (!deflater.finished()) {
+        writeDeflated(Deflater.NO_FLUSH);
+      }
+      writeTrailer();
+    } finally {
+      compression.release(deflater);
+      deflater = null;
+      pendingCount = 0;
+    }
+  }
+
+  private void deflate(final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return;
+    }
+    checksum.update(b, off, len);
+    uncompressedSize += len;
+    deflater.setInput(b, off, len);
+    while (!deflater.needsInput()) {
+      writeDeflated(Deflater.NO_FLUSH);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (deflater == null) {
+      start();
+    }
+    int length;
+    do {
+      length = writeDeflated(Deflater.SYNC_FLUSH);
+    } while (length == outputBuffer.length);
+    target.flush();
+  }
+
+  private void start() throws IOException {
+    response.setHeader("Content-Encoding", encoding);
+    deflater = compression.borrow();
+    outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+    if (ResponseCompression.GZIP.equals(encoding)) {
+      target.write(GZIP_HEADER);
+    } else {
+      target.write(zlibHeader(compression.getLevel()));
+    }
+    deflate(pending, 0, pendingCount);
+    pending = null;
+    pendingCount = 0;
+  }
+
+  @Override
+  public void write(final byte[] b, final int off, final int len) throws IOException {
+    if (deflater == null) {
+      if (pendingCount + len < compression.getThreshold()) {
+        if (pendingCount + len > pending.length) {
+          pending = Arrays.copyOf(pending, compression.getThreshold());
+        }
+        System.arraycopy(b, off, pending, pendingCount, len);
+        pendingCount += len;
+        return;
+      }
+      start();
+    }
+    deflate(b, off, len);
+  }
+
+  @Override
+  public void write(final int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  private int writeDeflated(final int flushMode) throws IOException {
+    int length = deflater.deflate(outputBuffer, 0, outputBuffer.length, flushMode);
+    if (length > 0) {
+      target.write(outputBuffer, 0, length);
+    }
+    return length;
+  }
+
+  private void writeTrailer() throws IOException {
+    long value = checksum.getValue();
+    byte[] trailer;
+    if (ResponseCompression.GZIP.equals(encoding)) {
+      trailer = new byte[] { (byte) value, (byte) (value >> 8), (byte) (value >> 16),
+          (byte) (value >> 24), (byte) uncompressedSize, (byte) (uncompressedSize >> 8),
+          (byte) (uncompressedSize >> 16), (byte) (uncompressedSize >> 24) };
+    } else {
+      trailer = new byte[] { (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8),
+          (byte) value };
+    }
+    target.write(trailer);
+  }
+
+}
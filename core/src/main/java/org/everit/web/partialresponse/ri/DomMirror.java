@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+import javax.servlet.http.HttpSession;
+
+/**
+ * Session-scoped mirror of the fragments that the client of the session received last. If the
+ * builder is configured with a mirror (see {@link PartialResponseConfiguration#domMirror(long)}),
+ * it compares the new content of a replace command with the mirrored content of the same selector
+ * and sends only the changed attributes, texts and child nodes when the client still holds the
+ * mirrored version of the fragment.
+ *
+ * <p>
+ * The fragments are stored as markup with their versions (see
+ * {@link FragmentVersions#hash(String)}) and they are parsed only when they are compared. The
+ * mirror is bounded by an estimated memory budget: the least recently used fragments are evicted
+ * if the budget is exceeded and a fragment that does not fit into the budget is not mirrored at
+ * all. The next replace of an evicted fragment is sent as a whole again.
+ *
+ * <p>
+ * The mirror is thread-safe, so the concurrent requests of a session can use it.
+ */
+public final class DomMirror implements Serializable {
+
+  /**
+   * A mirrored fragment.
+   */
+  private static final class Entry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final String content;
+
+    final String version;
+
+    Entry(final String version, final String content) {
+      this.version = version;
+      this.content = content;
+    }
+
+  }
+
+  /**
+   * The estimated size of an entry in addition to its strings.
+   */
+  private static final int ENTRY_OVERHEAD = 64;
+
+  /**
+   * The name of the session attribute that holds the mirror.
+   */
+  public static final String SESSION_ATTRIBUTE = DomMirror.class.getName();
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Returns the mirror of a session. A new mirror is created and stored in the session if it does
+   * not have one yet. If two requests of a new session create a mirror at the same time, one of
+   * the mirrors is dropped, which only means that its fragments are sent as a whole next time.
+   *
+   * @param session
+   *          The session. Cannot be <code>null</code>!
+   * @param maxBytes
+   *          The memory budget of a new mirror in bytes.
+   * @return The mirror of the session.
+   */
+  public static DomMirror fromSession(final HttpSession session, final long maxBytes) {
+    Objects.requireNonNull(session, "Session cannot be null!");
+    Object attribute = session.getAttribute(SESSION_ATTRIBUTE);
+    if (attribute instanceof DomMirror) {
+      return (DomMirror) attribute;
+    }
+    DomMirror mirror = new DomMirror(maxBytes);
+    session.setAttribute(SESSION_ATTRIBUTE, mirror);
+    return mirror;
+  }
+
+  private final BoundedLruMap<String, Entry> entries;
+
+  /**
+   * Constructor.
+   *
+   * @param maxBytes
+   *          The memory budget of the mirror in bytes. The size of a fragment is estimated with
+   *          two bytes per character.
+   */
+  public DomMirror(final long maxBytes) {
+    entries = new BoundedLruMap<>(Integer.MAX_VALUE, maxBytes);
+  }
+
+  /**
+   * The estimated size of the mirrored fragments in bytes.
+   */
+  public long byteSize() {
+    return entries.byteSize();
+  }
+
+  /**
+   * Removes every fragment from the mirror, e.g. when the client loads a new page.
+   */
+  public void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns the mirrored content of a fragment if it has the given version.
+   *
+   * @param key
+   *          The selector of the fragment or <code>#</code> and its id.
+   * @param version
+   *          The version that the client holds or <code>null</code>.
+   * @return The content or <code>null</code> if the fragment is not mirrored with the version.
+   */
+  String getContent(final String key, final String version) {
+    if (version == null) {
+      return null;
+    }
+    Entry entry = entries.get(key);
+    return (entry != null && entry.version.equals(version)) ? entry.content : null;
+  }
+
+  /**
+   * Removes a fragment from the mirror, so its next replace is sent as a whole.
+   *
+   * @param key
+   *          The selector of the fragment or <code>#</code> and its id.
+   */
+  public void invalidate(final String key) {
+    entries.remove(key);
+  }
+
+  /**
+   * Stores the content that was sent to the client. The least recently used fragments are evicted
+   * if the budget is exceeded.
+   *
+   * @param key
+   *          The selector of the fragment or <code>#</code> and its id.
+   * @param version
+   *          The version of the content.
+   * @param content
+   *          The content.
+   */
+  void put(final String key, final String version, final String content) {
+    long size = ENTRY_OVERHEAD + 2L * (key.length() + version.length() + content.length());
+    entries.put(key, new Entry(version, content), size);
+  }
+
+  /**
+   * The number of mirrored fragments.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+/**
+ * Decides when {@link PartialResponseBuilder} flushes the already written commands to the client.
+ * Flushing early lets the browser start processing a large partial response before it is complete.
+ * The policy is asked after each command.
+ */
+@FunctionalInterface
+public interface FlushPolicy {
+
+  /**
+   * Flushes after every specified number of commands.
+   *
+   * @param commandCount
+   *          The number of commands after the response is flushed. Must be positive.
+   * @return The flush policy.
+   */
+  static FlushPolicy everyCommands(final int commandCount) {
+    if (commandCount <= 0) {
+      throw new IllegalArgumentException("Command count must be positive: " + commandCount);
+    }
+    return (commandsSinceFlush, sizeSinceFlush) -> commandsSinceFlush >= commandCount;
+  }
+
+  /**
+   * Flushes after a command if at least the specified amount of data was written since the last
+   * flush. The size is counted in bytes in {@link OutputMode#OUTPUT_STREAM} and
+   * {@link OutputMode#BUFFERED} modes and in characters in {@link OutputMode#WRITER} mode.
+   *
+   * @param size
+   *          The amount of data after the response is flushed. Must be positive.
+   * @return The flush policy.
+   */
+  static FlushPolicy everySize(final long size) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("Size must be positive: " + size);
+    }
+    return (commandsSinceFlush, sizeSinceFlush) -> sizeSinceFlush >= size;
+  }
+
+  /**
+   * Decides whether the response should be flushed.
+   *
+   * @param commandsSinceFlush
+   *          The number of commands written since the last flush.
+   * @param sizeSinceFlush
+   *          The amount of data written since the last flush.
+   * @return <code>true</code> if the response should be flushed.
+   */
+  boolean shouldFlush(int commandsSinceFlush, long sizeSinceFlush);
+
+}
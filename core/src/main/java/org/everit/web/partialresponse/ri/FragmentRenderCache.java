@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.PrintWriter;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Bounded, thread-safe cache of rendered fragments. The fragments are stored as UTF-8 encoded bytes
+ * that can be written to a partial response with the byte array overloads of
+ * {@link PartialResponseBuilder} without rendering or encoding them again.
+ *
+ * <p>
+ * The entries are identified by a fragment id and a cache key supplied by the caller. The cache key
+ * must represent everything the rendered output depends on (e.g. the template variables). The least
+ * recently used entries are evicted if the number of entries or their total size exceeds the limit
+ * and entries expire after the configured time to live.
+ *
+ * <p>
+ * Fragments are rendered outside of the lock of the cache, so the same fragment might be rendered
+ * more than once if it is requested concurrently for the first time.
+ */
+public class FragmentRenderCache {
+
+  /**
+   * A cached fragment.
+   */
+  private static final class Entry {
+
+    final byte[] content;
+
+    final long expiresAt;
+
+    Entry(final byte[] content, final long expiresAt) {
+      this.content = content;
+      this.expiresAt = expiresAt;
+    }
+
+  }
+
+  /**
+   * The key of a cached fragment.
+   */
+  private static final class Key {
+
+    final Object cacheKey;
+
+    final String fragmentId;
+
+    private final int hashCode;
+
+    Key(final String fragmentId, final Object cacheKey) {
+      this.fragmentId = fragmentId;
+      this.cacheKey = cacheKey;
+      hashCode = (31 * fragmentId.hashCode()) + cacheKey.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return fragmentId.equals(other.fragmentId) && cacheKey.equals(other.cacheKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+  }
+
+  private static final int INITIAL_RENDER_BUFFER_SIZE = 1024;
+
+  private final BoundedLruMap<Key, Entry> entries;
+
+  private final long timeToLiveNanos;
+
+  /**
+   * Constructor.
+   *
+   * @param maxEntries
+   *          The maximum number of cached fragments.
+   * @param maxBytes
+   *          The maximum total size of the cached fragments in bytes.
+   * @param timeToLive
+   *          The time after a fragment is rendered again.
+   * @param timeUnit
+   *          The unit of timeToLive.
+   */
+  public FragmentRenderCache(final int maxEntries, final long maxBytes, final long timeToLive,
+      final TimeUnit timeUnit) {
+    entries = new BoundedLruMap<>(maxEntries, maxBytes);
+    timeToLiveNanos = timeUnit.toNanos(timeToLive);
+  }
+
+  /**
+   * The total size of the cached fragments in bytes.
+   */
+  public long byteSize() {
+    return entries.byteSize();
+  }
+
+  /**
+   * Removes every fragment from the cache.
+   */
+  public void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns the cached fragment or renders and caches it if it is not in the cache or expired.
+   *
+   * @param fragmentId
+   *          The id of the fragment. Cannot be <code>null</code>!
+   * @param cacheKey
+   *          The key that identifies the variables the fragment is rendered with. Cannot be
+   *          <code>null</code>!
+   * @param renderer
+   *          Renders the fragment to the provided writer.
+   * @return The UTF-8 encoded fragment. The returned array must not be modified.
+   */
+  public byte[] get(final String fragmentId, final Object cacheKey,
+      final Consumer<PrintWriter> renderer) {
+    Objects.requireNonNull(fragmentId, "Fragment id cannot be null!");
+    Objects.requireNonNull(cacheKey, "Cache key cannot be null!");
+    Key key = new Key(fragmentId, cacheKey);
+    long now = System.nanoTime();
+
+    Entry entry = entries.get(key, (cached) -> cached.expiresAt - now > 0);
+    if (entry != null) {
+      return entry.content;
+    }
+
+    byte[] content = Utf8Buffer.render(renderer, INITIAL_RENDER_BUFFER_SIZE);
+    entries.put(key, new Entry(content, now + timeToLiveNanos), content.length);
+    return content;
+  }
+
+  /**
+   * Removes a fragment from the cache.
+   *
+   * @param fragmentId
+   *          The id of the fragment.
+   * @param cacheKey
+   *          The key that identifies the variables the fragment was rendered with.
+   */
+  public void invalidate(final String fragmentId, final Object cacheKey) {
+    entries.remove(new Key(fragmentId, cacheKey));
+  }
+
+  /**
+   * The number of cached fragments.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+}
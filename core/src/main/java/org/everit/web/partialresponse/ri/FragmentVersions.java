@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The versions of the fragments that the client already holds. The JavaScript client sends them in
+ * the {@value #HEADER_NAME} header as URI encoded <code>key=version</code> pairs separated by
+ * <code>&amp;</code>. The key is the selector of a versioned replace or <code>#</code> and the id
+ * of a versioned replaceById.
+ */
+public final class FragmentVersions {
+
+  /**
+   * Versions of a request that did not send any.
+   */
+  public static final FragmentVersions EMPTY = new FragmentVersions(Collections.emptyMap());
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * The name of the request header that holds the versions of the client.
+   */
+  public static final String HEADER_NAME = "x-partialresponse-versions";
+
+  private static final int HEX_DIGITS = 16;
+
+  private static String decode(final String value) {
+    try {
+      return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Reads the versions from the {@value #HEADER_NAME} header of the request. Malformed pairs are
+   * ignored.
+   *
+   * @param request
+   *          The request. Cannot be <code>null</code>!
+   * @return The versions of the client or {@link #EMPTY} if the header is missing.
+   */
+  public static FragmentVersions fromRequest(final HttpServletRequest request) {
+    Objects.requireNonNull(request, "Request cannot be null!");
+    String header = request.getHeader(HEADER_NAME);
+    if (header == null || header.isEmpty()) {
+      return EMPTY;
+    }
+    Map<String, String> versions = new HashMap<>();
+    int start = 0;
+    while (start < header.length()) {
+      int end = header.indexOf('&', start);
+      if (end < 0) {
+        end = header.length();
+      }
+      int separator = header.indexOf('=', start);
+      if (separator > start && separator < end) {
+        String key = decode(header.substring(start, separator));
+        String version = decode(header.substring(separator + 1, end));
+        if (key != null && version != null) {
+          versions.put(key, version);
+        }
+      }
+      start = end + 1;
+    }
+    return new FragmentVersions(versions);
+  }
+
+  /**
+   * Calculates a version from the content of a fragment. The result is the hexadecimal form of the
+   * 64 bit FNV-1a hash of the content, that is cheap enough to be calculated for every rendered
+   * fragment but it is not a cryptographic hash.
+   *
+   * @param content
+   *          The UTF-8 encoded content of the fragment (e.g. from {@link FragmentRenderCache}).
+   * @return The version of the content.
+   */
+  public static String hash(final byte[] content) {
+    long hash = FNV_OFFSET_BASIS;
+    for (byte b : content) {
+      hash ^= b & 0xff;
+      hash *= FNV_PRIME;
+    }
+    String hex = Long.toHexString(hash);
+    if (hex.length() == HEX_DIGITS) {
+      return hex;
+    }
+    StringBuilder sb = new StringBuilder(HEX_DIGITS);
+    for (int i = hex.length(); i < HEX_DIGITS; i++) {
+      sb.append('0');
+    }
+    return sb.append(hex).toString();
+  }
+
+  /**
+   * Calculates a version from the content of a fragment.
+   *
+   * @param content
+   *          The content of the fragment.
+   * @return The version of the UTF-8 encoded content.
+   * @see #hash(byte[])
+   */
+  public static String hash(final String content) {
+    return hash(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private final Map<String, String> versions;
+
+  private FragmentVersions(final Map<String, String> versions) {
+    this.versions = versions;
+  }
+
+  /**
+   * The version of a fragment that the client holds.
+   *
+   * @param key
+   *          The selector of the fragment or <code>#</code> and its id.
+   * @return The version or <code>null</code> if the client did not send a version of the fragment.
+   */
+  String get(final String key) {
+    return versions.get(key);
+  }
+
+  /**
+   * Checks whether the client holds the given version of a fragment.
+   *
+   * @param key
+   *          The selector of the fragment or <code>#</code> and its id.
+   * @param version
+   *          The version that would be sent to the client.
+   * @return <code>true</code> if the client already holds the same version.
+   */
+  public boolean isCurrent(final String key, final String version) {
+    return version.equals(versions.get(key));
+  }
+
+  /**
+   * The number of versions that the client sent.
+   *
+   * @return The number of versions.
+   */
+  public int size() {
+    return versions.size();
+  }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values (e.g. latencies in nanoseconds or sizes in bytes).
+ * Like an HDR histogram, every power of two is divided into {@value #SUB_BUCKET_COUNT} buckets of
+ * equal width, so recording a value is a few atomic increments and the percentiles are accurate
+ * to 12.5% over the whole range of <code>long</code>.
+ */
+public class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  /**
+   * The values below this limit have their own bucket.
+   */
+  private static final int LINEAR_LIMIT = 2 * SUB_BUCKET_COUNT;
+
+  private static final int BUCKET_COUNT = (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT
+      + LINEAR_LIMIT;
+
+  private static final double PERCENT = 100;
+
+  private static int bucketIndex(final long value) {
+    if (value < LINEAR_LIMIT) {
+      return (int) value;
+    }
+    int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKET_COUNT + (int) (value >>> shift);
+  }
+
+  private static long upperBound(final int bucketIndex) {
+    if (bucketIndex < LINEAR_LIMIT) {
+      return bucketIndex;
+    }
+    int shift = bucketIndex / SUB_BUCKET_COUNT - 1;
+    long subBucket = bucketIndex - shift * SUB_BUCKET_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+  private final LongAdder count = new LongAdder();
+
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * The number of the recorded values.
+   *
+   * @return The number of the values.
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * The largest recorded value.
+   *
+   * @return The value or zero if nothing was recorded.
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * The average of the recorded values.
+   *
+   * @return The average or zero if nothing was recorded.
+   */
+  public long getMean() {
+    long currentCount = count.sum();
+    return (currentCount > 0) ? sum.sum() / currentCount : 0;
+  }
+
+  /**
+   * The upper bound of the bucket that contains the value at a percentile. The result is never
+   * greater than the largest recorded value.
+   *
+   * @param percentile
+   *          The percentile between 0 and 100 (e.g. 99 for the 99th percentile).
+   * @return The value or zero if nothing was recorded.
+   * @throws IllegalArgumentException
+   *           if the percentile is not between 0 and 100.
+   */
+  public long getValueAtPercentile(final double percentile) {
+    if (percentile < 0 || percentile > PERCENT) {
+      throw new IllegalArgumentException("Percentile must be between 0 and 100!");
+    }
+    long[] counts = new long[BUCKET_COUNT];
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = buckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / PERCENT));
+    long seen = 0;
+    int bucket = 0;
+    while (seen + counts[bucket] < rank) {
+      seen += counts[bucket];
+      bucket++;
+    }
+    return Math.min(upperBound(bucket), max.get());
+  }
+
+  /**
+   * Records a value. Negative values are recorded as zero.
+   *
+   * @param value
+   *          The value.
+   */
+  public void record(final long value) {
+    long recorded = Math.max(0, value);
+    buckets.incrementAndGet(bucketIndex(recorded));
+    count.increment();
+    sum.add(recorded);
+    max.accumulate(recorded);
+  }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link ResponseOutput} that writes the commands as a JSON array instead of the HTML envelope,
+ * for the clients that do not have an HTML parser at hand (e.g. native applications):
+ *
+ * <pre>
+ * [{"op":"replace","selector":"#x","html":"..."},{"op":"append","selector":"#y","html":"..."}]
+ * </pre>
+ *
+ * <p>
+ * The properties of the command objects are defined by {@link CommandType}. The content of the
+ * commands is escaped while it is streamed to the target, so neither the content providers nor
+ * the output build a string of the escaped content. If the number of the commands is written, the
+ * last element of the array is <code>{"op":"commands","count":N}</code>.
+ */
+final class JsonResponseOutput extends ResponseOutput {
+
+  /**
+   * {@link Writer} that escapes the characters that cannot appear in a JSON string and passes the
+   * runs between them to the target without copying.
+   */
+  private static final class EscapingWriter extends Writer {
+
+    private final PrintWriter target;
+
+    EscapingWriter(final PrintWriter target) {
+      this.target = target;
+    }
+
+    @Override
+    public void close() {
+      // The target is closed by the output.
+    }
+
+    @Override
+    public void flush() {
+      // The output decides when the content is flushed.
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) {
+      int end = off + len;
+      int runStart = off;
+      for (int i = off; i < end; i++) {
+        String escape = escape(cbuf[i]);
+        if (escape != null) {
+          target.write(cbuf, runStart, i - runStart);
+          target.write(escape);
+          runStart = i + 1;
+        }
+      }
+      target.write(cbuf, runStart, end - runStart);
+    }
+
+    @Override
+    public void write(final int c) {
+      String escape = escape((char) c);
+      if (escape != null) {
+        target.write(escape);
+      } else {
+        target.write(c);
+      }
+    }
+
+    @Override
+    public void write(final String str) {
+      write(str, 0, str.length());
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) {
+      int end = off + len;
+      int runStart = off;
+      for (int i = off; i < end; i++) {
+        String escape = escape(str.charAt(i));
+        if (escape != null) {
+          target.write(str, runStart, i - runStart);
+          target.write(escape);
+          runStart = i + 1;
+        }
+      }
+      target.write(str, runStart, end - runStart);
+    }
+
+  }
+
+  private static final Markup ARRAY_END = new Markup("]");
+
+  private static final Markup ARRAY_START = new Markup("[");
+
+  private static final Markup COMMANDS_START = new Markup("{\"op\":\"commands\",\"count\":");
+
+  private static final Markup CONTENT_START = new Markup(",\"html\":\"");
+
+  /**
+   * The media type that the client sends in the <code>Accept</code> header if it can process the
+   * JSON format.
+   */
+  static final String CONTENT_TYPE = "application/json";
+
+  private static final Markup ELEMENT_SEPARATOR = new Markup(",");
+
+  /**
+   * The escape sequences of the ASCII characters or <code>null</code> if the character is written
+   * as it is.
+   */
+  private static final String[] ESCAPES = new String[128];
+
+  private static final Markup OBJECT_END = new Markup("}");
+
+  private static final Markup STRING_END = new Markup("\"");
+
+  private static final Markup STRING_OBJECT_END = new Markup("\"}");
+
+  static {
+    for (int i = 0; i < ' '; i++) {
+      ESCAPES[i] = String.format("\\u%04x", i);
+    }
+    ESCAPES['\b'] = "\\b";
+    ESCAPES['\t'] = "\\t";
+    ESCAPES['\n'] = "\\n";
+    ESCAPES['\f'] = "\\f";
+    ESCAPES['\r'] = "\\r";
+    ESCAPES['"'] = "\\\"";
+    ESCAPES['\\'] = "\\\\";
+  }
+
+  private static String escape(final char c) {
+    return (c < ESCAPES.length) ? ESCAPES[c] : null;
+  }
+
+  /**
+   * Escapes UTF-8 encoded content. Only ASCII characters are escaped, so the multi-byte sequences
+   * are copied as they are.
+   *
+   * @return The escaped content or the original array if nothing had to be escaped.
+   */
+  private static byte[] escape(final byte[] content) {
+    int length = content.length;
+    for (byte b : content) {
+      if (b >= 0 && ESCAPES[b] != null) {
+        length += ESCAPES[b].length() - 1;
+      }
+    }
+    if (length == content.length) {
+      return content;
+    }
+    byte[] escaped = new byte[length];
+    int position = 0;
+    for (byte b : content) {
+      String escape = (b >= 0) ? ESCAPES[b] : null;
+      if (escape == null) {
+        escaped[position++] = b;
+      } else {
+        for (int i = 0; i < escape.length(); i++) {
+          escaped[position++] = (byte) escape.charAt(i);
+        }
+      }
+    }
+    return escaped;
+  }
+
+  private boolean empty = true;
+
+  private final EscapingWriter escapingWriter;
+
+  private boolean inString;
+
+  private final ResponseOutput target;
+
+  private final PrintWriter writer;
+
+  /**
+   * Constructor.
+   *
+   * @param target
+   *          The output where the JSON array is written.
+   */
+  JsonResponseOutput(final ResponseOutput target) {
+    this.target = target;
+    escapingWriter = new EscapingWriter(target.writer());
+    writer = new PrintWriter(escapingWriter, false);
+  }
+
+  @Override
+  void close() {
+    target.close();
+  }
+
+  @Override
+  boolean discard() {
+    return target.discard();
+  }
+
+  @Override
+  void endCommand(final CommandType type) {
+    inString = false;
+    target.write(STRING_OBJECT_END);
+  }
+
+  @Override
+  void endResponse(final int commandCount) {
+    if (commandCount >= 0) {
+      startElement();
+      target.write(COMMANDS_START);
+      target.write(String.valueOf(commandCount));
+      target.write(OBJECT_END);
+    }
+    target.write(ARRAY_END);
+  }
+
+  @Override
+  void flush() {
+    target.flush();
+  }
+
+  @Override
+  long size() {
+    return target.size();
+  }
+
+  @Override
+  void startCommand(final CommandType type, final String selector, final String attributeValue) {
+    startElement();
+    target.write(type.jsonStart);
+    if (selector != null) {
+      target.write(type.jsonSelector);
+      escapingWriter.write(selector);
+      if (attributeValue != null) {
+        target.write(type.jsonAttribute);
+        escapingWriter.write(attributeValue);
+      }
+      target.write(STRING_END);
+    }
+    target.write(CONTENT_START);
+    inString = true;
+  }
+
+  private void startElement() {
+    if (empty) {
+      empty = false;
+    } else {
+      target.write(ELEMENT_SEPARATOR);
+    }
+  }
+
+  @Override
+  void startResponse() {
+    target.write(ARRAY_START);
+  }
+
+  @Override
+  void write(final byte[] content) {
+    target.write(inString ? escape(content) : content);
+  }
+
+  @Override
+  void write(final ByteBuffer content) {
+    if (inString) {
+      byte[] bytes = new byte[content.remaining()];
+      content.duplicate().get(bytes);
+      target.write(escape(bytes));
+    } else {
+      target.write(content);
+    }
+  }
+
+  @Override
+  void write(final Markup markup) {
+    if (inString) {
+      target.write(escape(markup.bytes));
+    } else {
+      target.write(markup);
+    }
+  }
+
+  @Override
+  void write(final String text) {
+    if (inString) {
+      escapingWriter.write(text);
+    } else {
+      target.write(text);
+    }
+  }
+
+  @Override
+  PrintWriter writer() {
+    return writer;
+  }
+
+}
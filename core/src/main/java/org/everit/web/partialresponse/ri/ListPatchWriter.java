@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.PrintWriter;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Writes the keyed operations of a patchList command of {@link PartialResponseBuilder}. The
+ * children of the container are identified by the value of the key attribute. The operations are
+ * applied in the order they are written and only the affected children are touched on the client
+ * side.
+ *
+ * <p>
+ * The content of the inserted and updated children is wrapped into a template element, so table
+ * rows and cells are parsed correctly, too.
+ */
+public final class ListPatchWriter {
+
+  private static final Markup BEFORE = new Markup("' before='");
+
+  private static final Markup CONTENT_START = new Markup("'><template>");
+
+  private static final Markup INSERT_END = new Markup("</template></partial-insert>");
+
+  private static final Markup INSERT_START = new Markup("<partial-insert key='");
+
+  private static final Markup MOVE_END = new Markup("'></partial-move>");
+
+  private static final Markup MOVE_START = new Markup("<partial-move key='");
+
+  private static final Markup REMOVE_END = new Markup("'></partial-remove>");
+
+  private static final Markup REMOVE_START = new Markup("<partial-remove key='");
+
+  private static final Markup UPDATE_END = new Markup("</template></partial-update>");
+
+  private static final Markup UPDATE_START = new Markup("<partial-update key='");
+
+  private final ResponseOutput output;
+
+  ListPatchWriter(final ResponseOutput output) {
+    this.output = output;
+  }
+
+  /**
+   * Inserts a new child.
+   *
+   * @param key
+   *          The key of the new child. The attribute is set on the first element of the content if
+   *          it does not have it.
+   * @param beforeKey
+   *          The key of the child before the new child is inserted or <code>null</code> if the new
+   *          child should be the last one.
+   * @param contentProvider
+   *          Writes the new child to the provided writer.
+   * @return The writer.
+   */
+  public ListPatchWriter insert(final String key, final String beforeKey,
+      final Consumer<PrintWriter> contentProvider) {
+    output.write(INSERT_START);
+    writeKeys(key, beforeKey);
+    output.write(CONTENT_START);
+    contentProvider.accept(output.writer());
+    output.write(INSERT_END);
+    return this;
+  }
+
+  /**
+   * Inserts a new child.
+   *
+   * @param key
+   *          The key of the new child. The attribute is set on the first element of the content if
+   *          it does not have it.
+   * @param beforeKey
+   *          The key of the child before the new child is inserted or <code>null</code> if the new
+   *          child should be the last one.
+   * @param content
+   *          The new child.
+   * @return The writer.
+   */
+  public ListPatchWriter insert(final String key, final String beforeKey, final String content) {
+    output.write(INSERT_START);
+    writeKeys(key, beforeKey);
+    output.write(CONTENT_START);
+    output.write(content);
+    output.write(INSERT_END);
+    return this;
+  }
+
+  /**
+   * Moves an existing child.
+   *
+   * @param key
+   *          The key of the child that is moved.
+   * @param beforeKey
+   *          The key of the child before the moved child is placed or <code>null</code> if the
+   *          moved child should be the last one.
+   * @return The writer.
+   */
+  public ListPatchWriter move(final String key, final String beforeKey) {
+    output.write(MOVE_START);
+    writeKeys(key, beforeKey);
+    output.write(MOVE_END);
+    return this;
+  }
+
+  /**
+   * Removes an existing child.
+   *
+   * @param key
+   *          The key of the child that is removed.
+   * @return The writer.
+   */
+  public ListPatchWriter remove(final String key) {
+    output.write(REMOVE_START);
+    writeKeys(key, null);
+    output.write(REMOVE_END);
+    return this;
+  }
+
+  /**
+   * Replaces an existing child with new content in place.
+   *
+   * @param key
+   *          The key of the child that is replaced.
+   * @param contentProvider
+   *          Writes the new child to the provided writer.
+   * @return The writer.
+   */
+  public ListPatchWriter update(final String key, final Consumer<PrintWriter> contentProvider) {
+    output.write(UPDATE_START);
+    writeKeys(key, null);
+    output.write(CONTENT_START);
+    contentProvider.accept(output.writer());
+    output.write(UPDATE_END);
+    return this;
+  }
+
+  /**
+   * Replaces an existing child with new content in place.
+   *
+   * @param key
+   *          The key of the child that is replaced.
+   * @param content
+   *          The new child.
+   * @return The writer.
+   */
+  public ListPatchWriter update(final String key, final String content) {
+    output.write(UPDATE_START);
+    writeKeys(key, null);
+    output.write(CONTENT_START);
+    output.write(content);
+    output.write(UPDATE_END);
+    return this;
+  }
+
+  private void writeKeys(final String key, final String beforeKey) {
+    Objects.requireNonNull(key, "Key cannot be null!");
+    output.write(Markup.escapeAttribute(key));
+    if (beforeKey != null) {
+      output.write(BEFORE);
+      output.write(Markup.escapeAttribute(beforeKey));
+    }
+  }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Constant markup of the partial response with its UTF-8 encoded form that is calculated only once.
+ */
+final class Markup {
+
+  final byte[] bytes;
+
+  final String text;
+
+  /**
+   * Escapes a value that is written into a single-quoted attribute.
+   */
+  static String escapeAttribute(final String value) {
+    int length = value.length();
+    int i = 0;
+    while (i < length && !needsEscape(value.charAt(i))) {
+      i++;
+    }
+    if (i == length) {
+      return value;
+    }
+    StringBuilder sb = new StringBuilder(length + 16);
+    sb.append(value, 0, i);
+    for (; i < length; i++) {
+      char c = value.charAt(i);
+      if (c == '&') {
+        sb.append("&amp;");
+      } else if (c == '\'') {
+        sb.append("&#39;");
+      } else if (c == '<') {
+        sb.append("&lt;");
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static boolean needsEscape(final char c) {
+    return (c == '&') || (c == '\'') || (c == '<');
+  }
+
+  Markup(final String text) {
+    this.text = text;
+    bytes = text.getBytes(StandardCharsets.UTF_8);
+  }
+
+}
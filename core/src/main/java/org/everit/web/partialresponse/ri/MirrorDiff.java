@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.everit.web.partialresponse.ri.MirrorTree.Node;
+import org.everit.web.partialresponse.ri.MirrorTree.NodeType;
+
+/**
+ * Calculates the operations of a patch command that turn the old content of a fragment into the
+ * new one on the client side. The operations address the nodes by their path: the indexes of the
+ * child nodes from the root element of the fragment, separated by dots. The root element itself
+ * has an empty path. The operations are applied in the order they are written and the path of each
+ * operation is valid after the preceding operations are applied:
+ *
+ * <pre>
+ * &lt;partial-set-attribute path='0' name='class' value='selected'&gt;
+ * &lt;partial-remove-attribute path='0' name='title'&gt;
+ * &lt;partial-text path='0.0'&gt;new text
+ * &lt;partial-replace-node path='1'&gt;&lt;template&gt;new node
+ * &lt;partial-insert-node path='2'&gt;&lt;template&gt;new node
+ * &lt;partial-remove-nodes path='3' count='2'&gt;
+ * </pre>
+ *
+ * <p>
+ * Every operation is closed with its end tag (and the template element with its own), which are
+ * omitted above.
+ *
+ * <p>
+ * The children that did not change at the start and at the end of a child list are skipped and
+ * the changed ones between them are compared by their positions. Elements with the same name and
+ * id are patched recursively, other nodes are replaced.
+ */
+final class MirrorDiff {
+
+  private static final String ATTRIBUTES_END = "'>";
+
+  private static final String CONTENT_END = "</template>";
+
+  private static final String CONTENT_START = "'><template>";
+
+  private static final String COUNT = "' count='";
+
+  private static final String INSERT_NODE_END = "</partial-insert-node>";
+
+  private static final String INSERT_NODE_START = "<partial-insert-node path='";
+
+  private static final String NAME = "' name='";
+
+  private static final String REMOVE_ATTRIBUTE_END = "'></partial-remove-attribute>";
+
+  private static final String REMOVE_ATTRIBUTE_START = "<partial-remove-attribute path='";
+
+  private static final String REMOVE_NODES_END = "'></partial-remove-nodes>";
+
+  private static final String REMOVE_NODES_START = "<partial-remove-nodes path='";
+
+  private static final String REPLACE_NODE_END = "</partial-replace-node>";
+
+  private static final String REPLACE_NODE_START = "<partial-replace-node path='";
+
+  private static final String SET_ATTRIBUTE_END = "'></partial-set-attribute>";
+
+  private static final String SET_ATTRIBUTE_START = "<partial-set-attribute path='";
+
+  private static final String TEXT_END = "</partial-text>";
+
+  private static final String TEXT_START = "<partial-text path='";
+
+  private static final String VALUE = "' value='";
+
+  private static String childPath(final String path, final int index) {
+    return path.isEmpty() ? Integer.toString(index) : path + '.' + index;
+  }
+
+  /**
+   * Calculates the operations.
+   *
+   * @param oldRoot
+   *          The root element of the content that the client holds.
+   * @param newRoot
+   *          The root element of the new content.
+   * @param maxLength
+   *          The length of the operations above which it is cheaper to replace the fragment.
+   * @return The operations or <code>null</code> if the root elements are different elements or
+   *         the operations would be longer than the maximum.
+   */
+  static String diff(final Node oldRoot, final Node newRoot, final int maxLength) {
+    if (oldRoot.type != NodeType.ELEMENT || newRoot.type != NodeType.ELEMENT
+        || !isSameElement(oldRoot, newRoot)) {
+      return null;
+    }
+    MirrorDiff diff = new MirrorDiff(maxLength);
+    if (!diff.diffElement(oldRoot, newRoot, "")) {
+      return null;
+    }
+    return diff.operations.toString();
+  }
+
+  /**
+   * Escapes an attribute value as it is written in the source (with unresolved character
+   * references) into a single-quoted attribute.
+   */
+  private static String escapeRawValue(final String value) {
+    return (value.indexOf('\'') < 0) ? value : value.replace("'", "&#39;");
+  }
+
+  private static boolean isSameElement(final Node oldNode, final Node newNode) {
+    return oldNode.name.equals(newNode.name) && Objects.equals(oldNode.id(), newNode.id());
+  }
+
+  private final int maxLength;
+
+  private final StringBuilder operations = new StringBuilder();
+
+  private MirrorDiff(final int maxLength) {
+    this.maxLength = maxLength;
+  }
+
+  private boolean diffChildren(final List<Node> oldChildren, final List<Node> newChildren,
+      final String path) {
+    int oldSize = oldChildren.size();
+    int newSize = newChildren.size();
+    int commonSize = Math.min(oldSize, newSize);
+    int prefix = 0;
+    while (prefix < commonSize
+        && oldChildren.get(prefix).source.equals(newChildren.get(prefix).source)) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < commonSize - prefix && oldChildren.get(oldSize - 1 - suffix).source
+        .equals(newChildren.get(newSize - 1 - suffix).source)) {
+      suffix++;
+    }
+    int oldEnd = oldSize - suffix;
+    int newEnd = newSize - suffix;
+    int pairedEnd = Math.min(oldEnd, newEnd);
+    for (int i = prefix; i < pairedEnd; i++) {
+      if (!diffNode(oldChildren.get(i), newChildren.get(i), childPath(path, i))) {
+        return false;
+      }
+    }
+    for (int i = pairedEnd; i < newEnd; i++) {
+      operations.append(INSERT_NODE_START).append(childPath(path, i)).append(CONTENT_START)
+          .append(newChildren.get(i).source).append(CONTENT_END).append(INSERT_NODE_END);
+    }
+    if (oldEnd > pairedEnd) {
+      operations.append(REMOVE_NODES_START).append(childPath(path, pairedEnd)).append(COUNT)
+          .append(oldEnd - pairedEnd).append(REMOVE_NODES_END);
+    }
+    return operations.length() <= maxLength;
+  }
+
+  private boolean diffElement(final Node oldElement, final Node newElement, final String path) {
+    for (Map.Entry<String, String> attribute : newElement.attributes.entrySet()) {
+      if (!attribute.getValue().equals(oldElement.attributes.get(attribute.getKey()))) {
+        operations.append(SET_ATTRIBUTE_START).append(path).append(NAME)
+            .append(Markup.escapeAttribute(attribute.getKey())).append(VALUE)
+            .append(escapeRawValue(attribute.getValue())).append(SET_ATTRIBUTE_END);
+      }
+    }
+    for (String name : oldElement.attributes.keySet()) {
+      if (!newElement.attributes.containsKey(name)) {
+        operations.append(REMOVE_ATTRIBUTE_START).append(path).append(NAME)
+            .append(Markup.escapeAttribute(name)).append(REMOVE_ATTRIBUTE_END);
+      }
+    }
+    return diffChildren(oldElement.children, newElement.children, path);
+  }
+
+  private boolean diffNode(final Node oldNode, final Node newNode, final String path) {
+    if (oldNode.source.equals(newNode.source)) {
+      return true;
+    }
+    if (oldNode.type == NodeType.TEXT && newNode.type == NodeType.TEXT) {
+      operations.append(TEXT_START).append(path).append(ATTRIBUTES_END).append(newNode.source)
+          .append(TEXT_END);
+    } else if (oldNode.type == NodeType.ELEMENT && newNode.type == NodeType.ELEMENT
+        && isSameElement(oldNode, newNode)) {
+      return diffElement(oldNode, newNode, path);
+    } else {
+      operations.append(REPLACE_NODE_START).append(path).append(CONTENT_START)
+          .append(newNode.source).append(CONTENT_END).append(REPLACE_NODE_END);
+    }
+    return operations.length() <= maxLength;
+  }
+
+}
@@ -0,0 +1,635 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the HTML fragments of {@link DomMirror} into the tree of nodes that a browser builds from
+ * them, so they can be compared node by node. The parser is strict: it accepts only the markup
+ * that every browser parses into the same tree as the parser does, i.e. every non-void element is
+ * closed explicitly and no element is placed where the HTML parser would close, move or drop it
+ * (e.g. a <code>div</code> in a <code>p</code> or a <code>tr</code> directly in a
+ * <code>table</code>). Any other markup is rejected and the fragment is always replaced as a
+ * whole.
+ *
+ * <p>
+ * The content of the elements whose children are not parsed as HTML (e.g. <code>script</code>,
+ * <code>svg</code> and <code>template</code>) is not parsed: these elements are compared and
+ * replaced as a whole.
+ */
+final class MirrorTree {
+
+  /**
+   * A node of the parsed fragment.
+   */
+  static final class Node {
+
+    /**
+     * The attributes of an element by their lower case names with their values as they are written
+     * in the source (character references are not resolved).
+     */
+    final Map<String, String> attributes;
+
+    final List<Node> children;
+
+    /**
+     * The lower case name of an element or <code>null</code>.
+     */
+    final String name;
+
+    /**
+     * The markup of the whole node. The markup of a text node is its value with unresolved
+     * character references.
+     */
+    final String source;
+
+    final NodeType type;
+
+    Node(final NodeType type, final String name, final Map<String, String> attributes,
+        final List<Node> children, final String source) {
+      this.type = type;
+      this.name = name;
+      this.attributes = attributes;
+      this.children = children;
+      this.source = source;
+    }
+
+    /**
+     * The value of the id attribute or <code>null</code>.
+     */
+    String id() {
+      return (attributes != null) ? attributes.get("id") : null;
+    }
+
+  }
+
+  /**
+   * The type of a node.
+   */
+  enum NodeType {
+
+    /**
+     * An element whose content is not parsed (see {@link MirrorTree}).
+     */
+    ATOMIC_ELEMENT,
+
+    COMMENT,
+
+    ELEMENT,
+
+    TEXT
+
+  }
+
+  /**
+   * An element that is not closed yet.
+   */
+  private static final class OpenElement {
+
+    final Map<String, String> attributes;
+
+    final List<Node> children = new ArrayList<>();
+
+    final String name;
+
+    final int start;
+
+    OpenElement(final String name, final Map<String, String> attributes, final int start) {
+      this.name = name;
+      this.attributes = attributes;
+      this.start = start;
+    }
+
+  }
+
+  /**
+   * Elements whose content is not parsed as HTML or whose content is parsed by rules that the
+   * parser does not follow.
+   */
+  private static final Set<String> ATOMIC_ELEMENTS = names("iframe", "math", "noembed",
+      "noframes", "noscript", "script", "select", "style", "svg", "template", "textarea", "title",
+      "xmp");
+
+  /**
+   * Elements that close an open <code>p</code> element when they start.
+   */
+  private static final Set<String> CLOSING_P = names("address", "article", "aside", "blockquote",
+      "center", "dd", "details", "dialog", "dir", "div", "dl", "dt", "fieldset", "figcaption",
+      "figure", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hgroup", "hr",
+      "li", "listing", "main", "menu", "nav", "ol", "p", "pre", "search", "section", "summary",
+      "table", "ul");
+
+  private static final Pattern ID_SELECTOR_PATTERN = Pattern.compile("-?[A-Za-z_][\\w-]*");
+
+  private static final Set<String> HEADINGS = names("h1", "h2", "h3", "h4", "h5", "h6");
+
+  private static final Set<String> LIST_CONTAINERS = names("menu", "ol", "ul");
+
+  /**
+   * Elements whose leading newline is dropped by the HTML parser.
+   */
+  private static final Set<String> NEWLINE_DROPPING = names("listing", "pre");
+
+  /**
+   * Elements that cannot contain themselves, because the HTML parser closes or drops the inner
+   * one.
+   */
+  private static final Set<String> NOT_NESTED = names("a", "button", "form", "nobr");
+
+  /**
+   * Elements that the HTML parser handles specially in a fragment.
+   */
+  private static final Set<String> REJECTED_ELEMENTS = names("body", "frame", "frameset", "head",
+      "html", "image", "isindex", "plaintext");
+
+  /**
+   * The parts of a table that can contain only whitespace text. Other text is moved before the
+   * table by the HTML parser.
+   */
+  private static final Set<String> TABLE_CONTAINERS = names("colgroup", "table", "tbody", "tfoot",
+      "thead", "tr");
+
+  /**
+   * The elements that can be placed anywhere in the table structure.
+   */
+  private static final Set<String> TABLE_SCRIPTING = names("script", "style", "template");
+
+  private static final Set<String> TABLE_SECTIONS = names("caption", "colgroup", "tbody",
+      "tfoot", "thead");
+
+  private static final Set<String> VOID_ELEMENTS = names("area", "base", "br", "col", "embed",
+      "hr", "img", "input", "keygen", "link", "meta", "param", "source", "track", "wbr");
+
+  /**
+   * Checks whether the top-level nodes are elements with distinct ids, separated by whitespace
+   * only, so each of them can be mirrored with <code>#</code> and its id as selector.
+   */
+  static boolean hasIds(final List<Node> nodes) {
+    Set<String> ids = new HashSet<>();
+    for (Node node : nodes) {
+      if (node.type == NodeType.TEXT) {
+        if (!isWhitespace(node.source)) {
+          return false;
+        }
+      } else if (node.type == NodeType.COMMENT || node.id() == null
+          || !ID_SELECTOR_PATTERN.matcher(node.id()).matches() || !ids.add(node.id())) {
+        return false;
+      }
+    }
+    return !ids.isEmpty();
+  }
+
+  /**
+   * Checks whether the element can be placed at the top of the open elements without being
+   * moved or closed by the HTML parser.
+   */
+  private static boolean isAllowed(final String name, final Deque<OpenElement> openElements) {
+    if (REJECTED_ELEMENTS.contains(name)) {
+      return false;
+    }
+    OpenElement parent = openElements.peek();
+    String parentName = (parent != null) ? parent.name : null;
+    if (!isAllowedInTable(name, parentName)) {
+      return false;
+    }
+    if ("li".equals(name) && parent != null && !LIST_CONTAINERS.contains(parentName)) {
+      return false;
+    }
+    if (("dd".equals(name) || "dt".equals(name)) && parent != null
+        && !"dl".equals(parentName)) {
+      return false;
+    }
+    if (("option".equals(name) || "optgroup".equals(name)) && "option".equals(parentName)) {
+      return false;
+    }
+    if (HEADINGS.contains(name) && HEADINGS.contains(parentName)) {
+      return false;
+    }
+    for (OpenElement ancestor : openElements) {
+      if ((CLOSING_P.contains(name) && "p".equals(ancestor.name))
+          || (NOT_NESTED.contains(name) && name.equals(ancestor.name))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isAllowedInTable(final String name, final String parentName) {
+    if ("table".equals(parentName)) {
+      return TABLE_SECTIONS.contains(name) || TABLE_SCRIPTING.contains(name);
+    }
+    if ("tbody".equals(parentName) || "thead".equals(parentName)
+        || "tfoot".equals(parentName)) {
+      return "tr".equals(name) || TABLE_SCRIPTING.contains(name);
+    }
+    if ("tr".equals(parentName)) {
+      return "td".equals(name) || "th".equals(name) || TABLE_SCRIPTING.contains(name);
+    }
+    if ("colgroup".equals(parentName)) {
+      return "col".equals(name) || "template".equals(name);
+    }
+    if (parentName == null) {
+      return true;
+    }
+    // The parts of a table are dropped outside of their table parent.
+    return !(TABLE_SECTIONS.contains(name) || "tr".equals(name) || "td".equals(name)
+        || "th".equals(name) || "col".equals(name));
+  }
+
+  private static boolean isLetter(final char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static boolean isMarkupStart(final char c) {
+    return isLetter(c) || c == '/' || c == '!' || c == '?';
+  }
+
+  private static boolean isNameChar(final char c) {
+    return isLetter(c) || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == ':'
+        || c == '.';
+  }
+
+  private static boolean isWhitespace(final char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+  }
+
+  private static boolean isWhitespace(final String text) {
+    for (int i = 0; i < text.length(); i++) {
+      if (!isWhitespace(text.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Set<String> names(final String... names) {
+    return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(names)));
+  }
+
+  /**
+   * Parses a fragment.
+   *
+   * @param source
+   *          The markup of the fragment.
+   * @return The top-level nodes of the fragment or <code>null</code> if the fragment contains
+   *         markup that the parser does not accept.
+   */
+  static List<Node> parse(final String source) {
+    return new MirrorTree(source).parse();
+  }
+
+  private final Deque<OpenElement> openElements = new ArrayDeque<>();
+
+  private int position;
+
+  private final String source;
+
+  private final List<Node> topLevelNodes = new ArrayList<>();
+
+  private MirrorTree(final String source) {
+    this.source = source;
+  }
+
+  private void add(final Node node) {
+    OpenElement parent = openElements.peek();
+    if (parent != null) {
+      parent.children.add(node);
+    } else {
+      topLevelNodes.add(node);
+    }
+  }
+
+  /**
+   * Finds the end of an element whose content is not parsed. Nested elements with the same name
+   * are counted, so the end tag of a nested <code>svg</code> does not end the outer one.
+   *
+   * @return The index after the end tag or <code>-1</code> if the element is not closed.
+   */
+  private int findAtomicEnd(final String name, final int contentStart) {
+    boolean rawText = !("math".equals(name) || "select".equals(name) || "svg".equals(name)
+        || "template".equals(name));
+    int depth = 1;
+    int i = contentStart;
+    while (true) {
+      int lt = source.indexOf('<', i);
+      if (lt < 0) {
+        return -1;
+      }
+      if (!rawText && source.startsWith("<!--", lt)) {
+        int commentEnd = source.indexOf("-->", lt + 4);
+        if (commentEnd < 0) {
+          return -1;
+        }
+        i = commentEnd + 3;
+      } else if (source.startsWith("</", lt) && isTagName(lt + 2, name)) {
+        int gt = source.indexOf('>', lt);
+        if (gt < 0) {
+          return -1;
+        }
+        depth--;
+        if (depth == 0) {
+          return gt + 1;
+        }
+        i = gt + 1;
+      } else if (!rawText && isTagName(lt + 1, name)) {
+        int tagEnd = skipTag(lt + 1 + name.length());
+        if (tagEnd < 0) {
+          return -1;
+        }
+        if (source.charAt(tagEnd - 2) != '/') {
+          depth++;
+        }
+        i = tagEnd;
+      } else {
+        i = lt + 1;
+      }
+    }
+  }
+
+  /**
+   * Checks whether the name at the index is the given tag name, followed by a character that ends
+   * the name.
+   */
+  private boolean isTagName(final int index, final String name) {
+    int end = index + name.length();
+    if (!source.regionMatches(true, index, name, 0, name.length()) || end >= source.length()) {
+      return false;
+    }
+    char c = source.charAt(end);
+    return isWhitespace(c) || c == '/' || c == '>';
+  }
+
+  /**
+   * Returns the root element of a fragment that can be compared.
+   *
+   * @param nodes
+   *          The top-level nodes of the fragment or <code>null</code>.
+   * @return The only top-level element if it is not an atomic element and the other top-level nodes
+   *         are whitespace text; otherwise <code>null</code>.
+   */
+  static Node rootElement(final List<Node> nodes) {
+    if (nodes == null) {
+      return null;
+    }
+    Node root = null;
+    for (Node node : nodes) {
+      if (node.type != NodeType.TEXT || !isWhitespace(node.source)) {
+        if (node.type != NodeType.ELEMENT || root != null) {
+          return null;
+        }
+        root = node;
+      }
+    }
+    return root;
+  }
+
+  private List<Node> parse() {
+    int length = source.length();
+    while (position < length) {
+      int lt = source.indexOf('<', position);
+      while (lt >= 0 && lt + 1 < length && !isMarkupStart(source.charAt(lt + 1))) {
+        lt = source.indexOf('<', lt + 1);
+      }
+      int textEnd = (lt < 0) ? length : lt;
+      if (textEnd > position && !parseText(textEnd)) {
+        return null;
+      }
+      if (lt < 0) {
+        break;
+      }
+      boolean parsed;
+      if (source.startsWith("<!--", lt)) {
+        parsed = parseComment(lt);
+      } else if (source.startsWith("</", lt)) {
+        parsed = parseEndTag(lt);
+      } else if (lt + 1 < length && isLetter(source.charAt(lt + 1))) {
+        parsed = parseStartTag(lt);
+      } else {
+        // Doctype, processing instruction, CDATA or a bogus end tag.
+        parsed = false;
+      }
+      if (!parsed) {
+        return null;
+      }
+    }
+    return openElements.isEmpty() ? topLevelNodes : null;
+  }
+
+  /**
+   * Parses the attributes of a start tag.
+   *
+   * @return The index after the start tag or <code>-1</code> if the tag is malformed. The index
+   *         before the closing <code>&gt;</code> is <code>/</code> if the tag is self-closing.
+   */
+  private int parseAttributes(final int from, final Map<String, String> attributes) {
+    int length = source.length();
+    int i = from;
+    while (i < length) {
+      char c = source.charAt(i);
+      if (isWhitespace(c)) {
+        i++;
+      } else if (c == '>') {
+        return i + 1;
+      } else if (c == '/') {
+        return (i + 1 < length && source.charAt(i + 1) == '>') ? i + 2 : -1;
+      } else if (c == '=' || c == '"' || c == '\'' || c == '<') {
+        return -1;
+      } else {
+        int nameStart = i;
+        while (i < length && !isWhitespace(source.charAt(i)) && "/>=\"'<".indexOf(
+            source.charAt(i)) < 0) {
+          i++;
+        }
+        String name = source.substring(nameStart, i).toLowerCase(Locale.ENGLISH);
+        while (i < length && isWhitespace(source.charAt(i))) {
+          i++;
+        }
+        String value = "";
+        if (i < length && source.charAt(i) == '=') {
+          i++;
+          while (i < length && isWhitespace(source.charAt(i))) {
+            i++;
+          }
+          if (i >= length) {
+            return -1;
+          }
+          char quote = source.charAt(i);
+          if (quote == '"' || quote == '\'') {
+            int valueEnd = source.indexOf(quote, i + 1);
+            if (valueEnd < 0) {
+              return -1;
+            }
+            value = source.substring(i + 1, valueEnd);
+            i = valueEnd + 1;
+          } else {
+            int valueStart = i;
+            while (i < length && !isWhitespace(source.charAt(i)) && source.charAt(i) != '>') {
+              if ("\"'<=`".indexOf(source.charAt(i)) >= 0) {
+                return -1;
+              }
+              i++;
+            }
+            value = source.substring(valueStart, i);
+          }
+        }
+        if (!attributes.containsKey(name)) {
+          attributes.put(name, value);
+        }
+      }
+    }
+    return -1;
+  }
+
+  private boolean parseComment(final int start) {
+    int end = source.indexOf("-->", start + 4);
+    if (end < 0 || source.startsWith(">", start + 4) || source.startsWith("->", start + 4)) {
+      return false;
+    }
+    int bangEnd = source.indexOf("--!>", start + 4);
+    if (bangEnd >= 0 && bangEnd < end) {
+      // The HTML parser ends the comment here.
+      return false;
+    }
+    position = end + 3;
+    add(new Node(NodeType.COMMENT, null, null, null, source.substring(start, position)));
+    return true;
+  }
+
+  private boolean parseEndTag(final int start) {
+    int nameStart = start + 2;
+    int i = nameStart;
+    while (i < source.length() && isNameChar(source.charAt(i))) {
+      i++;
+    }
+    if (i == nameStart) {
+      return false;
+    }
+    String name = source.substring(nameStart, i).toLowerCase(Locale.ENGLISH);
+    while (i < source.length() && isWhitespace(source.charAt(i))) {
+      i++;
+    }
+    OpenElement element = openElements.peek();
+    if (i >= source.length() || source.charAt(i) != '>' || element == null
+        || !element.name.equals(name)) {
+      return false;
+    }
+    openElements.pop();
+    position = i + 1;
+    add(new Node(NodeType.ELEMENT, name, element.attributes, element.children,
+        source.substring(element.start, position)));
+    return true;
+  }
+
+  private boolean parseStartTag(final int start) {
+    int nameStart = start + 1;
+    int i = nameStart;
+    while (i < source.length() && isNameChar(source.charAt(i))) {
+      i++;
+    }
+    if (i >= source.length()
+        || !(isWhitespace(source.charAt(i)) || "/>".indexOf(source.charAt(i)) >= 0)) {
+      return false;
+    }
+    String name = source.substring(nameStart, i).toLowerCase(Locale.ENGLISH);
+    if (!isAllowed(name, openElements)) {
+      return false;
+    }
+    Map<String, String> attributes = new LinkedHashMap<>();
+    int tagEnd = parseAttributes(i, attributes);
+    if (tagEnd < 0) {
+      return false;
+    }
+    boolean selfClosing = source.charAt(tagEnd - 2) == '/';
+    if (VOID_ELEMENTS.contains(name)) {
+      position = tagEnd;
+      add(new Node(NodeType.ELEMENT, name, attributes, Collections.<Node> emptyList(),
+          source.substring(start, position)));
+      return true;
+    }
+    if (selfClosing) {
+      // The HTML parser ignores the slash of a non-void element, so it would stay open.
+      return false;
+    }
+    if (ATOMIC_ELEMENTS.contains(name)) {
+      int end = findAtomicEnd(name, tagEnd);
+      if (end < 0) {
+        return false;
+      }
+      position = end;
+      add(new Node(NodeType.ATOMIC_ELEMENT, name, attributes, null,
+          source.substring(start, position)));
+      return true;
+    }
+    position = tagEnd;
+    if (NEWLINE_DROPPING.contains(name)) {
+      if (source.startsWith("\r\n", position)) {
+        position += 2;
+      } else if (source.startsWith("\n", position) || source.startsWith("\r", position)) {
+        position++;
+      }
+    }
+    openElements.push(new OpenElement(name, attributes, start));
+    return true;
+  }
+
+  private boolean parseText(final int end) {
+    String text = source.substring(position, end);
+    OpenElement parent = openElements.peek();
+    if (parent != null && TABLE_CONTAINERS.contains(parent.name) && !isWhitespace(text)) {
+      return false;
+    }
+    position = end;
+    add(new Node(NodeType.TEXT, null, null, null, text));
+    return true;
+  }
+
+  /**
+   * Skips the attributes of a tag in a foreign element.
+   *
+   * @return The index after the tag or <code>-1</code> if it is not closed.
+   */
+  private int skipTag(final int from) {
+    int i = from;
+    while (i < source.length()) {
+      char c = source.charAt(i);
+      if (c == '"' || c == '\'') {
+        int valueEnd = source.indexOf(c, i + 1);
+        if (valueEnd < 0) {
+          return -1;
+        }
+        i = valueEnd + 1;
+      } else if (c == '>') {
+        return i + 1;
+      } else {
+        i++;
+      }
+    }
+    return -1;
+  }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+/**
+ * The way how {@link PartialResponseBuilder} writes the partial response to the servlet response.
+ */
+public enum OutputMode {
+
+  /**
+   * The request is put into asynchronous mode and the partial response is written to the output
+   * stream of the response with a <code>WriteListener</code>. The written bytes are queued and they
+   * are sent only when the output stream is ready, so the thread that builds the partial response
+   * is not blocked by slow clients. The builder must be created with a request that supports
+   * asynchronous processing, otherwise it throws an {@link IllegalStateException}.
+   *
+   * @see PartialResponseBuilder#completion()
+   */
+  ASYNC,
+
+  /**
+   * The partial response is collected in a grow-only byte buffer that is reused by the builders of
+   * the same thread and it is written to the output stream of the response with one call when the
+   * builder is closed (or flushed). Apart from the builder and its writer, writing a partial
+   * response does not allocate memory once the buffer of the thread is large enough.
+   */
+  BUFFERED,
+
+  /**
+   * The partial response is written as bytes to the output stream of the response. The constant
+   * markup of the partial response is encoded only once and content providers get a writer that
+   * encodes into the same buffer.
+   */
+  OUTPUT_STREAM,
+
+  /**
+   * The partial response is written to the writer of the response.
+   */
+  WRITER
+
+}
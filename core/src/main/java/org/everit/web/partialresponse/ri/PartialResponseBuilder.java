@@ -15,43 +15,369 @@
  */
 package org.everit.web.partialresponse.ri;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.everit.web.partialresponse.ri.MirrorTree.Node;
+import org.everit.web.partialresponse.ri.MirrorTree.NodeType;
+
 /**
  * Builder class to create partial response.
  */
 public class PartialResponseBuilder implements Closeable {
 
-  private final PrintWriter writer;
+  /**
+   * A command whose content is rendered concurrently and is not written yet.
+   */
+  private static final class PendingCommand {
+
+    final CompletableFuture<byte[]> content;
+
+    final String selector;
+
+    final CommandType type;
+
+    PendingCommand(final CommandType type, final String selector,
+        final CompletableFuture<byte[]> content) {
+      this.type = type;
+      this.selector = selector;
+      this.content = content;
+    }
+
+    /**
+     * Waits until the content is rendered and rethrows the exception of the content provider if
+     * rendering failed.
+     */
+    byte[] join() {
+      try {
+        return content.join();
+      } catch (CompletionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw e;
+      }
+    }
+
+  }
+
+  private static final int INITIAL_RENDER_BUFFER_SIZE = 1024;
 
   /**
-   * Constructor.
+   * Writes a partial response into memory instead of a servlet response, e.g. to push the same
+   * update to several clients with {@link PartialUpdateHub}.
+   *
+   * @param commands
+   *          Adds the commands to the provided builder. The builder is closed afterwards.
+   * @return The UTF-8 encoded partial response.
+   */
+  public static byte[] render(final Consumer<PartialResponseBuilder> commands) {
+    Objects.requireNonNull(commands, "Commands cannot be null!");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(
+        new StreamResponseOutput(out, false), new PartialResponseConfiguration())) {
+      commands.accept(prb);
+    }
+    return out.toByteArray();
+  }
+
+  private AsyncOutputStream asyncOutput;
+
+  private final FragmentVersions clientVersions;
+
+  private final CoalescingResponseOutput coalescingOutput;
+
+  private int commandCount;
+
+  /**
+   * The selector of the command that is being written, if the commands are measured.
+   */
+  private String commandSelector;
+
+  private int commandsSinceFlush;
+
+  /**
+   * The size of the output when the command that is being written started, if the commands are
+   * measured.
+   */
+  private long commandStartSize;
+
+  private final LinkedBlockingQueue<PendingCommand> completedFills = new LinkedBlockingQueue<>();
+
+  private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+  /**
+   * The mirror of the session or <code>null</code> if nothing is mirrored.
+   */
+  private final DomMirror domMirror;
+
+  private final FlushPolicy flushPolicy;
+
+  /**
+   * The metrics or <code>null</code> if nothing is measured.
+   */
+  private final PartialResponseMetrics metrics;
+
+  /**
+   * The versions of the mirrored fragments that the client will hold after the commands of this
+   * response are applied.
+   */
+  private final Map<String, String> mirroredVersions = new HashMap<>();
+
+  /**
+   * Whether the client still holds the reported and the mirrored versions in the state they were
+   * sent. Other commands may change the content of a mirrored fragment on the client side, so no
+   * patch is written after them.
+   */
+  private boolean patchable = true;
+
+  private final ResponseOutput output;
+
+  private final ArrayDeque<PendingCommand> pendingCommands = new ArrayDeque<>();
+
+  private int pendingFillCount;
+
+  private final Executor renderExecutor;
+
+  private final HttpServletResponse response;
+
+  private int skippedCommandCount;
+
+  private int slotCount;
+
+  private String slotPrefix;
+
+  private final long startNanos;
+
+  private final boolean writeCommandCount;
+
+  private boolean writingMirrored;
+
+  private long sizeAtLastFlush;
+
+  /**
+   * Constructor that writes the partial response to the writer of the response.
    *
    * @param response
    *          The response where the partial response will be written to. Cannot be
    *          <code>null</code>!
-   * @throws IOException
+   * @throws UncheckedIOException
    *           if writer of response throws an exception.
    */
   public PartialResponseBuilder(final HttpServletResponse response) {
+    this(response, OutputMode.WRITER);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param response
+   *          The response where the partial response will be written to. Cannot be
+   *          <code>null</code>!
+   * @param outputMode
+   *          Whether the partial response should be written to the writer or to the output stream
+   *          of the response. Cannot be <code>null</code>!
+   * @throws UncheckedIOException
+   *           if the writer or output stream of response throws an exception.
+   */
+  public PartialResponseBuilder(final HttpServletResponse response, final OutputMode outputMode) {
+    this(response, new PartialResponseConfiguration().outputMode(outputMode));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param response
+   *          The response where the partial response will be written to. Cannot be
+   *          <code>null</code>!
+   * @param configuration
+   *          The configuration of the builder. Cannot be <code>null</code>!
+   * @throws UncheckedIOException
+   *           if the writer or output stream of response throws an exception.
+   */
+  public PartialResponseBuilder(final HttpServletResponse response,
+      final PartialResponseConfiguration configuration) {
+    this(response, configuration, null);
+  }
+
+  private PartialResponseBuilder(final HttpServletResponse response,
+      final PartialResponseConfiguration configuration, final HttpServletRequest request) {
     Objects.requireNonNull(response, "Response cannot be null!");
+    Objects.requireNonNull(configuration, "Configuration cannot be null!");
 
+    metrics = (configuration.metrics != PartialResponseMetrics.NOOP) ? configuration.metrics
+        : null;
+    startNanos = (metrics != null) ? System.nanoTime() : 0;
+    this.response = response;
+    clientVersions = (request != null) ? FragmentVersions.fromRequest(request)
+        : FragmentVersions.EMPTY;
+    domMirror = (request != null && configuration.domMirrorMaxBytes > 0)
+        ? DomMirror.fromSession(request.getSession(), configuration.domMirrorMaxBytes) : null;
+    flushPolicy = configuration.coalesce ? null : configuration.flushPolicy;
+    writeCommandCount = configuration.commandCount;
+    renderExecutor = configuration.renderExecutor;
+
+    boolean binary = isBinaryFormatAccepted(configuration, request);
+    boolean json = !binary && isJsonFormatAccepted(configuration, request);
+    if (configuration.binaryFormat || configuration.jsonFormat) {
+      response.addHeader("Vary", "Accept");
+    }
     response.setCharacterEncoding(StandardCharsets.UTF_8.name());
-    response.setContentType("text/html");
+    if (binary) {
+      response.setContentType(BinaryResponseOutput.CONTENT_TYPE);
+    } else if (json) {
+      response.setContentType(JsonResponseOutput.CONTENT_TYPE);
+    } else {
+      response.setContentType("text/html");
+    }
+    ResponseOutput responseOutput;
     try {
-      writer = response.getWriter();
+      if (configuration.outputMode == OutputMode.WRITER) {
+        responseOutput = new WriterResponseOutput(response.getWriter(),
+            flushPolicy != null || metrics != null);
+      } else {
+        responseOutput = createStreamOutput(response, configuration, request);
+      }
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
-    writer.write("<partial-response>");
+    if (binary) {
+      responseOutput = new BinaryResponseOutput(responseOutput);
+    } else if (json) {
+      responseOutput = new JsonResponseOutput(responseOutput);
+    }
+    if (configuration.coalesce) {
+      coalescingOutput = new CoalescingResponseOutput(responseOutput);
+      output = coalescingOutput;
+    } else {
+      coalescingOutput = null;
+      output = responseOutput;
+    }
+    output.startResponse();
+  }
+
+  /**
+   * Constructor that reads the fragment versions that the client already holds from the request.
+   * Versioned commands whose version is held by the client are skipped and if every command is
+   * skipped and the response is not committed yet, the response is answered with
+   * <code>304 Not Modified</code>.
+   *
+   * @param request
+   *          The request that may contain the {@value FragmentVersions#HEADER_NAME} header. Cannot
+   *          be <code>null</code>!
+   * @param response
+   *          The response where the partial response will be written to. Cannot be
+   *          <code>null</code>!
+   * @param configuration
+   *          The configuration of the builder. Cannot be <code>null</code>!
+   * @throws IllegalStateException
+   *           if the configuration selects {@link OutputMode#ASYNC} and the request does not
+   *           support asynchronous processing.
+   * @throws UncheckedIOException
+   *           if the writer or output stream of response throws an exception.
+   */
+  public PartialResponseBuilder(final HttpServletRequest request,
+      final HttpServletResponse response, final PartialResponseConfiguration configuration) {
+    this(response, configuration, Objects.requireNonNull(request, "Request cannot be null!"));
+  }
+
+  private PartialResponseBuilder(final ResponseOutput output,
+      final PartialResponseConfiguration configuration) {
+    metrics = (configuration.metrics != PartialResponseMetrics.NOOP) ? configuration.metrics
+        : null;
+    startNanos = (metrics != null) ? System.nanoTime() : 0;
+    this.output = output;
+    coalescingOutput = null;
+    response = null;
+    clientVersions = FragmentVersions.EMPTY;
+    domMirror = null;
+    flushPolicy = configuration.flushPolicy;
+    writeCommandCount = configuration.commandCount;
+    renderExecutor = configuration.renderExecutor;
+    output.startResponse();
+  }
+
+  private ResponseOutput createStreamOutput(final HttpServletResponse response,
+      final PartialResponseConfiguration configuration, final HttpServletRequest request)
+      throws IOException {
+    if (configuration.outputMode == OutputMode.ASYNC) {
+      if (request == null) {
+        throw new IllegalArgumentException("Asynchronous output mode requires the request");
+      }
+      if (!request.isAsyncSupported()) {
+        throw new IllegalStateException(
+            "Asynchronous output mode requires a request that supports asynchronous processing");
+      }
+    }
+    ServletOutputStream servletOutputStream = response.getOutputStream();
+    OutputStream outputStream = servletOutputStream;
+    if (configuration.outputMode == OutputMode.ASYNC) {
+      AsyncContext asyncContext = request.isAsyncStarted() ? request.getAsyncContext()
+          : request.startAsync();
+      asyncOutput = new AsyncOutputStream(servletOutputStream, asyncContext, completion);
+      outputStream = asyncOutput;
+    }
+    boolean compressed = false;
+    ResponseCompression compression = configuration.compression;
+    if (compression != null) {
+      response.addHeader("Vary", "Accept-Encoding");
+      String encoding = null;
+      if (request != null) {
+        encoding = compression.negotiate(request.getHeader("Accept-Encoding"));
+      }
+      if (encoding != null) {
+        outputStream = new CompressingOutputStream(outputStream, response, compression, encoding);
+        compressed = true;
+      }
+    }
+    if (configuration.outputMode == OutputMode.BUFFERED) {
+      return new PooledResponseOutput(outputStream, compressed);
+    }
+    return new StreamResponseOutput(outputStream, compressed);
+  }
+
+  private void afterCommand(final CommandType type) {
+    output.endCommand(type);
+    commandCount++;
+    if (metrics != null) {
+      metrics.commandWritten(type.operation, commandSelector, output.size() - commandStartSize);
+    }
+    if (flushPolicy == null) {
+      return;
+    }
+    commandsSinceFlush++;
+    long size = output.size();
+    if (flushPolicy.shouldFlush(commandsSinceFlush, size - sizeAtLastFlush)) {
+      flush();
+    }
   }
 
   /**
@@ -66,12 +392,37 @@ public class PartialResponseBuilder implements Closeable {
    */
   public PartialResponseBuilder append(final String selector,
       final Consumer<PrintWriter> contentProvider) {
-    writer.write("<partial-append ");
-    writer.write("selector='");
-    writer.write(selector);
-    writer.write("'>");
-    contentProvider.accept(writer);
-    writer.write("</partial-append>");
+    writeCommand(CommandType.APPEND, selector, contentProvider);
+    return this;
+  }
+
+  /**
+   * Appends new content to the HTML.
+   *
+   * @param selector
+   *          The CSS selector of the parent element in which the new content will be appended.
+   * @param content
+   *          The UTF-8 encoded content that should be appended (e.g. a fragment from
+   *          {@link FragmentRenderCache}).
+   * @return The builder.
+   */
+  public PartialResponseBuilder append(final String selector, final byte[] content) {
+    writeCommand(CommandType.APPEND, selector, content);
+    return this;
+  }
+
+  /**
+   * Appends new content to the HTML.
+   *
+   * @param selector
+   *          The CSS selector of the parent element in which the new content will be appended.
+   * @param content
+   *          The remaining UTF-8 encoded bytes of the buffer that should be appended (e.g. a
+   *          resource from {@link StaticFragmentCache}). The position of the buffer is not changed.
+   * @return The builder.
+   */
+  public PartialResponseBuilder append(final String selector, final ByteBuffer content) {
+    writeCommand(CommandType.APPEND, selector, content);
     return this;
   }
 
@@ -85,13 +436,180 @@ public class PartialResponseBuilder implements Closeable {
    * @return The builder.
    */
   public PartialResponseBuilder append(final String selector, final String content) {
-    append(selector, (pwriter) -> pwriter.write(content));
+    writeCommand(CommandType.APPEND, selector, content);
+    return this;
+  }
+
+  /**
+   * Appends new content to the HTML. The content is rendered on the render executor of the
+   * configuration while the caller continues with the next commands, but the command is written to
+   * the response in call order.
+   *
+   * @param selector
+   *          The CSS selector of the parent element in which the new content will be appended.
+   * @param contentProvider
+   *          Writes the content that should be appended to the provided writer. It is called on
+   *          another thread, so it must not depend on state that the caller changes afterwards.
+   * @return The builder.
+   */
+  public PartialResponseBuilder appendConcurrently(final String selector,
+      final Consumer<PrintWriter> contentProvider) {
+    renderConcurrently(CommandType.APPEND, selector, contentProvider);
     return this;
   }
 
   @Override
   public void close() {
-    writer.write("</partial-response>");
+    try {
+      writePendingCommands(true);
+      writeCompletedFills(true);
+      if (commandCount == 0 && skippedCommandCount > 0 && response != null
+          && !response.isCommitted() && output.discard()) {
+        response.resetBuffer();
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      } else {
+        output.endResponse(writeCommandCount ? commandCount : -1);
+      }
+      output.close();
+      if (metrics != null) {
+        metrics.responseWritten(commandCount, System.nanoTime() - startNanos);
+      }
+    } catch (RuntimeException e) {
+      if (asyncOutput != null) {
+        asyncOutput.onError(e);
+      } else {
+        completion.completeExceptionally(e);
+      }
+      throw e;
+    }
+    if (asyncOutput != null) {
+      asyncOutput.close();
+    } else {
+      completion.complete(null);
+    }
+  }
+
+  /**
+   * The completion of the partial response. In {@link OutputMode#ASYNC} mode it is completed when
+   * the whole partial response is written to the client after the builder is closed. In the other
+   * modes it is completed when the builder is closed. If writing the response fails, the stage is
+   * completed exceptionally.
+   *
+   * @return The completion stage.
+   */
+  public CompletionStage<Void> completion() {
+    return completion;
+  }
+
+  /**
+   * Replaces the selected HTML element with a placeholder immediately and with the rendered content
+   * later in the same response. The content is rendered on the render executor of the
+   * configuration and its <code>partial-fill</code> command is written as soon as it is ready,
+   * regardless of the order of the deferred commands, so fast fragments reach the client before
+   * the slow ones. The builder flushes the response before it waits for a deferred fragment, so
+   * the client should process the response while it is downloaded (e.g. with
+   * <code>epr_ajax_streaming</code>).
+   *
+   * @param selector
+   *          The CSS selector of element that will be replaced with the placeholder.
+   * @param placeholder
+   *          The HTML element that is shown until the content arrives (e.g. a spinner). It must
+   *          have one root element that is replaced by the content.
+   * @param contentProvider
+   *          Writes the content that replaces the placeholder to the provided writer. It is called
+   *          on another thread, so it must not depend on state that the caller changes afterwards.
+   * @return The builder.
+   */
+  public PartialResponseBuilder defer(final String selector, final String placeholder,
+      final Consumer<PrintWriter> contentProvider) {
+    Objects.requireNonNull(placeholder, "Placeholder cannot be null!");
+    Objects.requireNonNull(contentProvider, "Content provider cannot be null!");
+    writePendingCommands(true);
+    String slot = nextSlot();
+    startCommand(CommandType.DEFER, selector, slot);
+    output.write(placeholder);
+    afterCommand(CommandType.DEFER);
+
+    PendingCommand fill = new PendingCommand(CommandType.FILL, slot,
+        startRendering(CommandType.DEFER, selector, contentProvider));
+    pendingFillCount++;
+    fill.content.whenComplete((content, cause) -> completedFills.add(fill));
+    return this;
+  }
+
+  private void flush() {
+    output.flush();
+    commandsSinceFlush = 0;
+    sizeAtLastFlush = output.size();
+  }
+
+  /**
+   * The number of bytes that coalescing saved by dropping the commands that were superseded by a
+   * later replace of the same target and by merging the consecutive appends and prepends of the
+   * same selector. The value is final after the builder is closed.
+   *
+   * @return The number of saved bytes or zero if the commands are not coalesced (see
+   *         {@link PartialResponseConfiguration#coalesce(boolean)}).
+   */
+  public long getSavedByteCount() {
+    return (coalescingOutput != null) ? coalescingOutput.savedByteCount() : 0;
+  }
+
+  /**
+   * Decides whether the response is written in the binary format. The binary format is written to
+   * the output stream only, and the coalescing of the commands works on the HTML envelope.
+   */
+  private boolean isBinaryFormatAccepted(final PartialResponseConfiguration configuration,
+      final HttpServletRequest request) {
+    return configuration.binaryFormat && !configuration.coalesce
+        && configuration.outputMode != OutputMode.WRITER && request != null
+        && ResponseOutput.isAccepted(request.getHeader("Accept"),
+            BinaryResponseOutput.CONTENT_TYPE);
+  }
+
+  /**
+   * Decides whether the response is written in the JSON format. The coalescing of the commands
+   * works on the HTML envelope.
+   */
+  private boolean isJsonFormatAccepted(final PartialResponseConfiguration configuration,
+      final HttpServletRequest request) {
+    return configuration.jsonFormat && !configuration.coalesce && request != null
+        && ResponseOutput.isAccepted(request.getHeader("Accept"), JsonResponseOutput.CONTENT_TYPE);
+  }
+
+  /**
+   * Generates a slot id that is unique within the document, even if several deferred responses
+   * are processed at the same time.
+   */
+  private String nextSlot() {
+    if (slotPrefix == null) {
+      slotPrefix = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE,
+          Character.MAX_RADIX) + '-';
+    }
+    slotCount++;
+    return slotPrefix + slotCount;
+  }
+
+  /**
+   * Patches the children of the selected element by their keys instead of replacing the whole
+   * element. Only the inserted, moved, updated and removed children are touched on the client side.
+   *
+   * @param selector
+   *          The CSS selector of the element whose children are patched.
+   * @param keyAttribute
+   *          The name of the attribute that identifies the children (e.g. data-key).
+   * @param patchProvider
+   *          Writes the operations to the provided {@link ListPatchWriter}.
+   * @return The builder.
+   */
+  public PartialResponseBuilder patchList(final String selector, final String keyAttribute,
+      final Consumer<ListPatchWriter> patchProvider) {
+    Objects.requireNonNull(keyAttribute, "Key attribute cannot be null!");
+    writePendingCommands(true);
+    startCommand(CommandType.PATCH_LIST, selector, keyAttribute);
+    patchProvider.accept(new ListPatchWriter(output));
+    afterCommand(CommandType.PATCH_LIST);
+    return this;
   }
 
   /**
@@ -106,12 +624,37 @@ public class PartialResponseBuilder implements Closeable {
    */
   public PartialResponseBuilder prepend(final String selector,
       final Consumer<PrintWriter> contentProvider) {
-    writer.write("<partial-prepend ");
-    writer.write("selector='");
-    writer.write(selector);
-    writer.write("'>");
-    contentProvider.accept(writer);
-    writer.write("</partial-prepend>");
+    writeCommand(CommandType.PREPEND, selector, contentProvider);
+    return this;
+  }
+
+  /**
+   * Prepends new content to the HTML.
+   *
+   * @param selector
+   *          The CSS selector of the parent element in which the new content will be prepended.
+   * @param content
+   *          The UTF-8 encoded content that should be prepended (e.g. a fragment from
+   *          {@link FragmentRenderCache}).
+   * @return The builder.
+   */
+  public PartialResponseBuilder prepend(final String selector, final byte[] content) {
+    writeCommand(CommandType.PREPEND, selector, content);
+    return this;
+  }
+
+  /**
+   * Prepends new content to the HTML.
+   *
+   * @param selector
+   *          The CSS selector of the parent element in which the new content will be prepended.
+   * @param content
+   *          The remaining UTF-8 encoded bytes of the buffer that should be prepended (e.g. a
+   *          resource from {@link StaticFragmentCache}). The position of the buffer is not changed.
+   * @return The builder.
+   */
+  public PartialResponseBuilder prepend(final String selector, final ByteBuffer content) {
+    writeCommand(CommandType.PREPEND, selector, content);
     return this;
   }
 
@@ -125,7 +668,96 @@ public class PartialResponseBuilder implements Closeable {
    * @return The builder.
    */
   public PartialResponseBuilder prepend(final String selector, final String content) {
-    prepend(selector, (pwriter) -> pwriter.write(content));
+    writeCommand(CommandType.PREPEND, selector, content);
+    return this;
+  }
+
+  /**
+   * Prepends new content to the HTML. The content is rendered on the render executor of the
+   * configuration while the caller continues with the next commands, but the command is written to
+   * the response in call order.
+   *
+   * @param selector
+   *          The CSS selector of the parent element in which the new content will be prepended.
+   * @param contentProvider
+   *          Writes the content that should be prepended to the provided writer. It is called on
+   *          another thread, so it must not depend on state that the caller changes afterwards.
+   * @return The builder.
+   */
+  public PartialResponseBuilder prependConcurrently(final String selector,
+      final Consumer<PrintWriter> contentProvider) {
+    renderConcurrently(CommandType.PREPEND, selector, contentProvider);
+    return this;
+  }
+
+  private void renderConcurrently(final CommandType type, final String selector,
+      final Consumer<PrintWriter> contentProvider) {
+    Objects.requireNonNull(contentProvider, "Content provider cannot be null!");
+    pendingCommands.add(new PendingCommand(type, selector,
+        startRendering(type, selector, contentProvider)));
+    writePendingCommands(false);
+  }
+
+  private void renderContent(final CommandType type, final String selector,
+      final Consumer<PrintWriter> contentProvider) {
+    if (metrics == null) {
+      contentProvider.accept(output.writer());
+      return;
+    }
+    long renderStartNanos = System.nanoTime();
+    contentProvider.accept(output.writer());
+    metrics.contentRendered(type.operation, selector, System.nanoTime() - renderStartNanos);
+  }
+
+  /**
+   * Renders the content of a mirrored command into memory, as it is compared before it is written.
+   */
+  private String renderToString(final CommandType type, final String selector,
+      final Consumer<PrintWriter> contentProvider) {
+    long renderStartNanos = (metrics != null) ? System.nanoTime() : 0;
+    byte[] content = Utf8Buffer.render(contentProvider, INITIAL_RENDER_BUFFER_SIZE);
+    if (metrics != null) {
+      metrics.contentRendered(type.operation, selector, System.nanoTime() - renderStartNanos);
+    }
+    return new String(content, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Replaces the selected HTML element.
+   *
+   * @param selector
+   *          The CSS selector of element that will be replaced with the new content.
+   * @param newContent
+   *          The UTF-8 encoded content that should replace the old one (e.g. a fragment from
+   *          {@link FragmentRenderCache}).
+   * @return The builder.
+   */
+  public PartialResponseBuilder replace(final String selector, final byte[] newContent) {
+    if (domMirror != null) {
+      writeMirrored(selector, new String(newContent, StandardCharsets.UTF_8));
+    } else {
+      writeCommand(CommandType.REPLACE, selector, newContent);
+    }
+    return this;
+  }
+
+  /**
+   * Replaces the selected HTML element.
+   *
+   * @param selector
+   *          The CSS selector of element that will be replaced with the new content.
+   * @param newContent
+   *          The remaining UTF-8 encoded bytes of the buffer that should replace the old one (e.g.
+   *          a resource from {@link StaticFragmentCache}). The position of the buffer is not
+   *          changed.
+   * @return The builder.
+   */
+  public PartialResponseBuilder replace(final String selector, final ByteBuffer newContent) {
+    if (domMirror != null) {
+      writeMirrored(selector, StandardCharsets.UTF_8.decode(newContent.duplicate()).toString());
+    } else {
+      writeCommand(CommandType.REPLACE, selector, newContent);
+    }
     return this;
   }
 
@@ -140,12 +772,11 @@ public class PartialResponseBuilder implements Closeable {
    */
   public PartialResponseBuilder replace(final String selector,
       final Consumer<PrintWriter> contentProvider) {
-    writer.write("<partial-replace ");
-    writer.write("selector='");
-    writer.write(selector);
-    writer.write("'>");
-    contentProvider.accept(writer);
-    writer.write("</partial-replace>");
+    if (domMirror != null) {
+      writeMirrored(selector, renderToString(CommandType.REPLACE, selector, contentProvider));
+    } else {
+      writeCommand(CommandType.REPLACE, selector, contentProvider);
+    }
     return this;
   }
 
@@ -159,7 +790,119 @@ public class PartialResponseBuilder implements Closeable {
    * @return The builder.
    */
   public PartialResponseBuilder replace(final String selector, final String newContent) {
-    replace(selector, (pwriter) -> pwriter.write(newContent));
+    if (domMirror != null) {
+      writeMirrored(selector, newContent);
+    } else {
+      writeCommand(CommandType.REPLACE, selector, newContent);
+    }
+    return this;
+  }
+
+  /**
+   * Replaces the selected HTML element unless the client already holds the same version of it.
+   *
+   * @param selector
+   *          The CSS selector of element that will be replaced with the new content. The client
+   *          sends the version back with the selector as its key.
+   * @param version
+   *          The version of the new content (e.g. {@link FragmentVersions#hash(byte[])}). Cannot
+   *          be <code>null</code>!
+   * @param newContent
+   *          The UTF-8 encoded content that should replace the old one.
+   * @return The builder.
+   */
+  public PartialResponseBuilder replace(final String selector, final String version,
+      final byte[] newContent) {
+    if (!skipCurrent(selector, version)) {
+      writeVersionedStart(CommandType.REPLACE, selector, version);
+      output.write(newContent);
+      afterCommand(CommandType.REPLACE);
+    }
+    return this;
+  }
+
+  /**
+   * Replaces the selected HTML element unless the client already holds the same version of it. The
+   * content provider is not called if the command is skipped.
+   *
+   * @param selector
+   *          The CSS selector of element that will be replaced with the new content. The client
+   *          sends the version back with the selector as its key.
+   * @param version
+   *          The version of the new content. Cannot be <code>null</code>!
+   * @param contentProvider
+   *          Writes the content that should replace the old one(s) to the provided writer.
+   * @return The builder.
+   */
+  public PartialResponseBuilder replace(final String selector, final String version,
+      final Consumer<PrintWriter> contentProvider) {
+    if (!skipCurrent(selector, version)) {
+      writeVersionedStart(CommandType.REPLACE, selector, version);
+      renderContent(CommandType.REPLACE, selector, contentProvider);
+      afterCommand(CommandType.REPLACE);
+    }
+    return this;
+  }
+
+  /**
+   * Replaces the selected HTML element unless the client already holds the same version of it.
+   *
+   * @param selector
+   *          The CSS selector of element that will be replaced with the new content.
+   * @param version
+   *          The version of the new content. Cannot be <code>null</code>!
+   * @param newContent
+   *          The new content that should replace the old one.
+   * @return The builder.
+   */
+  public PartialResponseBuilder replace(final String selector, final String version,
+      final String newContent) {
+    if (!skipCurrent(selector, version)) {
+      writeVersionedStart(CommandType.REPLACE, selector, version);
+      output.write(newContent);
+      afterCommand(CommandType.REPLACE);
+    }
+    return this;
+  }
+
+  /**
+   * Replaces an existing HTML element that has the same id as the one in newContent.
+   *
+   * @param newContent
+   *          One ore more UTF-8 encoded HTML elements that will be replaced in the HTML by their
+   *          ids (e.g. a fragment from {@link FragmentRenderCache}).
+   * @return the builder.
+   */
+  public PartialResponseBuilder replaceById(final byte[] newContent) {
+    if (domMirror != null) {
+      writeMirroredById(new String(newContent, StandardCharsets.UTF_8));
+      return this;
+    }
+    writePendingCommands(true);
+    startCommand(CommandType.REPLACE_BY_ID, null, null);
+    output.write(newContent);
+    afterCommand(CommandType.REPLACE_BY_ID);
+    return this;
+  }
+
+  /**
+   * Replaces an existing HTML element that has the same id as the one in newContent.
+   *
+   * @param newContent
+   *          The remaining bytes of the buffer: one or more UTF-8 encoded HTML elements that will
+   *          be replaced in the HTML by their ids (e.g. a resource from
+   *          {@link StaticFragmentCache}). The position of the buffer is not changed.
+   * @return the builder.
+   */
+  public PartialResponseBuilder replaceById(final ByteBuffer newContent) {
+    if (domMirror != null) {
+      writeMirroredById(StandardCharsets.UTF_8.decode(newContent.duplicate()).toString());
+      return this;
+    }
+    writePendingCommands(true);
+    startCommand(CommandType.REPLACE_BY_ID, null, null);
+    output.write(newContent);
+    afterCommand(CommandType.REPLACE_BY_ID);
     return this;
   }
 
@@ -172,9 +915,14 @@ public class PartialResponseBuilder implements Closeable {
    * @return the builder.
    */
   public PartialResponseBuilder replaceById(final Consumer<PrintWriter> contentProvider) {
-    writer.write("<partial-replace>");
-    contentProvider.accept(writer);
-    writer.write("</partial-replace>");
+    if (domMirror != null) {
+      writeMirroredById(renderToString(CommandType.REPLACE_BY_ID, null, contentProvider));
+      return this;
+    }
+    writePendingCommands(true);
+    startCommand(CommandType.REPLACE_BY_ID, null, null);
+    renderContent(CommandType.REPLACE_BY_ID, null, contentProvider);
+    afterCommand(CommandType.REPLACE_BY_ID);
     return this;
   }
 
@@ -186,8 +934,340 @@ public class PartialResponseBuilder implements Closeable {
    * @return the builder.
    */
   public PartialResponseBuilder replaceById(final String newContent) {
-    replaceById((pwriter) -> pwriter.write(newContent));
+    if (domMirror != null) {
+      writeMirroredById(newContent);
+      return this;
+    }
+    writePendingCommands(true);
+    startCommand(CommandType.REPLACE_BY_ID, null, null);
+    output.write(newContent);
+    afterCommand(CommandType.REPLACE_BY_ID);
     return this;
   }
 
+  /**
+   * Replaces the HTML element with the given id unless the client already holds the same version
+   * of it.
+   *
+   * @param elementId
+   *          The id of the element that is replaced. The client sends the version back with
+   *          <code>#</code> and the id as its key. Cannot be <code>null</code>!
+   * @param version
+   *          The version of the new content. Cannot be <code>null</code>!
+   * @param newContent
+   *          The UTF-8 encoded HTML element that has the same id.
+   * @return the builder.
+   */
+  public PartialResponseBuilder replaceById(final String elementId, final String version,
+      final byte[] newContent) {
+    if (!skipCurrent('#' + elementId, version)) {
+      writeVersionedStart(CommandType.REPLACE_BY_ID_VERSIONED, elementId, version);
+      output.write(newContent);
+      afterCommand(CommandType.REPLACE_BY_ID_VERSIONED);
+    }
+    return this;
+  }
+
+  /**
+   * Replaces the HTML element with the given id unless the client already holds the same version
+   * of it. The content provider is not called if the command is skipped.
+   *
+   * @param elementId
+   *          The id of the element that is replaced. The client sends the version back with
+   *          <code>#</code> and the id as its key. Cannot be <code>null</code>!
+   * @param version
+   *          The version of the new content. Cannot be <code>null</code>!
+   * @param contentProvider
+   *          Writes the new element that has the same id to the provided writer.
+   * @return the builder.
+   */
+  public PartialResponseBuilder replaceById(final String elementId, final String version,
+      final Consumer<PrintWriter> contentProvider) {
+    if (!skipCurrent('#' + elementId, version)) {
+      writeVersionedStart(CommandType.REPLACE_BY_ID_VERSIONED, elementId, version);
+      renderContent(CommandType.REPLACE_BY_ID_VERSIONED, elementId, contentProvider);
+      afterCommand(CommandType.REPLACE_BY_ID_VERSIONED);
+    }
+    return this;
+  }
+
+  /**
+   * Replaces the HTML element with the given id unless the client already holds the same version
+   * of it.
+   *
+   * @param elementId
+   *          The id of the element that is replaced. Cannot be <code>null</code>!
+   * @param version
+   *          The version of the new content. Cannot be <code>null</code>!
+   * @param newContent
+   *          The new HTML element that has the same id.
+   * @return the builder.
+   */
+  public PartialResponseBuilder replaceById(final String elementId, final String version,
+      final String newContent) {
+    if (!skipCurrent('#' + elementId, version)) {
+      writeVersionedStart(CommandType.REPLACE_BY_ID_VERSIONED, elementId, version);
+      output.write(newContent);
+      afterCommand(CommandType.REPLACE_BY_ID_VERSIONED);
+    }
+    return this;
+  }
+
+  /**
+   * Replaces an existing HTML element that has the same id as the one in the rendered content. The
+   * content is rendered on the render executor of the configuration while the caller continues
+   * with the next commands, but the command is written to the response in call order.
+   *
+   * @param contentProvider
+   *          Writes the new element that should replace the original element to the provided
+   *          writer. It is called on another thread, so it must not depend on state that the
+   *          caller changes afterwards.
+   * @return the builder.
+   */
+  public PartialResponseBuilder replaceByIdConcurrently(
+      final Consumer<PrintWriter> contentProvider) {
+    renderConcurrently(CommandType.REPLACE_BY_ID, null, contentProvider);
+    return this;
+  }
+
+  /**
+   * Replaces the selected HTML element. The content is rendered on the render executor of the
+   * configuration while the caller continues with the next commands, but the command is written to
+   * the response in call order. The response is completed only when the slowest fragment is
+   * rendered instead of after the sum of the rendering times.
+   *
+   * @param selector
+   *          The CSS selector of element that will be replaced with the new content.
+   * @param contentProvider
+   *          Writes the content that should replace the old one(s) to the provided writer. It is
+   *          called on another thread, so it must not depend on state that the caller changes
+   *          afterwards.
+   * @return The builder.
+   */
+  public PartialResponseBuilder replaceConcurrently(final String selector,
+      final Consumer<PrintWriter> contentProvider) {
+    renderConcurrently(CommandType.REPLACE, selector, contentProvider);
+    return this;
+  }
+
+  private boolean skipCurrent(final String key, final String version) {
+    Objects.requireNonNull(key, "Selector or element id cannot be null!");
+    Objects.requireNonNull(version, "Version cannot be null!");
+    if (clientVersions.isCurrent(key, version)) {
+      skippedCommandCount++;
+      return true;
+    }
+    return false;
+  }
+
+  private void startCommand(final CommandType type, final String selector,
+      final String attributeValue) {
+    if (!writingMirrored) {
+      patchable = false;
+    }
+    if (metrics != null) {
+      // The slot of a fill command is unique, so it is not reported as selector.
+      commandSelector = (type != CommandType.FILL) ? selector : null;
+      commandStartSize = output.size();
+    }
+    output.startCommand(type, selector, attributeValue);
+  }
+
+  private CompletableFuture<byte[]> startRendering(final CommandType type, final String selector,
+      final Consumer<PrintWriter> contentProvider) {
+    Executor executor = (renderExecutor != null) ? renderExecutor : RenderExecutors.DEFAULT;
+    if (metrics == null) {
+      return CompletableFuture.supplyAsync(
+          () -> Utf8Buffer.render(contentProvider, INITIAL_RENDER_BUFFER_SIZE), executor);
+    }
+    return CompletableFuture.supplyAsync(() -> {
+      long renderStartNanos = System.nanoTime();
+      byte[] content = Utf8Buffer.render(contentProvider, INITIAL_RENDER_BUFFER_SIZE);
+      metrics.contentRendered(type.operation, selector, System.nanoTime() - renderStartNanos);
+      return content;
+    }, executor);
+  }
+
+  private void writeCommand(final CommandType type, final String selector,
+      final byte[] content) {
+    writePendingCommands(true);
+    startCommand(type, selector, null);
+    output.write(content);
+    afterCommand(type);
+  }
+
+  private void writeCommand(final CommandType type, final String selector,
+      final ByteBuffer content) {
+    writePendingCommands(true);
+    startCommand(type, selector, null);
+    output.write(content);
+    afterCommand(type);
+  }
+
+  private void writeCommand(final CommandType type, final String selector,
+      final Consumer<PrintWriter> contentProvider) {
+    writePendingCommands(true);
+    startCommand(type, selector, null);
+    renderContent(type, selector, contentProvider);
+    afterCommand(type);
+  }
+
+  private void writeCommand(final CommandType type, final String selector,
+      final String content) {
+    writePendingCommands(true);
+    startCommand(type, selector, null);
+    output.write(content);
+    afterCommand(type);
+  }
+
+  /**
+   * Writes the fill commands of the deferred fragments in the order as their rendering completes.
+   *
+   * @param wait
+   *          Whether to wait until every deferred fragment is rendered. The response is flushed
+   *          before waiting, so the client can apply the already written commands meanwhile.
+   */
+  private void writeCompletedFills(final boolean wait) {
+    while (pendingFillCount > 0) {
+      PendingCommand fill = completedFills.poll();
+      if (fill == null) {
+        if (!wait) {
+          return;
+        }
+        flush();
+        try {
+          fill = completedFills.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          InterruptedIOException interruptedIOException = new InterruptedIOException(
+              "Interrupted while waiting for a deferred fragment");
+          interruptedIOException.initCause(e);
+          throw new UncheckedIOException(interruptedIOException);
+        }
+      }
+      pendingFillCount--;
+      writeRendered(fill);
+    }
+  }
+
+  /**
+   * Writes a replace of a mirrored fragment: nothing if the client holds the same version of it, a
+   * patch if the client holds the mirrored version and both versions can be compared and the whole
+   * content with its version otherwise.
+   *
+   * @param type
+   *          The type of the command that replaces the whole fragment.
+   * @param target
+   *          The selector or the element id of the command that replaces the whole fragment.
+   * @param key
+   *          The key of the fragment in the mirror that is also the selector of the patch.
+   * @param content
+   *          The new content of the fragment.
+   * @param root
+   *          The root element of the parsed content or <code>null</code> if it cannot be
+   *          compared.
+   */
+  private void writeMirrored(final CommandType type, final String target, final String key,
+      final String content, final Node root) {
+    String version = FragmentVersions.hash(content);
+    String clientVersion = mirroredVersions.containsKey(key) ? mirroredVersions.get(key)
+        : clientVersions.get(key);
+    if (patchable && version.equals(clientVersion)) {
+      skippedCommandCount++;
+      if (root != null) {
+        domMirror.put(key, version, content);
+      }
+      return;
+    }
+    String patch = null;
+    String mirroredContent = patchable ? domMirror.getContent(key, clientVersion) : null;
+    if (root != null && mirroredContent != null) {
+      Node mirroredRoot = MirrorTree.rootElement(MirrorTree.parse(mirroredContent));
+      if (mirroredRoot != null) {
+        patch = MirrorDiff.diff(mirroredRoot, root, content.length());
+      }
+    }
+    writingMirrored = true;
+    try {
+      if (patch != null) {
+        startCommand(CommandType.PATCH, key, clientVersion + ' ' + version);
+        output.write(patch);
+        afterCommand(CommandType.PATCH);
+      } else {
+        startCommand(type, target, version);
+        output.write(content);
+        afterCommand(type);
+      }
+    } finally {
+      writingMirrored = false;
+    }
+    if (root != null) {
+      domMirror.put(key, version, content);
+    } else {
+      domMirror.invalidate(key);
+    }
+    mirroredVersions.put(key, version);
+  }
+
+  private void writeMirrored(final String selector, final String content) {
+    Objects.requireNonNull(selector, "Selector cannot be null!");
+    writePendingCommands(true);
+    writeMirrored(CommandType.REPLACE, selector, selector, content,
+        MirrorTree.rootElement(MirrorTree.parse(content)));
+  }
+
+  /**
+   * Writes a replaceById with a mirrored command for every top-level element. If the content
+   * cannot be parsed or an element has no id, the content is replaced as a whole.
+   */
+  private void writeMirroredById(final String content) {
+    writePendingCommands(true);
+    List<Node> nodes = MirrorTree.parse(content);
+    if (nodes == null || !MirrorTree.hasIds(nodes)) {
+      startCommand(CommandType.REPLACE_BY_ID, null, null);
+      output.write(content);
+      afterCommand(CommandType.REPLACE_BY_ID);
+      return;
+    }
+    for (Node node : nodes) {
+      if (node.type != NodeType.TEXT) {
+        writeMirrored(CommandType.REPLACE_BY_ID_VERSIONED, node.id(), '#' + node.id(),
+            node.source, (node.type == NodeType.ELEMENT) ? node : null);
+      }
+    }
+  }
+
+  /**
+   * Writes the concurrently rendered commands in call order.
+   *
+   * @param wait
+   *          Whether to wait until every pending command is rendered. If <code>false</code>, only
+   *          the rendered commands are written that are not preceded by a command that is still
+   *          being rendered.
+   */
+  private void writePendingCommands(final boolean wait) {
+    PendingCommand command = pendingCommands.peek();
+    while (command != null && (wait || command.content.isDone())) {
+      pendingCommands.poll();
+      writeRendered(command);
+      command = pendingCommands.peek();
+    }
+    if (pendingFillCount > 0) {
+      writeCompletedFills(false);
+    }
+  }
+
+  private void writeRendered(final PendingCommand command) {
+    byte[] content = command.join();
+    startCommand(command.type, command.selector, null);
+    output.write(content);
+    afterCommand(command.type);
+  }
+
+  private void writeVersionedStart(final CommandType type, final String selector,
+      final String version) {
+    writePendingCommands(true);
+    startCommand(type, selector, version);
+  }
+
 }
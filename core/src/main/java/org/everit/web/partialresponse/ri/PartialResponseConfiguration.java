@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * Configuration of {@link PartialResponseBuilder}.
+ */
+public class PartialResponseConfiguration {
+
+  boolean binaryFormat;
+
+  boolean coalesce;
+
+  boolean commandCount;
+
+  ResponseCompression compression;
+
+  long domMirrorMaxBytes;
+
+  FlushPolicy flushPolicy;
+
+  boolean jsonFormat;
+
+  PartialResponseMetrics metrics = PartialResponseMetrics.NOOP;
+
+  OutputMode outputMode = OutputMode.WRITER;
+
+  Executor renderExecutor;
+
+  /**
+   * Sets whether the partial response is written in the compact binary format to the clients that
+   * list <code>application/x-partial-response</code> in their <code>Accept</code> header (e.g.
+   * <code>epr_fetch_binary</code> of partialresponse.js). The other clients get the HTML envelope.
+   * The binary format is negotiated only if the builder is created with the request, the output
+   * mode is not {@link OutputMode#WRITER} and the commands are not coalesced. The content of each
+   * command is collected in memory before it is written, because its length precedes it. By
+   * default the HTML envelope is written.
+   *
+   * @param binaryFormat
+   *          <code>true</code> if the binary format may be negotiated.
+   * @return The configuration.
+   */
+  public PartialResponseConfiguration binaryFormat(final boolean binaryFormat) {
+    this.binaryFormat = binaryFormat;
+    return this;
+  }
+
+  /**
+   * Sets whether the builder keeps the commands in memory until it is closed and writes them
+   * without the redundant ones. A command is dropped if a later replace has the same selector (or
+   * the same element id), and the consecutive appends and prepends of the same selector are merged
+   * into one command. The flush policy is ignored, as nothing is written before the builder is
+   * closed. Coalescing assumes that the content of a replace can be selected with the same selector
+   * as the replaced element, which is true for the typical replace by an id selector. The saved
+   * bytes are available from {@link PartialResponseBuilder#getSavedByteCount()}. By default the
+   * commands are not coalesced.
+   *
+   * @param coalesce
+   *          <code>true</code> if the redundant commands should be dropped.
+   * @return The configuration.
+   */
+  public PartialResponseConfiguration coalesce(final boolean coalesce) {
+    this.coalesce = coalesce;
+    return this;
+  }
+
+  /**
+   * Sets whether the number of commands should be written at the end of the partial response, so
+   * the client can verify that every command was applied. By default the number is not written.
+   *
+   * @param commandCount
+   *          <code>true</code> if the number of commands should be written.
+   * @return The configuration.
+   */
+  public PartialResponseConfiguration commandCount(final boolean commandCount) {
+    this.commandCount = commandCount;
+    return this;
+  }
+
+  /**
+   * Sets the compression of the partial response. The content encoding is negotiated from the
+   * request, so compression is applied only if the builder is created with the request and not in
+   * {@link OutputMode#WRITER} mode. By default the response is not compressed.
+   *
+   * @param compression
+   *          The compression that is shared by the requests or <code>null</code> if the response
+   *          should not be compressed.
+   * @return The configuration.
+   */
+  public PartialResponseConfiguration compression(final ResponseCompression compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  /**
+   * Sets the memory budget of the session-scoped {@link DomMirror} that holds the fragments that
+   * the client received last. If it is set, the builder compares the content of the replace and
+   * replaceById commands that have a String, byte array or content provider argument with the
+   * mirrored content and sends only the changed attributes, texts and child nodes of the fragment
+   * if the client still holds the mirrored version (see <code>epr_ajax_headers</code> of
+   * partialresponse.js). Otherwise, or if the fragment contains markup that cannot be compared
+   * reliably, the fragment is replaced as a whole with its version. A replaceById command is
+   * mirrored only if every top-level element of its content has an id. The mirror is used only if
+   * the builder is created with the request and a session is created for the request if it does not
+   * have one. By default nothing is mirrored.
+   *
+   * @param maxBytesPerSession
+   *          The estimated memory that the mirror of a session can use in bytes or <code>0</code>
+   *          if nothing should be mirrored.
+   * @return The configuration.
+   */
+  public PartialResponseConfiguration domMirror(final long maxBytesPerSession) {
+    if (maxBytesPerSession < 0) {
+      throw new IllegalArgumentException("Maximum size cannot be negative: "
+          + maxBytesPerSession);
+    }
+    domMirrorMaxBytes = maxBytesPerSession;
+    return this;
+  }
+
+  /**
+   * Sets when the builder flushes the already written commands to the client. By default the
+   * builder never flushes.
+   *
+   * @param flushPolicy
+   *          The flush policy or <code>null</code> if the builder should not flush.
+   * @return The configuration.
+   */
+  public PartialResponseConfiguration flushPolicy(final FlushPolicy flushPolicy) {
+    this.flushPolicy = flushPolicy;
+    return this;
+  }
+
+  /**
+   * Sets whether the partial response is written as a JSON array of command objects to the clients
+   * that list <code>application/json</code> in their <code>Accept</code> header (e.g. native
+   * applications that do not want to parse the HTML envelope). The other clients get the HTML
+   * envelope. The JSON format is negotiated only if the builder is created with the request and
+   * the commands are not coalesced. If the binary format is accepted as well, the binary format is
+   * written. By default the HTML envelope is written.
+   *
+   * @param jsonFormat
+   *          <code>true</code> if the JSON format may be negotiated.
+   * @return The configuration.
+   */
+  public PartialResponseConfiguration jsonFormat(final boolean jsonFormat) {
+    this.jsonFormat = jsonFormat;
+    return this;
+  }
+
+  /**
+   * Sets the metrics that receive the size of every command, the rendering time of the content
+   * providers, the number of the commands and the time from the creation of the builder until it
+   * is closed. By default nothing is measured ({@link PartialResponseMetrics#NOOP}).
+   *
+   * @param metrics
+   *          The metrics. Cannot be <code>null</code>!
+   * @return The configuration.
+   */
+  public PartialResponseConfiguration metrics(final PartialResponseMetrics metrics) {
+    this.metrics = Objects.requireNonNull(metrics, "Metrics cannot be null!");
+    return this;
+  }
+
+  /**
+   * Sets how the partial response is written to the servlet response. The default is
+   * {@link OutputMode#WRITER}.
+   *
+   * @param outputMode
+   *          The output mode. Cannot be <code>null</code>!
+   * @return The configuration.
+   */
+  public PartialResponseConfiguration outputMode(final OutputMode outputMode) {
+    this.outputMode = Objects.requireNonNull(outputMode, "Output mode cannot be null!");
+    return this;
+  }
+
+  /**
+   * Sets the executor that renders the content of the commands that are added with the
+   * <code>*Concurrently</code> methods of {@link PartialResponseBuilder} (e.g.
+   * {@link PartialResponseBuilder#replaceConcurrently(String, java.util.function.Consumer)}) and
+   * with {@link PartialResponseBuilder#defer(String, String, java.util.function.Consumer)}. By
+   * default a new virtual thread is started for every fragment on Java 21 and later and the common
+   * fork-join pool is used on earlier versions.
+   *
+   * @param renderExecutor
+   *          The executor or <code>null</code> if the default executor should be used.
+   * @return The configuration.
+   */
+  public PartialResponseConfiguration renderExecutor(final Executor renderExecutor) {
+    this.renderExecutor = renderExecutor;
+    return this;
+  }
+
+}
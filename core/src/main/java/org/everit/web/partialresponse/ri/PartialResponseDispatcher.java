@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Dispatches the AJAX requests to the {@link PartialResponseHandler} of the action that is named
+ * in a request parameter and hands the handler a ready {@link PartialResponseBuilder}. If the
+ * parameter is repeated, the commands of every named action are written into one partial response
+ * (see <code>epr_ajax_batch</code> of partialresponse.js).
+ *
+ * <p>
+ * The routing table is immutable and it is replaced as a whole when a handler is added or removed,
+ * so the requests look up the handlers without locking. The handlers can be registered as OSGi
+ * services by binding them with {@link #bindHandler(PartialResponseHandler, Map)} and
+ * {@link #unbindHandler(PartialResponseHandler, Map)} from a dynamic reference of a component.
+ *
+ * <p>
+ * The latency of every action is recorded in a {@link Histogram}. The histogram of an action
+ * is kept when its handler is replaced.
+ */
+public class PartialResponseDispatcher {
+
+  /**
+   * A handler, the configuration of its partial responses and its latencies.
+   */
+  private static final class Route {
+
+    final PartialResponseConfiguration configuration;
+
+    final PartialResponseHandler handler;
+
+    final Histogram latencies;
+
+    Route(final PartialResponseHandler handler, final PartialResponseConfiguration configuration,
+        final Histogram latencies) {
+      this.handler = handler;
+      this.configuration = configuration;
+      this.latencies = latencies;
+    }
+
+  }
+
+  /**
+   * The service property that holds the name of the action (or an array of names) of a handler
+   * that is bound with {@link #bindHandler(PartialResponseHandler, Map)}.
+   */
+  public static final String ACTION_PROPERTY = "partialresponse.action";
+
+  /**
+   * The default name of the request parameter that holds the name of the action.
+   */
+  public static final String DEFAULT_PARAMETER_NAME = "action";
+
+  private static String[] actionNames(final Map<String, ?> properties) {
+    Objects.requireNonNull(properties, "Properties cannot be null!");
+    Object value = properties.get(ACTION_PROPERTY);
+    if (value instanceof String) {
+      return new String[] { (String) value };
+    }
+    if (value instanceof String[]) {
+      return (String[]) value;
+    }
+    throw new IllegalArgumentException("Service property " + ACTION_PROPERTY
+        + " must be a String or a String array!");
+  }
+
+  private final PartialResponseConfiguration batchConfiguration;
+
+  private final String parameterName;
+
+  private volatile Map<String, Route> routes = Collections.emptyMap();
+
+  /**
+   * Constructor that reads the name of the action from the {@value #DEFAULT_PARAMETER_NAME}
+   * parameter and writes the batches with the default configuration.
+   */
+  public PartialResponseDispatcher() {
+    this(DEFAULT_PARAMETER_NAME, new PartialResponseConfiguration());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param parameterName
+   *          The name of the request parameter that holds the name of the action. Cannot be
+   *          <code>null</code>!
+   * @param batchConfiguration
+   *          The configuration of the partial responses that contain the commands of several
+   *          actions. Cannot be <code>null</code>!
+   */
+  public PartialResponseDispatcher(final String parameterName,
+      final PartialResponseConfiguration batchConfiguration) {
+    this.parameterName = Objects.requireNonNull(parameterName, "Parameter name cannot be null!");
+    this.batchConfiguration = Objects.requireNonNull(batchConfiguration,
+        "Batch configuration cannot be null!");
+  }
+
+  /**
+   * Adds a handler whose partial responses are written with the default configuration. A handler
+   * that was added for the same action before is replaced.
+   *
+   * @param action
+   *          The name of the action. Cannot be <code>null</code>!
+   * @param handler
+   *          The handler. Cannot be <code>null</code>!
+   */
+  public void addHandler(final String action, final PartialResponseHandler handler) {
+    addHandler(action, new PartialResponseConfiguration(), handler);
+  }
+
+  /**
+   * Adds a handler. A handler that was added for the same action before is replaced.
+   *
+   * @param action
+   *          The name of the action. Cannot be <code>null</code>!
+   * @param configuration
+   *          The configuration of the partial response if the action is requested alone. Cannot be
+   *          <code>null</code>!
+   * @param handler
+   *          The handler. Cannot be <code>null</code>!
+   */
+  public synchronized void addHandler(final String action,
+      final PartialResponseConfiguration configuration, final PartialResponseHandler handler) {
+    Objects.requireNonNull(action, "Action cannot be null!");
+    Objects.requireNonNull(configuration, "Configuration cannot be null!");
+    Objects.requireNonNull(handler, "Handler cannot be null!");
+    Map<String, Route> newRoutes = new HashMap<>(routes);
+    Route previous = newRoutes.get(action);
+    Histogram latencies = (previous != null) ? previous.latencies : new Histogram();
+    newRoutes.put(action, new Route(handler, configuration, latencies));
+    routes = Collections.unmodifiableMap(newRoutes);
+  }
+
+  /**
+   * Adds a handler that is registered as an OSGi service with the {@value #ACTION_PROPERTY}
+   * property. Its partial responses are written with the default configuration.
+   *
+   * @param handler
+   *          The service. Cannot be <code>null</code>!
+   * @param properties
+   *          The properties of the service. Cannot be <code>null</code>!
+   * @throws IllegalArgumentException
+   *           if the properties do not contain the name of the action.
+   */
+  public synchronized void bindHandler(final PartialResponseHandler handler,
+      final Map<String, ?> properties) {
+    for (String action : actionNames(properties)) {
+      addHandler(action, handler);
+    }
+  }
+
+  /**
+   * Writes the commands of the actions that are named in the request into the response. The
+   * builder is created with the request, so the fragment versions of the client are taken into
+   * account (see {@link PartialResponseBuilder#PartialResponseBuilder(HttpServletRequest,
+   * HttpServletResponse, PartialResponseConfiguration)}). Unknown actions are skipped.
+   *
+   * @param request
+   *          The request. Cannot be <code>null</code>!
+   * @param response
+   *          The response. Cannot be <code>null</code>!
+   * @return <code>true</code> if at least one action was known and the partial response was
+   *         written; otherwise nothing is written to the response.
+   */
+  public boolean dispatch(final HttpServletRequest request, final HttpServletResponse response) {
+    Objects.requireNonNull(request, "Request cannot be null!");
+    Objects.requireNonNull(response, "Response cannot be null!");
+    String[] actions = request.getParameterValues(parameterName);
+    if (actions == null) {
+      return false;
+    }
+    Map<String, Route> currentRoutes = routes;
+    if (actions.length == 1) {
+      Route route = currentRoutes.get(actions[0]);
+      if (route == null) {
+        return false;
+      }
+      long startNanos = System.nanoTime();
+      try (PartialResponseBuilder prb = new PartialResponseBuilder(request, response,
+          route.configuration)) {
+        route.handler.handle(request, prb);
+      } finally {
+        route.latencies.record(System.nanoTime() - startNanos);
+      }
+      return true;
+    }
+    return dispatchBatch(request, response, actions, currentRoutes);
+  }
+
+  private boolean dispatchBatch(final HttpServletRequest request,
+      final HttpServletResponse response, final String[] actions,
+      final Map<String, Route> currentRoutes) {
+    Route[] batch = new Route[actions.length];
+    boolean known = false;
+    for (int i = 0; i < actions.length; i++) {
+      batch[i] = currentRoutes.get(actions[i]);
+      known |= batch[i] != null;
+    }
+    if (!known) {
+      return false;
+    }
+    try (PartialResponseBuilder prb = new PartialResponseBuilder(request, response,
+        batchConfiguration)) {
+      for (Route route : batch) {
+        if (route != null) {
+          long startNanos = System.nanoTime();
+          try {
+            route.handler.handle(request, prb);
+          } finally {
+            route.latencies.record(System.nanoTime() - startNanos);
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The names of the actions that have a handler.
+   *
+   * @return An immutable snapshot of the names.
+   */
+  public Set<String> getActions() {
+    return routes.keySet();
+  }
+
+  /**
+   * The latencies of an action. If the action is requested alone, the latency contains the
+   * creation and the closing of the builder, including the rendering of the concurrent and
+   * deferred commands. In a batch the latency is the time that the handler spends writing its
+   * commands.
+   *
+   * @param action
+   *          The name of the action.
+   * @return The histogram or <code>null</code> if the action has no handler.
+   */
+  public Histogram getLatencyHistogram(final String action) {
+    Route route = routes.get(action);
+    return (route != null) ? route.latencies : null;
+  }
+
+  /**
+   * Removes the handler of an action if it is the given handler. A handler that replaced it in the
+   * meantime is kept.
+   *
+   * @param action
+   *          The name of the action.
+   * @param handler
+   *          The handler that should be removed.
+   * @return <code>true</code> if the handler was removed.
+   */
+  public synchronized boolean removeHandler(final String action,
+      final PartialResponseHandler handler) {
+    Route route = routes.get(action);
+    if (route == null || route.handler != handler) {
+      return false;
+    }
+    Map<String, Route> newRoutes = new HashMap<>(routes);
+    newRoutes.remove(action);
+    routes = Collections.unmodifiableMap(newRoutes);
+    return true;
+  }
+
+  /**
+   * Removes a handler that was bound with {@link #bindHandler(PartialResponseHandler, Map)}.
+   *
+   * @param handler
+   *          The service.
+   * @param properties
+   *          The properties of the service. Cannot be <code>null</code>!
+   */
+  public synchronized void unbindHandler(final PartialResponseHandler handler,
+      final Map<String, ?> properties) {
+    for (String action : actionNames(properties)) {
+      removeHandler(action, handler);
+    }
+  }
+
+}
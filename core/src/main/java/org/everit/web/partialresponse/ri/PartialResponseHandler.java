@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Writes the commands of an action into a partial response. Handlers are registered to a
+ * {@link PartialResponseDispatcher} with the name of the action that they serve.
+ */
+@FunctionalInterface
+public interface PartialResponseHandler {
+
+  /**
+   * Writes the commands of the action. The builder is created and closed by the dispatcher and it
+   * may contain the commands of other actions of the same request.
+   *
+   * @param request
+   *          The request that selected the action.
+   * @param builder
+   *          The builder where the commands are written.
+   */
+  void handle(HttpServletRequest request, PartialResponseBuilder builder);
+
+}
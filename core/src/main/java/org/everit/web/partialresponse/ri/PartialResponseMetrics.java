@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.PrintWriter;
+import java.util.function.Consumer;
+
+/**
+ * Receives the measurements of the partial responses (see
+ * {@link PartialResponseConfiguration#metrics(PartialResponseMetrics)}). The commands are
+ * identified by their operation (e.g. <code>replace</code>, <code>append</code>,
+ * <code>replaceById</code>, the same as the <code>op</code> property of the JSON format) and their
+ * selector.
+ *
+ * <p>
+ * The methods do nothing by default. If the builder is configured with {@link #NOOP}, it does not
+ * measure anything. The content providers of the concurrent and deferred commands are rendered on
+ * other threads, so the implementations must be thread-safe.
+ */
+public interface PartialResponseMetrics {
+
+  /**
+   * Metrics that ignore the measurements. The builder skips the measurements entirely if it is
+   * configured with this instance.
+   */
+  PartialResponseMetrics NOOP = new PartialResponseMetrics() {
+  };
+
+  /**
+   * Called after a command is written into the partial response.
+   *
+   * @param operation
+   *          The operation of the command.
+   * @param selector
+   *          The selector of the command, the id of the replaced element for versioned
+   *          <code>replaceById</code> commands or <code>null</code> if the command has no selector
+   *          (<code>replaceById</code> and <code>fill</code>).
+   * @param size
+   *          The size of the command including its envelope, in bytes or in characters in
+   *          {@link OutputMode#WRITER} mode, before compression.
+   */
+  default void commandWritten(final String operation, final String selector, final long size) {
+    // Nothing to do.
+  }
+
+  /**
+   * Called after a content provider (a {@link Consumer} of {@link PrintWriter}) rendered the
+   * content of a command.
+   *
+   * @param operation
+   *          The operation of the command.
+   * @param selector
+   *          The selector of the command as in {@link #commandWritten(String, String, long)}.
+   * @param nanos
+   *          The time of the rendering in nanoseconds.
+   */
+  default void contentRendered(final String operation, final String selector, final long nanos) {
+    // Nothing to do.
+  }
+
+  /**
+   * Called when the builder is closed.
+   *
+   * @param commandCount
+   *          The number of the written commands.
+   * @param nanos
+   *          The time from the creation of the builder until it was closed in nanoseconds.
+   */
+  default void responseWritten(final int commandCount, final long nanos) {
+    // Nothing to do.
+  }
+
+}
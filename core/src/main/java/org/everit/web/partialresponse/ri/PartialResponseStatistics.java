@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link PartialResponseMetrics} that collects the measurements into lock-free {@link Histogram}s:
+ * the size of the commands, the rendering time of the content providers, the number of the
+ * commands per response and the time of the responses. The size and the rendering time are also
+ * collected per selector, so the big and slow fragments can be found. The number of the selectors
+ * is limited; the selectors beyond the limit are only counted in the totals.
+ *
+ * <p>
+ * The statistics are thread-safe and should be shared by the builders, e.g. by registering them
+ * as an OSGi service and setting them on the configurations. They can be registered as a JMX MBean
+ * as well (see {@link PartialResponseStatisticsMXBean}).
+ */
+public class PartialResponseStatistics
+    implements PartialResponseMetrics, PartialResponseStatisticsMXBean {
+
+  /**
+   * The default maximum number of the selectors whose histograms are kept.
+   */
+  public static final int DEFAULT_MAX_SELECTORS = 256;
+
+  private static final double P99 = 99;
+
+  private final Histogram commandCounts = new Histogram();
+
+  private final Histogram commandSizes = new Histogram();
+
+  private final int maxSelectors;
+
+  private final Histogram renderNanos = new Histogram();
+
+  private final Histogram responseNanos = new Histogram();
+
+  private final ConcurrentMap<String, Histogram> selectorRenderNanos = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, Histogram> selectorSizes = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor that keeps the histograms of {@value #DEFAULT_MAX_SELECTORS} selectors.
+   */
+  public PartialResponseStatistics() {
+    this(DEFAULT_MAX_SELECTORS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxSelectors
+   *          The maximum number of the selectors whose histograms are kept.
+   * @throws IllegalArgumentException
+   *           if maxSelectors is negative.
+   */
+  public PartialResponseStatistics(final int maxSelectors) {
+    if (maxSelectors < 0) {
+      throw new IllegalArgumentException("Max selectors cannot be negative!");
+    }
+    this.maxSelectors = maxSelectors;
+  }
+
+  @Override
+  public void commandWritten(final String operation, final String selector, final long size) {
+    commandSizes.record(size);
+    Histogram histogram = selectorHistogram(selectorSizes, operation, selector);
+    if (histogram != null) {
+      histogram.record(size);
+    }
+  }
+
+  @Override
+  public void contentRendered(final String operation, final String selector, final long nanos) {
+    renderNanos.record(nanos);
+    Histogram histogram = selectorHistogram(selectorRenderNanos, operation, selector);
+    if (histogram != null) {
+      histogram.record(nanos);
+    }
+  }
+
+  @Override
+  public long getCommandCount() {
+    return commandSizes.getCount();
+  }
+
+  /**
+   * The number of the commands per response.
+   *
+   * @return The histogram.
+   */
+  public Histogram getCommandCounts() {
+    return commandCounts;
+  }
+
+  @Override
+  public long getCommandSize99thPercentile() {
+    return commandSizes.getValueAtPercentile(P99);
+  }
+
+  @Override
+  public long getCommandSizeMax() {
+    return commandSizes.getMax();
+  }
+
+  @Override
+  public long getCommandSizeMean() {
+    return commandSizes.getMean();
+  }
+
+  /**
+   * The size of the commands.
+   *
+   * @return The histogram.
+   */
+  public Histogram getCommandSizes() {
+    return commandSizes;
+  }
+
+  /**
+   * The size of the commands of a selector.
+   *
+   * @param selector
+   *          The selector or the operation of the commands that have no selector (e.g.
+   *          <code>replaceById</code>).
+   * @return The histogram or <code>null</code> if no command of the selector was recorded.
+   */
+  public Histogram getCommandSizes(final String selector) {
+    return selectorSizes.get(selector);
+  }
+
+  @Override
+  public long getRenderNanos99thPercentile() {
+    return renderNanos.getValueAtPercentile(P99);
+  }
+
+  @Override
+  public long getRenderNanosMax() {
+    return renderNanos.getMax();
+  }
+
+  @Override
+  public long getRenderNanosMean() {
+    return renderNanos.getMean();
+  }
+
+  /**
+   * The rendering time of the content providers in nanoseconds.
+   *
+   * @return The histogram.
+   */
+  public Histogram getRenderTimes() {
+    return renderNanos;
+  }
+
+  /**
+   * The rendering time of the content providers of a selector in nanoseconds.
+   *
+   * @param selector
+   *          The selector or the operation of the commands that have no selector.
+   * @return The histogram or <code>null</code> if no rendering of the selector was recorded.
+   */
+  public Histogram getRenderTimes(final String selector) {
+    return selectorRenderNanos.get(selector);
+  }
+
+  @Override
+  public long getResponseCount() {
+    return responseNanos.getCount();
+  }
+
+  @Override
+  public long getResponseNanos99thPercentile() {
+    return responseNanos.getValueAtPercentile(P99);
+  }
+
+  @Override
+  public long getResponseNanosMax() {
+    return responseNanos.getMax();
+  }
+
+  @Override
+  public long getResponseNanosMean() {
+    return responseNanos.getMean();
+  }
+
+  /**
+   * The time from the creation of the builders until they were closed in nanoseconds.
+   *
+   * @return The histogram.
+   */
+  public Histogram getResponseTimes() {
+    return responseNanos;
+  }
+
+  /**
+   * The selectors whose command sizes are kept.
+   *
+   * @return An unmodifiable view of the selectors.
+   */
+  public Set<String> getSelectors() {
+    return Collections.unmodifiableSet(selectorSizes.keySet());
+  }
+
+  @Override
+  public void responseWritten(final int commandCount, final long nanos) {
+    commandCounts.record(commandCount);
+    responseNanos.record(nanos);
+  }
+
+  /**
+   * Looks up the histogram of a selector and creates it if the limit of the selectors is not
+   * reached.
+   */
+  private Histogram selectorHistogram(final ConcurrentMap<String, Histogram> histograms,
+      final String operation, final String selector) {
+    String key = (selector != null) ? selector : operation;
+    Histogram histogram = histograms.get(key);
+    if (histogram == null && histograms.size() < maxSelectors) {
+      histogram = histograms.computeIfAbsent(key, k -> new Histogram());
+    }
+    return histogram;
+  }
+
+}
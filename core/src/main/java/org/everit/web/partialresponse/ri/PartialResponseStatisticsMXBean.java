@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+/**
+ * The management interface of {@link PartialResponseStatistics}, so the statistics can be
+ * registered as a JMX MBean.
+ */
+public interface PartialResponseStatisticsMXBean {
+
+  /**
+   * The number of the written commands.
+   *
+   * @return The number of the commands.
+   */
+  long getCommandCount();
+
+  /**
+   * The 99th percentile of the size of the commands.
+   *
+   * @return The size in bytes (or characters).
+   */
+  long getCommandSize99thPercentile();
+
+  /**
+   * The largest command.
+   *
+   * @return The size in bytes (or characters).
+   */
+  long getCommandSizeMax();
+
+  /**
+   * The average size of the commands.
+   *
+   * @return The size in bytes (or characters).
+   */
+  long getCommandSizeMean();
+
+  /**
+   * The 99th percentile of the rendering time of the content providers.
+   *
+   * @return The time in nanoseconds.
+   */
+  long getRenderNanos99thPercentile();
+
+  /**
+   * The longest rendering time of a content provider.
+   *
+   * @return The time in nanoseconds.
+   */
+  long getRenderNanosMax();
+
+  /**
+   * The average rendering time of the content providers.
+   *
+   * @return The time in nanoseconds.
+   */
+  long getRenderNanosMean();
+
+  /**
+   * The number of the closed builders.
+   *
+   * @return The number of the partial responses.
+   */
+  long getResponseCount();
+
+  /**
+   * The 99th percentile of the time from the creation of the builders until they were closed.
+   *
+   * @return The time in nanoseconds.
+   */
+  long getResponseNanos99thPercentile();
+
+  /**
+   * The longest time from the creation of a builder until it was closed.
+   *
+   * @return The time in nanoseconds.
+   */
+  long getResponseNanosMax();
+
+  /**
+   * The average time from the creation of the builders until they were closed.
+   *
+   * @return The time in nanoseconds.
+   */
+  long getResponseNanosMean();
+
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Pushes partial responses to the subscribed pages over Server-Sent Events, so the pages do not
+ * have to poll the server to learn that nothing changed. A page subscribes with
+ * <code>epr_subscribe(url)</code> and the servlet that serves the url calls
+ * {@link #subscribe(String, HttpServletRequest, HttpServletResponse)}. Server code publishes
+ * updates to the subscribers of a topic with
+ * {@link #publish(String, String, Consumer)}.
+ *
+ * <p>
+ * Every connection has a bounded queue of the updates that are not written yet. An update replaces
+ * the queued update with the same coalescing key (e.g. the selector of a replace), so a slow
+ * client skips the superseded versions. If the queue of a connection is full, the connection is
+ * closed and the browser reconnects. A comment line is sent periodically as heartbeat, so proxies
+ * do not close idle connections and broken connections are detected.
+ *
+ * <p>
+ * The hub requires asynchronous processing of the servlet container. It is thread-safe and should
+ * be shared by the requests.
+ */
+public class PartialUpdateHub implements Closeable {
+
+  /**
+   * The default interval of the heartbeat in milliseconds.
+   */
+  public static final long DEFAULT_HEARTBEAT_MILLIS = 15000;
+
+  /**
+   * The default number of updates that can wait for a client.
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+  /**
+   * The name of the events that contain partial responses.
+   */
+  public static final String EVENT_NAME = "partial-response";
+
+  private static final byte[] DATA_START = "data: ".getBytes(StandardCharsets.UTF_8);
+
+  private static final byte[] EVENT_START = ("event: " + EVENT_NAME + "\n")
+      .getBytes(StandardCharsets.UTF_8);
+
+  private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.UTF_8);
+
+  private static final Object HEARTBEAT_KEY = new Object();
+
+  /**
+   * Encodes a partial response as an event. Every line of the partial response becomes a data line,
+   * because events cannot contain line breaks otherwise.
+   */
+  static byte[] toEvent(final byte[] partialResponse) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(partialResponse.length + 64);
+    out.write(EVENT_START, 0, EVENT_START.length);
+    int lineStart = 0;
+    int i = 0;
+    while (i <= partialResponse.length) {
+      if (i == partialResponse.length || partialResponse[i] == '\n' || partialResponse[i] == '\r') {
+        out.write(DATA_START, 0, DATA_START.length);
+        out.write(partialResponse, lineStart, i - lineStart);
+        out.write('\n');
+        if (i + 1 < partialResponse.length && partialResponse[i] == '\r'
+            && partialResponse[i + 1] == '\n') {
+          i++;
+        }
+        lineStart = i + 1;
+      }
+      i++;
+    }
+    out.write('\n');
+    return out.toByteArray();
+  }
+
+  private final ScheduledExecutorService heartbeatScheduler;
+
+  private final int queueCapacity;
+
+  private final ConcurrentHashMap<String, Set<PartialUpdateSubscription>> subscriptions =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Constructor with the default queue capacity and heartbeat interval.
+   */
+  public PartialUpdateHub() {
+    this(DEFAULT_QUEUE_CAPACITY, DEFAULT_HEARTBEAT_MILLIS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param queueCapacity
+   *          The number of updates that can wait for a client before its connection is closed.
+   * @param heartbeatMillis
+   *          The interval of the heartbeat in milliseconds.
+   * @throws IllegalArgumentException
+   *           if the capacity or the interval is not positive.
+   */
+  public PartialUpdateHub(final int queueCapacity, final long heartbeatMillis) {
+    if (queueCapacity <= 0) {
+      throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+    }
+    if (heartbeatMillis <= 0) {
+      throw new IllegalArgumentException("Heartbeat interval must be positive: " + heartbeatMillis);
+    }
+    this.queueCapacity = queueCapacity;
+    heartbeatScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "partial-update-hub-heartbeat");
+      thread.setDaemon(true);
+      return thread;
+    });
+    heartbeatScheduler.scheduleWithFixedDelay(this::sendHeartbeat, heartbeatMillis,
+        heartbeatMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the heartbeat and closes every connection.
+   */
+  @Override
+  public void close() {
+    heartbeatScheduler.shutdownNow();
+    for (Set<PartialUpdateSubscription> topicSubscriptions : subscriptions.values()) {
+      for (PartialUpdateSubscription subscription : topicSubscriptions) {
+        subscription.close();
+      }
+    }
+  }
+
+  /**
+   * The number of open connections that are subscribed to a topic.
+   *
+   * @param topic
+   *          The topic.
+   * @return The number of connections.
+   */
+  public int getSubscriptionCount(final String topic) {
+    Set<PartialUpdateSubscription> topicSubscriptions = subscriptions.get(topic);
+    return (topicSubscriptions != null) ? topicSubscriptions.size() : 0;
+  }
+
+  /**
+   * Pushes a partial response to every connection that is subscribed to the topic. The partial
+   * response is written only once for all connections and only if there is a subscriber.
+   *
+   * @param topic
+   *          The topic of the update. Cannot be <code>null</code>!
+   * @param coalescingKey
+   *          The update replaces the update with the same key that is still waiting in the queue of
+   *          a connection (e.g. the selector of the replaced element) or <code>null</code> if the
+   *          update does not supersede any other update.
+   * @param commands
+   *          Adds the commands of the update to the provided builder.
+   * @return The number of connections the update was queued for.
+   */
+  public int publish(final String topic, final String coalescingKey,
+      final Consumer<PartialResponseBuilder> commands) {
+    Objects.requireNonNull(topic, "Topic cannot be null!");
+    Set<PartialUpdateSubscription> topicSubscriptions = subscriptions.get(topic);
+    if (topicSubscriptions == null || topicSubscriptions.isEmpty()) {
+      return 0;
+    }
+    byte[] event = toEvent(PartialResponseBuilder.render(commands));
+    Object key = (coalescingKey != null) ? coalescingKey : new Object();
+    int queuedCount = 0;
+    for (PartialUpdateSubscription subscription : topicSubscriptions) {
+      if (subscription.offer(key, event)) {
+        queuedCount++;
+      }
+    }
+    return queuedCount;
+  }
+
+  private void sendHeartbeat() {
+    for (Set<PartialUpdateSubscription> topicSubscriptions : subscriptions.values()) {
+      for (PartialUpdateSubscription subscription : topicSubscriptions) {
+        subscription.offer(HEARTBEAT_KEY, HEARTBEAT);
+      }
+    }
+  }
+
+  /**
+   * Starts the asynchronous processing of the request and keeps the response open as an event
+   * stream until the client disconnects or the hub is closed.
+   *
+   * @param topic
+   *          The topic whose updates are pushed to the client. Cannot be <code>null</code>!
+   * @param request
+   *          The request that supports asynchronous processing.
+   * @param response
+   *          The response where the events are written to.
+   * @throws IllegalStateException
+   *           if the request does not support asynchronous processing.
+   * @throws UncheckedIOException
+   *           if the output stream of the response throws an exception.
+   */
+  public void subscribe(final String topic, final HttpServletRequest request,
+      final HttpServletResponse response) {
+    Objects.requireNonNull(topic, "Topic cannot be null!");
+    response.setContentType("text/event-stream");
+    response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    response.setHeader("Cache-Control", "no-cache");
+    AsyncContext asyncContext = request.isAsyncStarted() ? request.getAsyncContext()
+        : request.startAsync();
+    asyncContext.setTimeout(0);
+    ServletOutputStream outputStream;
+    try {
+      outputStream = response.getOutputStream();
+    } catch (IOException e) {
+      asyncContext.complete();
+      throw new UncheckedIOException(e);
+    }
+    PartialUpdateSubscription subscription = new PartialUpdateSubscription(this, topic,
+        asyncContext, outputStream, queueCapacity);
+    subscriptions.compute(topic, (key, topicSubscriptions) -> {
+      Set<PartialUpdateSubscription> result = topicSubscriptions;
+      if (result == null) {
+        result = ConcurrentHashMap.newKeySet();
+      }
+      result.add(subscription);
+      return result;
+    });
+    // The first heartbeat commits the response, so the browser opens the event source at once.
+    if (!subscription.offer(HEARTBEAT_KEY, HEARTBEAT)) {
+      unsubscribe(subscription);
+    }
+  }
+
+  void unsubscribe(final PartialUpdateSubscription subscription) {
+    subscriptions.computeIfPresent(subscription.topic, (key, topicSubscriptions) -> {
+      topicSubscriptions.remove(subscription);
+      return topicSubscriptions.isEmpty() ? null : topicSubscriptions;
+    });
+  }
+
+}
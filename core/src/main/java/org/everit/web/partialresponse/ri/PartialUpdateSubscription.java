@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * A Server-Sent Events connection of {@link PartialUpdateHub}. The events are queued until the
+ * non-blocking output stream of the response is ready. An event replaces the queued event with the
+ * same key, so a slow client receives only the latest version of an update. If the queue is full,
+ * the client cannot keep up and the connection is closed.
+ */
+final class PartialUpdateSubscription implements WriteListener {
+
+  /**
+   * Removes the subscription from the hub when the connection is closed or fails.
+   */
+  private final class CompletionListener implements AsyncListener {
+
+    @Override
+    public void onComplete(final AsyncEvent event) {
+      close();
+    }
+
+    @Override
+    public void onError(final AsyncEvent event) {
+      close();
+    }
+
+    @Override
+    public void onStartAsync(final AsyncEvent event) {
+      // Nothing to do.
+    }
+
+    @Override
+    public void onTimeout(final AsyncEvent event) {
+      close();
+    }
+
+  }
+
+  private final AsyncContext asyncContext;
+
+  private boolean closed;
+
+  private final LinkedHashMap<Object, byte[]> events = new LinkedHashMap<>();
+
+  private boolean flushRequested;
+
+  private final PartialUpdateHub hub;
+
+  private final int queueCapacity;
+
+  private final ServletOutputStream target;
+
+  final String topic;
+
+  /**
+   * Constructor that registers itself as the write listener of the target.
+   *
+   * @param hub
+   *          The hub that is notified when the subscription is closed.
+   * @param topic
+   *          The topic of the subscription.
+   * @param asyncContext
+   *          The context of the started asynchronous processing.
+   * @param target
+   *          The output stream of the response.
+   * @param queueCapacity
+   *          The maximum number of events that are waiting for the client.
+   */
+  PartialUpdateSubscription(final PartialUpdateHub hub, final String topic,
+      final AsyncContext asyncContext, final ServletOutputStream target, final int queueCapacity) {
+    this.hub = hub;
+    this.topic = topic;
+    this.asyncContext = asyncContext;
+    this.target = target;
+    this.queueCapacity = queueCapacity;
+    asyncContext.addListener(new CompletionListener());
+    target.setWriteListener(this);
+  }
+
+  /**
+   * Closes the connection and removes the subscription from the hub. The client reconnects
+   * automatically.
+   */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    events.clear();
+    hub.unsubscribe(this);
+    try {
+      asyncContext.complete();
+    } catch (IllegalStateException e) {
+      // The asynchronous processing is already completed.
+    }
+  }
+
+  /**
+   * Writes the queued events while the target is ready. If the target is not ready, the container
+   * calls {@link #onWritePossible()} later.
+   */
+  private void drain() {
+    try {
+      while (!closed && target.isReady()) {
+        Iterator<byte[]> iterator = events.values().iterator();
+        if (iterator.hasNext()) {
+          byte[] event = iterator.next();
+          iterator.remove();
+          target.write(event);
+          flushRequested = true;
+        } else if (flushRequested) {
+          flushRequested = false;
+          target.flush();
+        } else {
+          return;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      close();
+    }
+  }
+
+  /**
+   * Queues an event.
+   *
+   * @param key
+   *          The key of the event. A queued event with the same key is dropped.
+   * @param event
+   *          The encoded event.
+   * @return <code>false</code> if the subscription is closed.
+   */
+  synchronized boolean offer(final Object key, final byte[] event) {
+    if (closed) {
+      return false;
+    }
+    events.remove(key);
+    if (events.size() >= queueCapacity) {
+      close();
+      return false;
+    }
+    events.put(key, event);
+    drain();
+    return !closed;
+  }
+
+  @Override
+  public synchronized void onError(final Throwable t) {
+    close();
+  }
+
+  @Override
+  public synchronized void onWritePossible() {
+    drain();
+  }
+
+}
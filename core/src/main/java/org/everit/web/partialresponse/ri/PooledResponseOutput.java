@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link ResponseOutput} that collects the partial response in a grow-only buffer that is reused
+ * by the builders of the same thread. The content is written to the target with one call when the
+ * output is closed or flushed.
+ */
+final class PooledResponseOutput extends ResponseOutput {
+
+  /**
+   * A buffer that is kept by a thread between the builders. The writer is not pooled, because a
+   * content provider may close the writer that it gets.
+   */
+  private static final class PooledBuffer {
+
+    final Utf8Buffer buffer = new Utf8Buffer(INITIAL_CAPACITY, null);
+
+    boolean inUse;
+
+  }
+
+  private static final int INITIAL_CAPACITY = 8192;
+
+  /**
+   * Buffers that grew beyond this size are not kept, so a single large response does not hold the
+   * memory of the thread forever.
+   */
+  private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+  private static final ThreadLocal<PooledBuffer> POOL = ThreadLocal.withInitial(PooledBuffer::new);
+
+  private final boolean closeTarget;
+
+  private long flushedCount;
+
+  private PooledBuffer pooledBuffer;
+
+  private final OutputStream target;
+
+  private final PrintWriter writer;
+
+  /**
+   * Constructor. If the buffer of the current thread is used by another builder (e.g. a builder is
+   * created within a content provider), a new buffer is allocated that is not pooled.
+   *
+   * @param target
+   *          The stream where the content is written.
+   * @param closeTarget
+   *          Whether the target should be closed when the output is closed.
+   */
+  PooledResponseOutput(final OutputStream target, final boolean closeTarget) {
+    this.target = target;
+    this.closeTarget = closeTarget;
+    PooledBuffer threadBuffer = POOL.get();
+    if (threadBuffer.inUse) {
+      pooledBuffer = new PooledBuffer();
+    } else {
+      pooledBuffer = threadBuffer;
+    }
+    pooledBuffer.inUse = true;
+    writer = new PrintWriter(pooledBuffer.buffer.writer(), false);
+  }
+
+  @Override
+  void close() {
+    try {
+      writeBuffer();
+      if (closeTarget) {
+        target.close();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      release();
+    }
+  }
+
+  @Override
+  boolean discard() {
+    if (flushedCount > 0) {
+      return false;
+    }
+    // The buffer is released by close() that the builder calls after discarding, too.
+    pooledBuffer.buffer.reset();
+    return true;
+  }
+
+  @Override
+  void flush() {
+    try {
+      writeBuffer();
+      target.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void release() {
+    if (pooledBuffer == null) {
+      return;
+    }
+    pooledBuffer.buffer.reset();
+    pooledBuffer.inUse = false;
+    if (pooledBuffer.buffer.capacity() > MAX_RETAINED_CAPACITY && POOL.get() == pooledBuffer) {
+      POOL.remove();
+    }
+    pooledBuffer = null;
+  }
+
+  @Override
+  long size() {
+    return flushedCount + pooledBuffer.buffer.size();
+  }
+
+  @Override
+  void write(final byte[] content) {
+    pooledBuffer.buffer.write(content);
+  }
+
+  @Override
+  void write(final ByteBuffer content) {
+    pooledBuffer.buffer.write(content);
+  }
+
+  @Override
+  void write(final Markup markup) {
+    pooledBuffer.buffer.write(markup.bytes);
+  }
+
+  @Override
+  void write(final String text) {
+    pooledBuffer.buffer.write(text, 0, text.length());
+  }
+
+  private void writeBuffer() throws IOException {
+    Utf8Buffer buffer = pooledBuffer.buffer;
+    int size = buffer.size();
+    if (size > 0) {
+      buffer.writeTo(target);
+      flushedCount += size;
+      buffer.reset();
+    }
+  }
+
+  @Override
+  PrintWriter writer() {
+    return writer;
+  }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Holder of the default executor that renders the fragments of
+ * {@link PartialResponseBuilder#replaceConcurrently(String, java.util.function.Consumer)} and its
+ * siblings. On Java 21 and later every fragment is rendered on a new virtual thread, so fragments
+ * that wait for slow backends do not occupy platform threads. On earlier versions the common
+ * fork-join pool is used.
+ */
+final class RenderExecutors {
+
+  static final Executor DEFAULT = createDefault();
+
+  private static Executor createDefault() {
+    try {
+      Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (Executor) factoryMethod.invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return ForkJoinPool.commonPool();
+    }
+  }
+
+  private RenderExecutors() {
+  }
+
+}
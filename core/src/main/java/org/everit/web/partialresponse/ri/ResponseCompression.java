@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Compression of partial responses with <code>gzip</code> or <code>deflate</code> content
+ * encoding, negotiated from the <code>Accept-Encoding</code> header of the request. Responses that
+ * are smaller than the threshold are sent uncompressed, because compressing them costs more than
+ * the few bytes it saves.
+ *
+ * <p>
+ * The instance keeps a pool of {@link Deflater}s, so it should be shared by the requests (e.g.
+ * stored in a field of the servlet) instead of creating a new one for each response. It is
+ * thread-safe.
+ */
+public final class ResponseCompression {
+
+  /**
+   * The default compression level. Partial responses are small and full of repeated markup, so the
+   * faster levels compress them almost as well as the default level of zlib.
+   */
+  public static final int DEFAULT_LEVEL = 4;
+
+  /**
+   * The default threshold in bytes.
+   */
+  public static final int DEFAULT_THRESHOLD = 1024;
+
+  static final String DEFLATE = "deflate";
+
+  static final String GZIP = "gzip";
+
+  private static final int QUALITY_PRECISION = 1000;
+
+  static int quality(final String coding) {
+    int semicolon = coding.indexOf(';');
+    if (semicolon < 0) {
+      return QUALITY_PRECISION;
+    }
+    String parameters = coding.substring(semicolon + 1).trim();
+    if (!parameters.startsWith("q=")) {
+      return QUALITY_PRECISION;
+    }
+    try {
+      return (int) (Double.parseDouble(parameters.substring(2).trim()) * QUALITY_PRECISION);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private final int level;
+
+  private final ArrayBlockingQueue<Deflater> pool;
+
+  private final int threshold;
+
+  /**
+   * Constructor with {@link #DEFAULT_LEVEL}, {@link #DEFAULT_THRESHOLD} and a pool of twice as many
+   * deflaters as the number of processors.
+   */
+  public ResponseCompression() {
+    this(DEFAULT_LEVEL, DEFAULT_THRESHOLD, Runtime.getRuntime().availableProcessors() * 2);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param level
+   *          The compression level from {@link Deflater#BEST_SPEED} to
+   *          {@link Deflater#BEST_COMPRESSION}.
+   * @param threshold
+   *          The minimum size of a response in bytes that is compressed.
+   * @param poolSize
+   *          The maximum number of idle deflaters that are kept for reuse. Must be positive.
+   */
+  public ResponseCompression(final int level, final int threshold, final int poolSize) {
+    if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Invalid compression level: " + level);
+    }
+    if (threshold < 0) {
+      throw new IllegalArgumentException("Threshold cannot be negative: " + threshold);
+    }
+    if (poolSize <= 0) {
+      throw new IllegalArgumentException("Pool size must be positive: " + poolSize);
+    }
+    this.level = level;
+    this.threshold = threshold;
+    pool = new ArrayBlockingQueue<>(poolSize);
+  }
+
+  /**
+   * Takes a deflater from the pool or creates a new one. The deflater writes raw deflate data, the
+   * header and the trailer of the content encoding are written by the caller.
+   */
+  Deflater borrow() {
+    Deflater deflater = pool.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level, true);
+    }
+    return deflater;
+  }
+
+  int getLevel() {
+    return level;
+  }
+
+  int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Chooses the content encoding based on the <code>Accept-Encoding</code> header of the request.
+   * Gzip is preferred if both encodings are accepted with the same quality.
+   *
+   * @param acceptEncoding
+   *          The value of the header or <code>null</code>.
+   * @return {@link #GZIP}, {@link #DEFLATE} or <code>null</code> if the response should not be
+   *         compressed.
+   */
+  String negotiate(final String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    int gzipQuality = -1;
+    int deflateQuality = -1;
+    int wildcardQuality = -1;
+    for (String coding : acceptEncoding.split(",")) {
+      String trimmed = coding.trim().toLowerCase(Locale.ENGLISH);
+      int semicolon = trimmed.indexOf(';');
+      String name = (semicolon < 0) ? trimmed : trimmed.substring(0, semicolon).trim();
+      if (GZIP.equals(name) || "x-gzip".equals(name)) {
+        gzipQuality = quality(trimmed);
+      } else if (DEFLATE.equals(name)) {
+        deflateQuality = quality(trimmed);
+      } else if ("*".equals(name)) {
+        wildcardQuality = quality(trimmed);
+      }
+    }
+    if (gzipQuality < 0) {
+      gzipQuality = wildcardQuality;
+    }
+    if (deflateQuality < 0) {
+      deflateQuality = wildcardQuality;
+    }
+    if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+      return GZIP;
+    }
+    if (deflateQuality > 0) {
+      return DEFLATE;
+    }
+    return null;
+  }
+
+  /**
+   * Gives back a deflater to the pool. If the pool is full, the deflater is ended.
+   */
+  void release(final Deflater deflater) {
+    deflater.reset();
+    if (!pool.offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+}
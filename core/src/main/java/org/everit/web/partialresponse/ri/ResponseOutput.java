@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * The target where {@link PartialResponseBuilder} writes the partial response. The envelope of the
+ * commands is written in the HTML format unless a subclass overrides the methods that write it.
+ */
+abstract class ResponseOutput {
+
+  private static final Markup COMMANDS_END = new Markup("'></partial-commands>");
+
+  private static final Markup COMMANDS_START = new Markup("<partial-commands count='");
+
+  private static final Markup RESPONSE_END = new Markup("</partial-response>");
+
+  private static final Markup RESPONSE_START = new Markup("<partial-response>");
+
+  private static final Markup SELECTOR_END = new Markup("'>");
+
+  /**
+   * Checks whether a media type is listed explicitly in the <code>Accept</code> header of the
+   * request. Wildcards are not enough, as browsers send them for every request.
+   *
+   * @param accept
+   *          The value of the header or <code>null</code>.
+   * @param mediaType
+   *          The media type in lower case.
+   * @return <code>true</code> if the media type is listed with a non-zero quality.
+   */
+  static boolean isAccepted(final String accept, final String mediaType) {
+    if (accept == null) {
+      return false;
+    }
+    for (String mediaRange : accept.split(",")) {
+      String trimmed = mediaRange.trim().toLowerCase(Locale.ENGLISH);
+      int semicolon = trimmed.indexOf(';');
+      String name = (semicolon < 0) ? trimmed : trimmed.substring(0, semicolon).trim();
+      if (mediaType.equals(name)) {
+        return ResponseCompression.quality(trimmed) > 0;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes the remaining buffered content to the response.
+   */
+  abstract void close();
+
+  /**
+   * Drops the content that was written so far if none of it has left the output yet.
+   *
+   * @return <code>true</code> if nothing was passed to the response; otherwise the content is kept.
+   */
+  abstract boolean discard();
+
+  /**
+   * Writes the end of a command after its content.
+   *
+   * @param type
+   *          The type of the command.
+   */
+  void endCommand(final CommandType type) {
+    write(type.endTag);
+  }
+
+  /**
+   * Writes the end of the partial response after the last command.
+   *
+   * @param commandCount
+   *          The number of the commands that the client should verify or <code>-1</code> if the
+   *          number is not written.
+   */
+  void endResponse(final int commandCount) {
+    if (commandCount >= 0) {
+      write(COMMANDS_START);
+      write(String.valueOf(commandCount));
+      write(COMMANDS_END);
+    }
+    write(RESPONSE_END);
+  }
+
+  /**
+   * Flushes the buffered content to the client.
+   */
+  abstract void flush();
+
+  /**
+   * The amount of data that was written to the output since it was created. In bytes or characters,
+   * depending on the type of the output.
+   */
+  abstract long size();
+
+  /**
+   * Writes the start of a command. The content of the command is written afterwards with the write
+   * methods or the writer.
+   *
+   * @param type
+   *          The type of the command.
+   * @param selector
+   *          The selector of the target of the command, the element id or the slot, depending on
+   *          the type, or <code>null</code> if the command has no target attribute.
+   * @param attributeValue
+   *          The value of the attribute after the selector or <code>null</code> if the attribute is
+   *          not written.
+   */
+  void startCommand(final CommandType type, final String selector, final String attributeValue) {
+    write(type.startTag);
+    if (selector == null) {
+      return;
+    }
+    if (type == CommandType.REPLACE_BY_ID_VERSIONED) {
+      write(Markup.escapeAttribute(selector));
+    } else {
+      write(selector);
+    }
+    if (attributeValue != null) {
+      write(type.attribute);
+      write(Markup.escapeAttribute(attributeValue));
+    }
+    write(SELECTOR_END);
+  }
+
+  /**
+   * Writes the start of the partial response before the first command.
+   */
+  void startResponse() {
+    write(RESPONSE_START);
+  }
+
+  /**
+   * Writes UTF-8 encoded content.
+   */
+  abstract void write(byte[] content);
+
+  /**
+   * Writes the remaining UTF-8 encoded content of a buffer. The position of the buffer is not
+   * changed, so the same buffer can be written by several threads at the same time.
+   */
+  abstract void write(ByteBuffer content);
+
+  /**
+   * Writes a constant markup.
+   */
+  abstract void write(Markup markup);
+
+  /**
+   * Writes a text that is not known in advance (e.g. a selector or the content of a command).
+   */
+  abstract void write(String text);
+
+  /**
+   * The writer that is passed to the content providers.
+   */
+  abstract PrintWriter writer();
+
+}
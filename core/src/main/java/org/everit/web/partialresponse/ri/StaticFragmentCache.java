@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * Bounded, thread-safe cache of static UTF-8 encoded fragments (e.g. large HTML snippets that are
+ * shipped as bundle resources) that can be written to a partial response with the
+ * {@link ByteBuffer} overloads of {@link PartialResponseBuilder}. The fragments are kept off the
+ * heap: files are memory-mapped, so their content is paged in by the operating system and never
+ * copied into the Java heap, and other resources are read once into direct buffers.
+ *
+ * <p>
+ * Files are checked for modification on every access and mapped again if their size or their
+ * modification time changed. A file must be replaced (e.g. by moving a new file to its place)
+ * instead of being truncated or rewritten while it is mapped. Other resources are expected not to
+ * change (e.g. the resources of a bundle) and they are cached until they are evicted.
+ *
+ * <p>
+ * The least recently used fragments are evicted if the number of fragments or their total size
+ * exceeds the limit. A fragment that is larger than the limit is returned without being cached.
+ * The memory of an evicted fragment is released when its buffer is garbage collected.
+ */
+public class StaticFragmentCache {
+
+  /**
+   * A cached fragment.
+   */
+  private static final class Entry {
+
+    final ByteBuffer content;
+
+    final long lastModified;
+
+    Entry(final ByteBuffer content, final long lastModified) {
+      this.content = content;
+      this.lastModified = lastModified;
+    }
+
+  }
+
+  private static final int READ_BUFFER_SIZE = 8192;
+
+  private static final long UNKNOWN_MODIFICATION = -1;
+
+  private static final long UNKNOWN_SIZE = -1;
+
+  private static ByteBuffer map(final Path file) {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("File is too large to be mapped: " + file);
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Reads a resource into a direct buffer. The buffer is allocated with the content length of the
+   * resource if it is known, otherwise it grows and it is trimmed at the end, so the cache does not
+   * hold unused memory.
+   */
+  private static ByteBuffer read(final URL resource) {
+    try {
+      URLConnection connection = resource.openConnection();
+      long contentLength = connection.getContentLengthLong();
+      ByteBuffer content = ByteBuffer.allocateDirect((contentLength >= 0)
+          ? (int) Math.min(contentLength, Integer.MAX_VALUE) : READ_BUFFER_SIZE);
+      try (InputStream is = connection.getInputStream()) {
+        byte[] chunk = new byte[READ_BUFFER_SIZE];
+        int r = is.read(chunk);
+        while (r >= 0) {
+          if (content.remaining() < r) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(
+                Math.max(content.capacity() << 1, content.position() + r));
+            // Called on Buffer, as ByteBuffer overrides flip() only since Java 9.
+            ((Buffer) content).flip();
+            grown.put(content);
+            content = grown;
+          }
+          content.put(chunk, 0, r);
+          r = is.read(chunk);
+        }
+      }
+      ((Buffer) content).flip();
+      if (content.limit() < content.capacity()) {
+        ByteBuffer trimmed = ByteBuffer.allocateDirect(content.limit());
+        trimmed.put(content);
+        ((Buffer) trimmed).flip();
+        content = trimmed;
+      }
+      return content;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * The path of a <code>file</code> URL or <code>null</code> if the URL is not a valid file URI
+   * (e.g. it contains unescaped characters).
+   */
+  private static Path toPath(final URL resource) {
+    try {
+      return Paths.get(resource.toURI());
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static URL toURL(final String externalForm) {
+    try {
+      return new URL(externalForm);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private final BoundedLruMap<Object, Entry> entries;
+
+  /**
+   * Constructor.
+   *
+   * @param maxEntries
+   *          The maximum number of cached fragments.
+   * @param maxBytes
+   *          The maximum total size of the cached fragments in bytes.
+   */
+  public StaticFragmentCache(final int maxEntries, final long maxBytes) {
+    entries = new BoundedLruMap<>(maxEntries, maxBytes);
+  }
+
+  /**
+   * The total size of the cached fragments in bytes.
+   */
+  public long byteSize() {
+    return entries.byteSize();
+  }
+
+  /**
+   * Removes every fragment from the cache.
+   */
+  public void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Returns the content of a file. The file is mapped into memory if it is not in the cache or it
+   * was modified since it was mapped.
+   *
+   * @param file
+   *          The file. Cannot be <code>null</code>!
+   * @return A read-only view of the UTF-8 encoded content that is positioned at its start.
+   * @throws UncheckedIOException
+   *           if the file cannot be read.
+   */
+  public ByteBuffer get(final Path file) {
+    Objects.requireNonNull(file, "File cannot be null!");
+    Path key = file.toAbsolutePath().normalize();
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(key, BasicFileAttributes.class);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return get(key, attributes.lastModifiedTime().toMillis(), attributes.size());
+  }
+
+  private ByteBuffer get(final Object key, final long lastModified, final long size) {
+    Entry entry = entries.get(key, (cached) -> cached.lastModified == lastModified
+        && (size == UNKNOWN_SIZE || cached.content.capacity() == size));
+    if (entry != null) {
+      return entry.content.asReadOnlyBuffer();
+    }
+
+    ByteBuffer content = (key instanceof Path) ? map((Path) key) : read(toURL((String) key));
+    entries.put(key, new Entry(content, lastModified), content.capacity());
+    return content.asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the content of a resource (e.g. from <code>ClassLoader.getResource</code>). Resources
+   * with a <code>file</code> URL are handled as files (see {@link #get(Path)}), the other ones are
+   * read into a direct buffer if they are not in the cache.
+   *
+   * @param resource
+   *          The URL of the resource. Cannot be <code>null</code>!
+   * @return A read-only view of the UTF-8 encoded content that is positioned at its start.
+   * @throws UncheckedIOException
+   *           if the resource cannot be read.
+   */
+  public ByteBuffer get(final URL resource) {
+    Objects.requireNonNull(resource, "Resource cannot be null!");
+    if ("file".equals(resource.getProtocol())) {
+      Path file = toPath(resource);
+      if (file != null) {
+        return get(file);
+      }
+    }
+    return get(resource.toExternalForm(), UNKNOWN_MODIFICATION, UNKNOWN_SIZE);
+  }
+
+  /**
+   * Removes a file from the cache.
+   *
+   * @param file
+   *          The file.
+   */
+  public void invalidate(final Path file) {
+    entries.remove(file.toAbsolutePath().normalize());
+  }
+
+  /**
+   * The number of cached fragments.
+   */
+  public int size() {
+    return entries.size();
+  }
+
+}
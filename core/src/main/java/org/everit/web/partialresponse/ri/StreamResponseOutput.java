@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link ResponseOutput} that writes bytes to an {@link OutputStream} through a fixed size buffer.
+ * Constant markup is copied to the buffer in its pre-encoded form.
+ */
+final class StreamResponseOutput extends ResponseOutput {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final Utf8Buffer buffer;
+
+  private final boolean closeTarget;
+
+  private final OutputStream target;
+
+  private final PrintWriter writer;
+
+  /**
+   * Constructor.
+   *
+   * @param target
+   *          The stream where the content is written.
+   * @param closeTarget
+   *          Whether the target should be closed when the output is closed. The output stream of
+   *          the response is closed by the container, but a stream that wraps it (e.g. a
+   *          compressing one) must be closed by the output.
+   */
+  StreamResponseOutput(final OutputStream target, final boolean closeTarget) {
+    this.target = target;
+    this.closeTarget = closeTarget;
+    buffer = new Utf8Buffer(BUFFER_SIZE, target);
+    writer = new PrintWriter(buffer.writer(), false);
+  }
+
+  @Override
+  void close() {
+    buffer.drain();
+    if (closeTarget) {
+      try {
+        target.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  @Override
+  boolean discard() {
+    if (buffer.written() != buffer.size()) {
+      return false;
+    }
+    buffer.reset();
+    return true;
+  }
+
+  @Override
+  void flush() {
+    buffer.flush();
+  }
+
+  @Override
+  long size() {
+    return buffer.written();
+  }
+
+  @Override
+  void write(final byte[] content) {
+    buffer.write(content);
+  }
+
+  @Override
+  void write(final ByteBuffer content) {
+    buffer.write(content);
+  }
+
+  @Override
+  void write(final Markup markup) {
+    buffer.write(markup.bytes);
+  }
+
+  @Override
+  void write(final String text) {
+    buffer.write(text, 0, text.length());
+  }
+
+  @Override
+  PrintWriter writer() {
+    return writer;
+  }
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Compiles every named fragment of a page template into its own template once, so a partial
+ * update renders only the nodes of the fragment instead of walking the whole page template to find
+ * it. The fragments are the elements of the template source that have the fragment attribute with
+ * a string literal value (e.g. <code>data-eht-fragment="'div_table_2'"</code>). Fragments with a
+ * computed name are not indexed. Nested fragments are indexed separately, too.
+ *
+ * <p>
+ * The template engine is not known by the index: the source of each fragment is passed to the
+ * compiler function, e.g. <code>source -&gt; htmlTemplateCompiler.compile(source, config)</code>.
+ * A fragment is rendered without the elements that enclose it in the page, so it can use only the
+ * variables that are passed to the renderer, not the ones that are defined by its ancestors.
+ *
+ * <p>
+ * The index is immutable and thread-safe if the compiled templates are.
+ *
+ * @param <T>
+ *          The type of the compiled templates.
+ */
+public class TemplateFragmentIndex<T> {
+
+  /**
+   * An element of the template source that is not closed yet.
+   */
+  private static final class OpenElement {
+
+    final String fragmentId;
+
+    final String name;
+
+    final int start;
+
+    OpenElement(final String name, final String fragmentId, final int start) {
+      this.name = name;
+      this.fragmentId = fragmentId;
+      this.start = start;
+    }
+
+  }
+
+  /**
+   * The fragment attribute of the Everit HTML templating engine.
+   */
+  public static final String DEFAULT_FRAGMENT_ATTRIBUTE = "data-eht-fragment";
+
+  private static final Set<String> RAW_TEXT_ELEMENTS = new HashSet<>(
+      Arrays.asList("script", "style", "textarea", "title"));
+
+  private static final Set<String> VOID_ELEMENTS = new HashSet<>(
+      Arrays.asList("area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta",
+          "param", "source", "track", "wbr"));
+
+  private static void addSource(final Map<String, String> sources, final String fragmentId,
+      final String source) {
+    if (sources.put(fragmentId, source) != null) {
+      throw new IllegalArgumentException("Duplicate fragment in template: " + fragmentId);
+    }
+  }
+
+  /**
+   * Closes the open elements up to the last one with the name of the end tag. The elements that
+   * were closed implicitly (e.g. a <code>p</code> without end tag) end where the end tag starts.
+   */
+  private static void closeElement(final String template, final Deque<OpenElement> openElements,
+      final String name, final int tagStart, final int tagEnd, final Map<String, String> sources) {
+    boolean open = false;
+    for (Iterator<OpenElement> iterator = openElements.iterator(); iterator.hasNext() && !open;) {
+      open = iterator.next().name.equals(name);
+    }
+    if (!open) {
+      return;
+    }
+    OpenElement element = openElements.pop();
+    while (!element.name.equals(name)) {
+      if (element.fragmentId != null) {
+        addSource(sources, element.fragmentId, template.substring(element.start, tagStart));
+      }
+      element = openElements.pop();
+    }
+    if (element.fragmentId != null) {
+      addSource(sources, element.fragmentId, template.substring(element.start, tagEnd));
+    }
+  }
+
+  /**
+   * Finds the source of every fragment of the template.
+   */
+  private static Map<String, String> extractSources(final String template,
+      final String fragmentAttribute) {
+    Map<String, String> sources = new LinkedHashMap<>();
+    Deque<OpenElement> openElements = new ArrayDeque<>();
+    int length = template.length();
+    int position = template.indexOf('<');
+    while (position >= 0) {
+      char next = (position + 1 < length) ? template.charAt(position + 1) : ' ';
+      if (template.startsWith("<!--", position)) {
+        position = skipPast(template, "-->", position);
+      } else if (next == '!' || next == '?') {
+        position = skipPast(template, ">", position);
+      } else if (next == '/') {
+        int nameEnd = nameEnd(template, position + 2);
+        String name = template.substring(position + 2, nameEnd).toLowerCase(Locale.ENGLISH);
+        int tagEnd = skipPast(template, ">", nameEnd);
+        closeElement(template, openElements, name, position, tagEnd, sources);
+        position = tagEnd;
+      } else if (Character.isLetter(next)) {
+        position = readStartTag(template, fragmentAttribute, position, openElements, sources);
+      } else {
+        position++;
+      }
+      position = template.indexOf('<', position);
+    }
+    for (OpenElement element : openElements) {
+      if (element.fragmentId != null) {
+        throw new IllegalArgumentException("Fragment is not closed in template: "
+            + element.fragmentId);
+      }
+    }
+    return sources;
+  }
+
+  /**
+   * The name of the fragment if the value of the fragment attribute is a string literal.
+   */
+  private static String literal(final String value) {
+    String trimmed = value.trim();
+    if (trimmed.length() < 2) {
+      return null;
+    }
+    char quote = trimmed.charAt(0);
+    if ((quote != '\'' && quote != '"') || trimmed.charAt(trimmed.length() - 1) != quote) {
+      return null;
+    }
+    String literal = trimmed.substring(1, trimmed.length() - 1);
+    return (literal.indexOf(quote) < 0 && literal.indexOf('\\') < 0) ? literal : null;
+  }
+
+  private static int nameEnd(final String template, final int start) {
+    int position = start;
+    while (position < template.length()) {
+      char c = template.charAt(position);
+      if (Character.isWhitespace(c) || c == '>' || c == '/' || c == '=') {
+        return position;
+      }
+      position++;
+    }
+    return position;
+  }
+
+  /**
+   * Reads a start tag and its attributes. The contents of raw text elements (e.g. script) are
+   * skipped, so the tags in them are not parsed.
+   *
+   * @return The position after the start tag or the position of the end tag of a raw text element.
+   */
+  private static int readStartTag(final String template, final String fragmentAttribute,
+      final int tagStart, final Deque<OpenElement> openElements,
+      final Map<String, String> sources) {
+    int length = template.length();
+    int position = nameEnd(template, tagStart + 1);
+    String name = template.substring(tagStart + 1, position).toLowerCase(Locale.ENGLISH);
+    String fragmentId = null;
+    boolean selfClosing = false;
+    boolean closed = false;
+    while (position < length && !closed) {
+      char c = template.charAt(position);
+      if (c == '>') {
+        closed = true;
+      } else if (c == '/') {
+        selfClosing = template.startsWith("/>", position);
+      } else if (!Character.isWhitespace(c)) {
+        int attributeEnd = nameEnd(template, position);
+        if (attributeEnd == position) {
+          attributeEnd++;
+        }
+        String attributeName = template.substring(position, attributeEnd);
+        position = skipWhitespace(template, attributeEnd);
+        String value = "";
+        if (position < length && template.charAt(position) == '=') {
+          int valueStart = skipWhitespace(template, position + 1);
+          int valueEnd = valueEnd(template, valueStart);
+          value = template.substring(valueStart, valueEnd);
+          position = valueEnd;
+        }
+        if (attributeName.equalsIgnoreCase(fragmentAttribute)) {
+          fragmentId = literal(unquote(value));
+        }
+        continue;
+      }
+      position++;
+    }
+    if (!closed) {
+      throw new IllegalArgumentException("Tag is not closed in template: " + name);
+    }
+
+    if (selfClosing || VOID_ELEMENTS.contains(name)) {
+      if (fragmentId != null) {
+        addSource(sources, fragmentId, template.substring(tagStart, position));
+      }
+      return position;
+    }
+    openElements.push(new OpenElement(name, fragmentId, tagStart));
+    if (RAW_TEXT_ELEMENTS.contains(name)) {
+      String endTagStart = "</" + name;
+      int endTag = template.indexOf('<', position);
+      while (endTag >= 0
+          && !template.regionMatches(true, endTag, endTagStart, 0, endTagStart.length())) {
+        endTag = template.indexOf('<', endTag + 1);
+      }
+      return (endTag >= 0) ? endTag : length;
+    }
+    return position;
+  }
+
+  private static int skipPast(final String template, final String end, final int start) {
+    int index = template.indexOf(end, start);
+    return (index >= 0) ? index + end.length() : template.length();
+  }
+
+  private static int skipWhitespace(final String template, final int start) {
+    int position = start;
+    while (position < template.length() && Character.isWhitespace(template.charAt(position))) {
+      position++;
+    }
+    return position;
+  }
+
+  private static String unquote(final String value) {
+    if (value.length() >= 2) {
+      char quote = value.charAt(0);
+      if ((quote == '\'' || quote == '"') && value.charAt(value.length() - 1) == quote) {
+        return value.substring(1, value.length() - 1);
+      }
+    }
+    return value;
+  }
+
+  private static int valueEnd(final String template, final int start) {
+    int length = template.length();
+    if (start >= length) {
+      return length;
+    }
+    char quote = template.charAt(start);
+    if (quote == '\'' || quote == '"') {
+      int end = template.indexOf(quote, start + 1);
+      return (end >= 0) ? end + 1 : length;
+    }
+    int position = start;
+    while (position < length) {
+      char c = template.charAt(position);
+      if (Character.isWhitespace(c) || c == '>') {
+        return position;
+      }
+      position++;
+    }
+    return position;
+  }
+
+  private final Map<String, T> fragments;
+
+  /**
+   * Constructor that indexes the fragments that are marked with the
+   * {@value #DEFAULT_FRAGMENT_ATTRIBUTE} attribute.
+   *
+   * @param template
+   *          The source of the page template. Cannot be <code>null</code>!
+   * @param compiler
+   *          Compiles the source of a fragment. Cannot be <code>null</code>!
+   * @throws IllegalArgumentException
+   *           if a fragment name is used more than once or an element of a fragment is not closed.
+   */
+  public TemplateFragmentIndex(final String template, final Function<String, T> compiler) {
+    this(template, DEFAULT_FRAGMENT_ATTRIBUTE, compiler);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param template
+   *          The source of the page template. Cannot be <code>null</code>!
+   * @param fragmentAttribute
+   *          The name of the attribute that marks the fragments. Cannot be <code>null</code>!
+   * @param compiler
+   *          Compiles the source of a fragment. Cannot be <code>null</code>!
+   * @throws IllegalArgumentException
+   *           if a fragment name is used more than once or an element of a fragment is not closed.
+   */
+  public TemplateFragmentIndex(final String template, final String fragmentAttribute,
+      final Function<String, T> compiler) {
+    Objects.requireNonNull(template, "Template cannot be null!");
+    Objects.requireNonNull(fragmentAttribute, "Fragment attribute cannot be null!");
+    Objects.requireNonNull(compiler, "Compiler cannot be null!");
+    Map<String, T> compiledFragments = new LinkedHashMap<>();
+    for (Map.Entry<String, String> entry : extractSources(template, fragmentAttribute)
+        .entrySet()) {
+      compiledFragments.put(entry.getKey(), compiler.apply(entry.getValue()));
+    }
+    fragments = Collections.unmodifiableMap(compiledFragments);
+  }
+
+  /**
+   * The compiled template of a fragment.
+   *
+   * @param fragmentId
+   *          The name of the fragment.
+   * @return The compiled template or <code>null</code> if the page template has no such fragment.
+   */
+  public T get(final String fragmentId) {
+    return fragments.get(fragmentId);
+  }
+
+  /**
+   * The names of the indexed fragments.
+   *
+   * @return An unmodifiable set of the names.
+   */
+  public Set<String> getFragmentIds() {
+    return fragments.keySet();
+  }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Byte buffer that encodes characters to UTF-8 directly into its backing array. If an overflow
+ * target is specified, the buffer has a fixed size and its content is written to the target when
+ * it becomes full. Otherwise the buffer grows as necessary.
+ */
+final class Utf8Buffer {
+
+  /**
+   * Writer view of the buffer. Flushing the writer flushes the overflow target as well; closing it
+   * has no effect.
+   */
+  private final class BufferWriter extends Writer {
+
+    @Override
+    public void close() {
+      // The buffer is owned by the builder.
+    }
+
+    @Override
+    public void flush() {
+      Utf8Buffer.this.flush();
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) {
+      Utf8Buffer.this.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(final int c) {
+      encode((char) c);
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) {
+      Utf8Buffer.this.write(str, off, len);
+    }
+
+  }
+
+  private static final int MAX_BYTES_PER_CHAR = 4;
+
+  private static final byte REPLACEMENT_BYTE = '?';
+
+  /**
+   * Renders content into a new growing buffer.
+   *
+   * @param renderer
+   *          Writes the content to the provided writer.
+   * @param initialCapacity
+   *          The initial capacity of the buffer.
+   * @return The UTF-8 encoded content.
+   */
+  static byte[] render(final Consumer<PrintWriter> renderer, final int initialCapacity) {
+    Utf8Buffer buffer = new Utf8Buffer(initialCapacity, null);
+    PrintWriter writer = new PrintWriter(buffer.writer(), false);
+    renderer.accept(writer);
+    writer.flush();
+    return buffer.toByteArray();
+  }
+
+  private byte[] bytes;
+
+  private int count;
+
+  private long drainedCount;
+
+  private final OutputStream overflowTarget;
+
+  private char pendingHighSurrogate;
+
+  private final BufferWriter writer = new BufferWriter();
+
+  /**
+   * Constructor.
+   *
+   * @param capacity
+   *          The initial capacity of the buffer.
+   * @param overflowTarget
+   *          The stream where the content of the buffer is written if it is full or
+   *          <code>null</code> if the buffer should grow instead.
+   */
+  Utf8Buffer(final int capacity, final OutputStream overflowTarget) {
+    bytes = new byte[capacity];
+    this.overflowTarget = overflowTarget;
+  }
+
+  int capacity() {
+    return bytes.length;
+  }
+
+  /**
+   * Writes the content of the buffer to the overflow target and empties the buffer.
+   */
+  void drain() {
+    if (count == 0) {
+      return;
+    }
+    try {
+      overflowTarget.write(bytes, 0, count);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    drainedCount += count;
+    count = 0;
+  }
+
+  private void encode(final char c) {
+    if (count + MAX_BYTES_PER_CHAR > bytes.length) {
+      makeRoom(MAX_BYTES_PER_CHAR);
+    }
+    if (pendingHighSurrogate != 0) {
+      char highSurrogate = pendingHighSurrogate;
+      pendingHighSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        int codePoint = Character.toCodePoint(highSurrogate, c);
+        bytes[count++] = (byte) (0xF0 | (codePoint >> 18));
+        bytes[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        bytes[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        bytes[count++] = (byte) (0x80 | (codePoint & 0x3F));
+        return;
+      }
+      bytes[count++] = REPLACEMENT_BYTE;
+      if (count + MAX_BYTES_PER_CHAR > bytes.length) {
+        makeRoom(MAX_BYTES_PER_CHAR);
+      }
+    }
+
+    if (c < 0x80) {
+      bytes[count++] = (byte) c;
+    } else if (c < 0x800) {
+      bytes[count++] = (byte) (0xC0 | (c >> 6));
+      bytes[count++] = (byte) (0x80 | (c & 0x3F));
+    } else if (Character.isHighSurrogate(c)) {
+      pendingHighSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      bytes[count++] = REPLACEMENT_BYTE;
+    } else {
+      bytes[count++] = (byte) (0xE0 | (c >> 12));
+      bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      bytes[count++] = (byte) (0x80 | (c & 0x3F));
+    }
+  }
+
+  /**
+   * Writes the content of the buffer to the overflow target and flushes the target.
+   */
+  void flush() {
+    if (overflowTarget == null) {
+      return;
+    }
+    drain();
+    try {
+      overflowTarget.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void makeRoom(final int required) {
+    if (overflowTarget != null) {
+      drain();
+    }
+    if (count + required > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, count + required));
+    }
+  }
+
+  /**
+   * Empties the buffer without writing its content anywhere.
+   */
+  void reset() {
+    count = 0;
+    drainedCount = 0;
+    pendingHighSurrogate = 0;
+  }
+
+  int size() {
+    return count;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(bytes, count);
+  }
+
+  void write(final byte[] src) {
+    write(src, 0, src.length);
+  }
+
+  void write(final byte[] src, final int off, final int len) {
+    if (count + len > bytes.length) {
+      if (overflowTarget != null) {
+        drain();
+        if (len >= bytes.length) {
+          try {
+            overflowTarget.write(src, off, len);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          drainedCount += len;
+          return;
+        }
+      } else {
+        makeRoom(len);
+      }
+    }
+    System.arraycopy(src, off, bytes, count, len);
+    count += len;
+  }
+
+  /**
+   * Copies the remaining bytes of the source into the buffer (or to the overflow target through
+   * the buffer) without an intermediate array. The position of the source is not changed.
+   */
+  void write(final ByteBuffer src) {
+    ByteBuffer source = src.duplicate();
+    if (source.hasArray()) {
+      write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+      return;
+    }
+    if (overflowTarget == null && count + source.remaining() > bytes.length) {
+      makeRoom(source.remaining());
+    }
+    while (source.hasRemaining()) {
+      if (count == bytes.length) {
+        drain();
+      }
+      int length = Math.min(bytes.length - count, source.remaining());
+      source.get(bytes, count, length);
+      count += length;
+    }
+  }
+
+  void write(final char[] cbuf, final int off, final int len) {
+    int end = off + len;
+    for (int i = off; i < end; i++) {
+      encode(cbuf[i]);
+    }
+  }
+
+  void write(final String str, final int off, final int len) {
+    int end = off + len;
+    for (int i = off; i < end; i++) {
+      encode(str.charAt(i));
+    }
+  }
+
+  /**
+   * The number of bytes that were written to the buffer including the ones that were already
+   * drained to the overflow target.
+   */
+  long written() {
+    return drainedCount + count;
+  }
+
+  /**
+   * Writes the content of the buffer to the given stream. The buffer is not emptied.
+   */
+  void writeTo(final OutputStream out) throws IOException {
+    out.write(bytes, 0, count);
+  }
+
+  Writer writer() {
+    return writer;
+  }
+
+}
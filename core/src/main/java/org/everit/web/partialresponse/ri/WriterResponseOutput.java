@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link ResponseOutput} that writes everything to the {@link PrintWriter} of the response.
+ */
+final class WriterResponseOutput extends ResponseOutput {
+
+  /**
+   * Counts the characters that are written by the content providers.
+   */
+  private static final class CountingWriter extends FilterWriter {
+
+    private long count;
+
+    CountingWriter(final Writer out) {
+      super(out);
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) throws IOException {
+      out.write(cbuf, off, len);
+      count += len;
+    }
+
+    @Override
+    public void write(final int c) throws IOException {
+      out.write(c);
+      count++;
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) throws IOException {
+      out.write(str, off, len);
+      count += len;
+    }
+
+  }
+
+  private static final int DECODE_CHUNK_SIZE = 4096;
+
+  private final CountingWriter countingWriter;
+
+  private final PrintWriter writer;
+
+  /**
+   * Constructor.
+   *
+   * @param writer
+   *          The writer of the response.
+   * @param counting
+   *          Whether the number of written characters should be counted. If <code>false</code>,
+   *          {@link #size()} always returns zero.
+   */
+  WriterResponseOutput(final PrintWriter writer, final boolean counting) {
+    if (counting) {
+      countingWriter = new CountingWriter(writer);
+      this.writer = new PrintWriter(countingWriter, false);
+    } else {
+      countingWriter = null;
+      this.writer = writer;
+    }
+  }
+
+  @Override
+  void close() {
+    // The writer is closed by the container.
+  }
+
+  @Override
+  boolean discard() {
+    // Nothing is buffered here; the buffer of the response is reset by the builder.
+    return true;
+  }
+
+  @Override
+  void flush() {
+    writer.flush();
+  }
+
+  @Override
+  long size() {
+    if (countingWriter == null) {
+      return 0;
+    }
+    return countingWriter.count;
+  }
+
+  @Override
+  void write(final byte[] content) {
+    writer.write(new String(content, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Decodes the content in chunks, so a large buffer is not copied into a string at once. The
+   * decoder keeps the incomplete multi-byte sequences at the end of a chunk for the next one.
+   */
+  @Override
+  void write(final ByteBuffer content) {
+    ByteBuffer source = content.duplicate();
+    CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    CharBuffer chars = CharBuffer.allocate(Math.min(source.remaining(), DECODE_CHUNK_SIZE) + 1);
+    CoderResult result = CoderResult.OVERFLOW;
+    while (result.isOverflow()) {
+      result = decoder.decode(source, chars, true);
+      writer.write(chars.array(), 0, chars.position());
+      // Called on Buffer, as CharBuffer overrides clear() only since Java 9.
+      ((Buffer) chars).clear();
+    }
+    decoder.flush(chars);
+    writer.write(chars.array(), 0, chars.position());
+  }
+
+  @Override
+  void write(final Markup markup) {
+    writer.write(markup.text);
+  }
+
+  @Override
+  void write(final String text) {
+    writer.write(text);
+  }
+
+  @Override
+  PrintWriter writer() {
+    return writer;
+  }
+
+}
@@ -13,33 +13,1371 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-function epr_process_ajax_response(responseContent) {
+/**
+ * True if the browser supports the template element, so partial responses can be processed without
+ * jQuery.
+ */
+var epr_native_processing = (function() {
+  return 'content' in document.createElement('template');
+})();
+
+/**
+ * Applies the commands of a partial response to the document in the order as they were written by
+ * the server. The dependency-free processor is used if the browser supports it, otherwise the
+ * jQuery based one. If the server sent the number of commands, it is compared to the number of
+ * applied commands.
+ *
+ * @param action
+ *          The optional name of the action that the measurements are recorded for if epr_timing is
+ *          true.
+ * @return The number of applied commands.
+ */
+function epr_process_ajax_response(responseContent, action) {
+  var result = epr_apply_partial_response(responseContent, action);
+  epr_verify_command_count(result.expected, result.applied);
+  return result.applied;
+}
+
+/**
+ * Applies the commands of a partial response with the processor that is supported by the browser.
+ *
+ * @return An object with the number of applied commands (applied) and the number of commands
+ *         reported by the server (expected) or -1 if the server did not report it.
+ */
+function epr_apply_partial_response(responseContent, action) {
+  if (!responseContent) {
+    // 304 Not Modified: the document already holds every fragment.
+    return {
+      applied : 0,
+      expected : -1
+    };
+  }
+  if (epr_native_processing) {
+    return epr_process_ajax_response_native(responseContent, action);
+  }
+  return epr_process_ajax_response_jquery(responseContent, action);
+}
+
+function epr_verify_command_count(expected, applied) {
+  if (expected >= 0 && expected !== applied) {
+    epr_command_count_mismatch(expected, applied);
+  }
+}
+
+/**
+ * Called if the number of applied commands differs from the number of commands sent by the server.
+ * Can be overridden by the application.
+ */
+function epr_command_count_mismatch(expected, applied) {
+  if (typeof console !== 'undefined') {
+    console.error('Partial response contained ' + expected + ' commands, but ' + applied
+        + ' were applied.');
+  }
+}
+
+/**
+ * Set to true to measure how long the parsing of the partial responses and the application of each
+ * command take. The measurements are added to the performance timeline with performance.mark and
+ * performance.measure, so they are shown by the developer tools of the browser.
+ */
+var epr_timing = false;
+
+/**
+ * The URL where the measurements are posted in batches (see ClientTimingServlet on the server
+ * side) or null if they are not sent.
+ */
+var epr_timing_endpoint = null;
+
+/**
+ * The number of measurements that are sent together.
+ */
+var epr_timing_batch_size = 100;
+
+/**
+ * The maximum time in milliseconds a measurement waits for its batch to be sent.
+ */
+var epr_timing_delay = 5000;
+
+var epr_timing_samples = {};
+
+var epr_timing_sample_count = 0;
+
+var epr_timing_timer = null;
+
+var epr_performance_marks = typeof performance !== 'undefined'
+    && typeof performance.mark === 'function' && typeof performance.measure === 'function'
+    && typeof performance.clearMarks === 'function';
+
+function epr_now() {
+  if (typeof performance !== 'undefined' && typeof performance.now === 'function') {
+    return performance.now();
+  }
+  return new Date().getTime();
+}
+
+/**
+ * Starts a measurement if epr_timing is true.
+ *
+ * @return The start time that is passed to epr_timing_end or -1 if nothing is measured.
+ */
+function epr_timing_start(name) {
+  if (!epr_timing) {
+    return -1;
+  }
+  if (epr_performance_marks) {
+    performance.mark('epr-' + name + '-start');
+  }
+  return epr_now();
+}
+
+/**
+ * Ends a measurement that was started by epr_timing_start. The measurement is added to the
+ * performance timeline as epr-parse or epr-apply followed by the selector of the command and it is
+ * collected for epr_timing_endpoint.
+ *
+ * @param selector
+ *          The selector of the applied command or null.
+ */
+function epr_timing_end(action, name, selector, start) {
+  if (start < 0) {
+    return;
+  }
+  var duration = epr_now() - start;
+  if (epr_performance_marks) {
+    var mark = 'epr-' + name;
+    performance.mark(mark + '-end');
+    performance.measure(selector === null ? mark : mark + ' ' + selector, mark + '-start',
+        mark + '-end');
+    performance.clearMarks(mark + '-start');
+    performance.clearMarks(mark + '-end');
+  }
+  if (epr_timing_endpoint !== null) {
+    epr_timing_collect(action, name, selector, duration);
+  }
+}
+
+/**
+ * Adds a measurement to the batch. The durations are grouped by action, measurement name and
+ * selector and they are sent in microseconds.
+ */
+function epr_timing_collect(action, name, selector, duration) {
+  var actionName = (action === undefined || action === null) ? '' : String(action);
+  var selectorName = selector === null ? '' : selector;
+  var key = 'k' + actionName + '\n' + name + '\n' + selectorName;
+  var sample = epr_timing_samples[key];
+  if (sample === undefined) {
+    sample = {
+      action : actionName,
+      measure : name,
+      selector : selectorName,
+      durations : []
+    };
+    epr_timing_samples[key] = sample;
+  }
+  sample.durations.push(Math.round(duration * 1000));
+  epr_timing_sample_count++;
+  if (epr_timing_sample_count >= epr_timing_batch_size) {
+    epr_timing_flush();
+  } else if (epr_timing_timer === null) {
+    epr_timing_timer = setTimeout(epr_timing_flush, epr_timing_delay);
+  }
+}
+
+/**
+ * Posts the collected measurements to epr_timing_endpoint. navigator.sendBeacon is used if the
+ * browser supports it, so the last batch is delivered when the page is left, too.
+ */
+function epr_timing_flush() {
+  if (epr_timing_timer !== null) {
+    clearTimeout(epr_timing_timer);
+    epr_timing_timer = null;
+  }
+  if (epr_timing_sample_count === 0 || epr_timing_endpoint === null) {
+    return;
+  }
+  var parameters = [];
+  for ( var key in epr_timing_samples) {
+    if (epr_timing_samples.hasOwnProperty(key)) {
+      var sample = epr_timing_samples[key];
+      parameters.push('action=' + encodeURIComponent(sample.action), 'measure='
+          + encodeURIComponent(sample.measure), 'selector=' + encodeURIComponent(sample.selector),
+          'durations=' + sample.durations.join(','));
+    }
+  }
+  epr_timing_samples = {};
+  epr_timing_sample_count = 0;
+
+  var contentType = 'application/x-www-form-urlencoded';
+  var body = parameters.join('&');
+  if (typeof navigator !== 'undefined' && typeof navigator.sendBeacon === 'function'
+      && typeof Blob !== 'undefined') {
+    var blob = new Blob([ body ], {
+      type : contentType
+    });
+    if (navigator.sendBeacon(epr_timing_endpoint, blob)) {
+      return;
+    }
+  }
+  var xhr = new XMLHttpRequest();
+  xhr.open('POST', epr_timing_endpoint, true);
+  xhr.setRequestHeader('Content-Type', contentType);
+  xhr.send(body);
+}
+
+if (typeof window !== 'undefined' && window.addEventListener) {
+  window.addEventListener('pagehide', epr_timing_flush);
+  document.addEventListener('visibilitychange', function() {
+    if (document.visibilityState === 'hidden') {
+      epr_timing_flush();
+    }
+  });
+}
+
+/**
+ * Applies the commands of a partial response with jQuery.
+ */
+function epr_process_ajax_response_jquery(responseContent, action) {
+  var result = {
+    applied : 0,
+    expected : -1
+  };
+
+  var parseStart = epr_timing_start('parse');
   var responseObj = $($.parseHTML(responseContent));
+  epr_timing_end(action, 'parse', null, parseStart);
+  responseObj.children().each(function() {
+    var applyStart = epr_timing_start('apply');
+    var commandObj = $(this);
+    var commandName = this.nodeName.toLowerCase();
+    var selector = commandObj.attr('selector');
+    if (commandName === 'partial-replace') {
+      var version = this.getAttribute('version');
+      if (typeof selector !== typeof undefined && selector !== false) {
+        epr_drop_target_versions(epr_select_jquery(selector)).replaceWith(commandObj.html());
+        if (version !== null) {
+          epr_mark_version(epr_select_jquery(selector).get(0) || null, selector, version);
+        }
+      } else {
+        var versionKey = this.getAttribute('version-key');
+        commandObj.children().each(function() {
+          var newContentObj = $(this);
+          var elementId = newContentObj.attr('id');
+          var newContentOuterHTML = this.outerHTML;
+          epr_drop_target_versions($(document.getElementById(elementId))).replaceWith(
+              newContentOuterHTML);
+          if (versionKey === '#' + elementId) {
+            epr_mark_version(document.getElementById(elementId), versionKey, version);
+          }
+        });
+      }
+    } else if (commandName === 'partial-append') {
+      epr_drop_target_versions(epr_select_jquery(selector)).append(commandObj.html());
+    } else if (commandName === 'partial-prepend') {
+      epr_drop_target_versions(epr_select_jquery(selector)).prepend(commandObj.html());
+    } else if (commandName === 'partial-patch') {
+      epr_patch(this, epr_select_jquery(selector).get(), null);
+    } else if (commandName === 'partial-patch-list') {
+      epr_patch_list(this, epr_select_jquery(selector).get(), null);
+    } else if (commandName === 'partial-defer') {
+      var placeholder = $($.parseHTML(commandObj.html(), document, true));
+      epr_mark_slot(placeholder.filter('*').get(0) || null, this.getAttribute('slot'));
+      epr_drop_target_versions(epr_select_jquery(selector)).replaceWith(placeholder);
+    } else if (commandName === 'partial-fill') {
+      epr_drop_target_versions($(epr_slot_selector(this.getAttribute('slot')))).replaceWith(
+          commandObj.html());
+    } else {
+      if (commandName === 'partial-commands') {
+        result.expected = parseInt(commandObj.attr('count'), 10);
+      }
+      return;
+    }
+    result.applied++;
+    epr_timing_end(action, 'apply', epr_timing_selector(this), applyStart);
+  });
+  return result;
+}
+
+/**
+ * Selects elements with jQuery. Pure id selectors are resolved with document.getElementById.
+ */
+function epr_select_jquery(selector) {
+  if (epr_selector_fast_path) {
+    var idMatch = epr_id_selector_regexp.exec(selector);
+    if (idMatch !== null) {
+      return $(document.getElementById(idMatch[1]));
+    }
+  }
+  return $(selector);
+}
+
+/**
+ * Drops the versions of the jQuery targets and their ancestors before their content is changed.
+ *
+ * @return The targets.
+ */
+function epr_drop_target_versions(targets) {
+  targets.each(function() {
+    epr_drop_versions(this, null);
+  });
+  return targets;
+}
+
+/**
+ * Applies the commands of a partial response without jQuery. The response is parsed only once into
+ * a template element and the commands are applied in one pass. The already parsed nodes are moved
+ * into the document instead of serializing and parsing them again.
+ */
+function epr_process_ajax_response_native(responseContent, action) {
+  var parseStart = epr_timing_start('parse');
+  var template = document.createElement('template');
+  template.innerHTML = responseContent;
+  epr_timing_end(action, 'parse', null, parseStart);
 
-  responseObj.children('partial-replace').each(function() {
-    var replaceObj = $(this);
-    var selector = replaceObj.attr('selector');
-    if (typeof selector !== typeof undefined && selector !== false) {
-      $(selector).replaceWith(replaceObj.html());
+  var responseElement = template.content.firstElementChild;
+  while (responseElement !== null
+      && responseElement.nodeName.toLowerCase() !== 'partial-response') {
+    responseElement = responseElement.nextElementSibling;
+  }
+  var result = {
+    applied : 0,
+    expected : -1
+  };
+  if (responseElement === null) {
+    return result;
+  }
+
+  var selectorCache = epr_create_selector_cache();
+  var command = responseElement.firstElementChild;
+  while (command !== null) {
+    var applyStart = epr_timing_start('apply');
+    var selector = applyStart < 0 ? null : epr_timing_selector(command);
+    if (epr_apply_command(command, selectorCache)) {
+      result.applied++;
+      epr_timing_end(action, 'apply', selector, applyStart);
+    } else if (command.nodeName.toLowerCase() === 'partial-commands') {
+      result.expected = parseInt(command.getAttribute('count'), 10);
+    }
+    command = command.nextElementSibling;
+  }
+  return result;
+}
+
+/**
+ * The selector that the measurement of a command is recorded for: the selector attribute or the
+ * name of the command if it has none (e.g. replace by id or partial-fill). The slot of partial-fill
+ * is unique per response, so it is not used as selector. It is read before the command is
+ * applied, as the applied command is emptied.
+ */
+function epr_timing_selector(command) {
+  var selector = command.getAttribute('selector');
+  return selector !== null ? selector : command.nodeName.toLowerCase();
+}
+
+/**
+ * Applies one command to the document.
+ *
+ * @return true if the element was a command.
+ */
+function epr_apply_command(command, selectorCache) {
+  var commandName = command.nodeName.toLowerCase();
+  var selector = command.getAttribute('selector');
+  if (commandName === 'partial-replace') {
+    if (selector === null) {
+      epr_replace_by_id(command, selectorCache);
     } else {
-      $(this).children().each(function() {
-        var newContentObj = $(this);
-        var elementId = newContentObj.attr('id');
-        var newContentOuterHTML = this.outerHTML;
-        $('#' + elementId).replaceWith(newContentOuterHTML);
-      });
+      var version = command.getAttribute('version');
+      epr_apply_to_targets(selector, command, selectorCache, epr_replacer(selectorCache,
+          function(root) {
+            epr_mark_version(root, selector, version);
+          }));
+    }
+  } else if (commandName === 'partial-defer') {
+    var slot = command.getAttribute('slot');
+    epr_apply_to_targets(selector, command, selectorCache, epr_replacer(selectorCache,
+        function(root) {
+          epr_mark_slot(root, slot);
+        }));
+  } else if (commandName === 'partial-fill') {
+    epr_apply_to_targets(epr_slot_selector(command.getAttribute('slot')), command, selectorCache,
+        epr_replacer(selectorCache, null));
+  } else if (commandName === 'partial-append') {
+    epr_apply_to_targets(selector, command, selectorCache, function(target, fragment) {
+      target.appendChild(fragment);
+    });
+  } else if (commandName === 'partial-prepend') {
+    epr_apply_to_targets(selector, command, selectorCache, function(target, fragment) {
+      target.insertBefore(fragment, target.firstChild);
+    });
+  } else if (commandName === 'partial-patch') {
+    epr_patch(command, epr_to_array(selectorCache.select(selector)), selectorCache);
+  } else if (commandName === 'partial-patch-list') {
+    epr_patch_list(command, selectorCache.select(selector), selectorCache);
+  } else {
+    return false;
+  }
+  return true;
+}
+
+/**
+ * Applies the content of the command to every element matched by the selector. The last target
+ * gets the parsed nodes themselves, the other ones get clones.
+ */
+function epr_apply_to_targets(selector, command, selectorCache, insert) {
+  var targets = selectorCache.select(selector);
+  var lastIndex = targets.length - 1;
+  for (var i = 0; i <= lastIndex; i++) {
+    var fragment = epr_take_children(command, i < lastIndex);
+    var scripts = fragment.querySelectorAll('script');
+    var insertedNodes = selectorCache.isEmpty() ? null : epr_to_array(fragment.childNodes);
+    epr_drop_versions(targets[i], null);
+    insert(targets[i], fragment);
+    if (insertedNodes !== null) {
+      selectorCache.inserted(insertedNodes);
+    }
+    epr_activate_scripts(scripts);
+  }
+}
+
+/**
+ * Creates the insert function of epr_apply_to_targets that replaces the target with the fragment.
+ * The root element of the fragment is passed to the optional mark function before it is inserted.
+ */
+function epr_replacer(selectorCache, mark) {
+  return function(target, fragment) {
+    if (target.parentNode !== null) {
+      selectorCache.removed(target);
+      if (mark !== null) {
+        mark(fragment.firstElementChild);
+      }
+      target.parentNode.replaceChild(fragment, target);
+    }
+  };
+}
+
+/**
+ * Marks the placeholder of a deferred fragment, so the partial-fill command with the same slot
+ * replaces it when the fragment arrives later in the same or in a subsequent chunk.
+ */
+function epr_mark_slot(element, slot) {
+  if (element !== null) {
+    element.setAttribute('data-epr-slot', slot);
+  }
+}
+
+function epr_slot_selector(slot) {
+  return '[data-epr-slot="' + slot + '"]';
+}
+
+function epr_replace_by_id(command, selectorCache) {
+  var version = command.getAttribute('version');
+  var versionKey = command.getAttribute('version-key');
+  var elements = [];
+  var element = command.firstElementChild;
+  while (element !== null) {
+    elements.push(element);
+    element = element.nextElementSibling;
+  }
+  for (var i = 0; i < elements.length; i++) {
+    var newElement = elements[i];
+    var target = document.getElementById(newElement.id);
+    if (target !== null && target.parentNode !== null) {
+      var scripts = newElement.nodeName.toLowerCase() === 'script' ? [ newElement ]
+          : newElement.querySelectorAll('script');
+      selectorCache.removed(target);
+      epr_drop_versions(target, null);
+      if (versionKey === '#' + newElement.id) {
+        epr_mark_version(newElement, versionKey, version);
+      }
+      target.parentNode.replaceChild(newElement, target);
+      selectorCache.inserted([ newElement ]);
+      epr_activate_scripts(scripts);
+    }
+  }
+}
+
+/**
+ * Stores the version of a replaced fragment on its root element, so it is sent back to the server
+ * by epr_ajax_headers. If a later command changes the element or its content in another way, the
+ * version is dropped (see epr_drop_versions).
+ */
+function epr_mark_version(element, key, version) {
+  if (element !== null && version !== null) {
+    element.setAttribute('data-epr-version', version);
+    element.setAttribute('data-epr-version-key', key);
+  }
+}
+
+/**
+ * Drops the versions of the node and its ancestors up to the optional stop node (exclusive), as
+ * their fragments no longer match the content that the server rendered for those versions.
+ */
+function epr_drop_versions(node, stop) {
+  for (var current = node; current !== null && current !== stop; current = current.parentNode) {
+    if (current.nodeType === 1 && current.getAttribute('data-epr-version') !== null) {
+      current.removeAttribute('data-epr-version');
+      current.removeAttribute('data-epr-version-key');
+    }
+  }
+}
+
+/**
+ * Collects the versions of the fragments in the document as URI encoded key=version pairs, in the
+ * format that is read by FragmentVersions on the server side.
+ */
+function epr_versions_header() {
+  var elements = document.querySelectorAll('[data-epr-version]');
+  var pairs = [];
+  for (var i = 0; i < elements.length; i++) {
+    pairs.push(encodeURIComponent(elements[i].getAttribute('data-epr-version-key')) + '='
+        + encodeURIComponent(elements[i].getAttribute('data-epr-version')));
+  }
+  return pairs.join('&');
+}
+
+/**
+ * Creates the headers of a partial response request: x-partialresponse-ajax and the versions of
+ * the fragments that the document already holds. The properties of the optional headers parameter
+ * are copied to the result.
+ */
+function epr_ajax_headers(headers) {
+  var result = {
+    'x-partialresponse-ajax' : 'true'
+  };
+  for ( var name in headers) {
+    if (Object.prototype.hasOwnProperty.call(headers, name)) {
+      result[name] = headers[name];
+    }
+  }
+  var versions = epr_versions_header();
+  if (versions !== '') {
+    result['x-partialresponse-versions'] = versions;
+  }
+  return result;
+}
+
+/**
+ * Applies the operations of a partial-patch command to the targets that hold the base version of
+ * the fragment. The operations address the nodes by the indexes of the child nodes on the path
+ * from the target. If a target holds another version or an operation does not find its node, the
+ * version of the target is dropped, so the next request gets the whole fragment.
+ *
+ * @param selectorCache
+ *          The selector cache of the native processor or null.
+ */
+function epr_patch(command, targets, selectorCache) {
+  var selector = command.getAttribute('selector');
+  var versions = command.getAttribute('versions').split(' ');
+  var operations = epr_child_elements(command);
+  var lastIndex = targets.length - 1;
+  for (var i = 0; i <= lastIndex; i++) {
+    var target = targets[i];
+    epr_drop_versions(target.parentNode, null);
+    if (target.getAttribute('data-epr-version') === versions[0]
+        && epr_patch_nodes(target, operations, i < lastIndex, selectorCache)) {
+      epr_mark_version(target, selector, versions[1]);
+    } else {
+      epr_drop_versions(target, null);
+      epr_patch_mismatch(selector);
+    }
+  }
+}
+
+/**
+ * Called when a partial-patch command cannot be applied to a target. Can be overridden to reload
+ * the fragment.
+ */
+function epr_patch_mismatch(selector) {
+  if (typeof console !== 'undefined') {
+    console.error('Partial patch of ' + selector + ' does not match the document.');
+  }
+}
+
+/**
+ * Applies the operations to the nodes under the target.
+ *
+ * @return false if the node of an operation was not found.
+ */
+function epr_patch_nodes(target, operations, clone, selectorCache) {
+  for (var i = 0; i < operations.length; i++) {
+    var operation = operations[i];
+    var operationName = operation.nodeName.toLowerCase();
+    var path = operation.getAttribute('path');
+    var indexes = path === '' ? [] : path.split('.');
+    var node;
+    if (operationName === 'partial-insert-node' || operationName === 'partial-remove-nodes') {
+      node = epr_patch_node(target, indexes.slice(0, indexes.length - 1));
+      var index = parseInt(indexes[indexes.length - 1], 10);
+      if (node === null || index > node.childNodes.length) {
+        return false;
+      }
+      if (operationName === 'partial-insert-node') {
+        epr_patch_insert(node, node.childNodes[index] || null, operation, clone, selectorCache);
+      } else {
+        var count = parseInt(operation.getAttribute('count'), 10);
+        if (index + count > node.childNodes.length) {
+          return false;
+        }
+        for (var j = 0; j < count; j++) {
+          epr_removed(selectorCache, node.childNodes[index]);
+          node.removeChild(node.childNodes[index]);
+        }
+      }
+    } else {
+      node = epr_patch_node(target, indexes);
+      if (node === null) {
+        return false;
+      }
+      if (operationName === 'partial-text') {
+        if (node.nodeType !== 3) {
+          return false;
+        }
+        var text = '';
+        for (var child = operation.firstChild; child !== null; child = child.nextSibling) {
+          text += child.nodeValue;
+        }
+        node.nodeValue = text;
+      } else if (operationName === 'partial-replace-node') {
+        var parent = node.parentNode;
+        epr_patch_insert(parent, node, operation, clone, selectorCache);
+        epr_removed(selectorCache, node);
+        parent.removeChild(node);
+        node = parent;
+      } else if (node.nodeType !== 1) {
+        return false;
+      } else {
+        epr_removed(selectorCache, node);
+        if (operationName === 'partial-set-attribute') {
+          node.setAttribute(operation.getAttribute('name'), operation.getAttribute('value'));
+        } else {
+          node.removeAttribute(operation.getAttribute('name'));
+        }
+        epr_inserted(selectorCache, [ node ]);
+      }
+    }
+    epr_drop_versions(node, target);
+  }
+  return true;
+}
+
+/**
+ * Resolves the path of child node indexes from the root.
+ *
+ * @return The node or null if the document does not have the node.
+ */
+function epr_patch_node(root, indexes) {
+  var node = root;
+  for (var i = 0; i < indexes.length && node !== null; i++) {
+    node = node.childNodes[parseInt(indexes[i], 10)] || null;
+  }
+  return node;
+}
+
+function epr_patch_insert(parent, before, operation, clone, selectorCache) {
+  var nodes = epr_template_nodes(operation, clone);
+  var scripts = [];
+  for (var i = 0; i < nodes.length; i++) {
+    var node = nodes[i];
+    if (node.nodeType === 1) {
+      scripts = scripts.concat(node.nodeName.toLowerCase() === 'script' ? [ node ]
+          : epr_to_array(node.querySelectorAll('script')));
+    }
+    parent.insertBefore(node, before);
+  }
+  epr_inserted(selectorCache, nodes);
+  epr_activate_scripts(scripts);
+}
+
+/**
+ * Applies the keyed operations of a partial-patch-list command to the children of the containers.
+ * Only the affected children are inserted, moved, replaced or removed. Works with and without
+ * template element support, so it is used by both processors.
+ *
+ * @param selectorCache
+ *          The selector cache of the native processor or null.
+ */
+function epr_patch_list(command, containers, selectorCache) {
+  var keyAttribute = command.getAttribute('key');
+  var operations = epr_child_elements(command);
+  var lastIndex = containers.length - 1;
+  for (var i = 0; i <= lastIndex; i++) {
+    epr_drop_versions(containers[i], null);
+    epr_patch_children(containers[i], keyAttribute, operations, i < lastIndex, selectorCache);
+  }
+}
+
+function epr_patch_children(container, keyAttribute, operations, clone, selectorCache) {
+  var children = {};
+  var containerChildren = epr_child_elements(container);
+  for (var i = 0; i < containerChildren.length; i++) {
+    var child = containerChildren[i];
+    var childKey = child.getAttribute(keyAttribute);
+    if (childKey !== null) {
+      children['k' + childKey] = child;
+    }
+  }
+
+  function keyed(key) {
+    if (key === null) {
+      return null;
+    }
+    var element = children['k' + key];
+    return element === undefined ? null : element;
+  }
+
+  for (var j = 0; j < operations.length; j++) {
+    var operation = operations[j];
+    var operationName = operation.nodeName.toLowerCase();
+    var key = operation.getAttribute('key');
+    var existing = keyed(key);
+    if (operationName === 'partial-insert' || operationName === 'partial-update') {
+      var nodes = epr_template_nodes(operation, clone);
+      var newElement = null;
+      for (var n = 0; n < nodes.length && newElement === null; n++) {
+        if (nodes[n].nodeType === 1) {
+          newElement = nodes[n];
+        }
+      }
+      if (newElement === null) {
+        continue;
+      }
+      if (newElement.getAttribute(keyAttribute) === null) {
+        newElement.setAttribute(keyAttribute, key);
+      }
+      var scripts = newElement.getElementsByTagName('script');
+      if (operationName === 'partial-update') {
+        if (existing === null) {
+          continue;
+        }
+        epr_removed(selectorCache, existing);
+        container.replaceChild(newElement, existing);
+      } else {
+        container.insertBefore(newElement, keyed(operation.getAttribute('before')));
+      }
+      children['k' + key] = newElement;
+      if (selectorCache !== null) {
+        selectorCache.inserted([ newElement ]);
+      }
+      epr_activate_scripts(epr_to_array(scripts));
+    } else if (existing === null) {
+      continue;
+    } else if (operationName === 'partial-move') {
+      container.insertBefore(existing, keyed(operation.getAttribute('before')));
+    } else if (operationName === 'partial-remove') {
+      epr_removed(selectorCache, existing);
+      container.removeChild(existing);
+      delete children['k' + key];
+    }
+  }
+}
+
+function epr_removed(selectorCache, node) {
+  if (selectorCache !== null) {
+    selectorCache.removed(node);
+  }
+}
+
+function epr_inserted(selectorCache, nodes) {
+  if (selectorCache !== null) {
+    selectorCache.inserted(nodes);
+  }
+}
+
+/**
+ * The parsed nodes of the template element within a patch operation. If the browser does not
+ * support the template element, the children of the template element are returned.
+ */
+function epr_template_nodes(operation, clone) {
+  var template = epr_child_elements(operation)[0];
+  if (template === undefined) {
+    return [];
+  }
+  var source = 'content' in template ? template.content : template;
+  var nodes = epr_to_array(source.childNodes);
+  if (clone) {
+    for (var i = 0; i < nodes.length; i++) {
+      nodes[i] = nodes[i].cloneNode(true);
+    }
+  }
+  return nodes;
+}
+
+function epr_child_elements(element) {
+  var result = [];
+  var childNodes = element.childNodes;
+  for (var i = 0; i < childNodes.length; i++) {
+    if (childNodes[i].nodeType === 1) {
+      result.push(childNodes[i]);
+    }
+  }
+  return result;
+}
+
+/**
+ * Selects the elements with querySelectorAll. Selectors that are supported only by jQuery are
+ * resolved with jQuery if it is available.
+ */
+function epr_select(selector) {
+  try {
+    return document.querySelectorAll(selector);
+  } catch (e) {
+    if (typeof jQuery !== 'undefined') {
+      return jQuery(selector).get();
+    }
+    throw e;
+  }
+}
+
+/**
+ * Resolves pure id selectors (e.g. #main_div) with document.getElementById and caches the nodes of
+ * simple tag and class selectors (e.g. div.row) during the processing of one partial response.
+ * Set it to false to resolve every selector with querySelectorAll.
+ */
+var epr_selector_fast_path = true;
+
+var epr_id_selector_regexp = /^#([\w-]+)$/;
+
+var epr_cacheable_selector_regexp = /^(?:[a-zA-Z][\w-]*)?(?:\.[\w-]+)*$/;
+
+/**
+ * Creates a cache of resolved selectors for the processing of one partial response. Only selectors
+ * are cached whose matching depends on the element alone (tag and class selectors), so an entry
+ * has to be dropped only if a matched node or its ancestor is replaced or if a newly inserted node
+ * matches the selector. Id selectors are not cached as document.getElementById is already a
+ * constant time lookup.
+ */
+function epr_create_selector_cache() {
+  var entries = {};
+  var size = 0;
+
+  function select(selector) {
+    if (!epr_selector_fast_path) {
+      return epr_select(selector);
+    }
+    var idMatch = epr_id_selector_regexp.exec(selector);
+    if (idMatch !== null) {
+      var element = document.getElementById(idMatch[1]);
+      return element === null ? [] : [ element ];
+    }
+    if (selector === '' || !epr_cacheable_selector_regexp.test(selector)) {
+      return epr_select(selector);
+    }
+    var key = 's' + selector;
+    var nodes = entries[key];
+    if (nodes === undefined) {
+      nodes = epr_to_array(epr_select(selector));
+      entries[key] = nodes;
+      size++;
+    }
+    return nodes;
+  }
+
+  function drop(key) {
+    delete entries[key];
+    size--;
+  }
+
+  function removed(node) {
+    if (size === 0) {
+      return;
+    }
+    for ( var key in entries) {
+      if (entries.hasOwnProperty(key)) {
+        var nodes = entries[key];
+        for (var i = 0; i < nodes.length; i++) {
+          if (node === nodes[i] || node.contains(nodes[i])) {
+            drop(key);
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  function inserted(nodes) {
+    if (size === 0) {
+      return;
+    }
+    for ( var key in entries) {
+      if (entries.hasOwnProperty(key)) {
+        var selector = key.substring(1);
+        for (var i = 0; i < nodes.length; i++) {
+          var node = nodes[i];
+          if (node.nodeType === 1
+              && (epr_matches(node, selector) || node.querySelector(selector) !== null)) {
+            drop(key);
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  return {
+    select : select,
+    removed : removed,
+    inserted : inserted,
+    isEmpty : function() {
+      return size === 0;
+    }
+  };
+}
+
+function epr_matches(element, selector) {
+  var matches = element.matches || element.msMatchesSelector || element.webkitMatchesSelector;
+  return matches.call(element, selector);
+}
+
+function epr_to_array(nodeList) {
+  var result = [];
+  for (var i = 0; i < nodeList.length; i++) {
+    result.push(nodeList[i]);
+  }
+  return result;
+}
+
+/**
+ * Moves (or clones) the child nodes of the command into a document fragment.
+ */
+function epr_take_children(command, clone) {
+  var fragment = document.createDocumentFragment();
+  if (clone) {
+    for (var child = command.firstChild; child !== null; child = child.nextSibling) {
+      fragment.appendChild(child.cloneNode(true));
+    }
+  } else {
+    while (command.firstChild !== null) {
+      fragment.appendChild(command.firstChild);
+    }
+  }
+  return fragment;
+}
+
+/**
+ * Scripts that were parsed into a template are never executed. They are replaced with new script
+ * elements to behave in the same way as the jQuery based processor.
+ */
+function epr_activate_scripts(scripts) {
+  for (var i = 0; i < scripts.length; i++) {
+    var script = scripts[i];
+    if (script.parentNode === null) {
+      continue;
+    }
+    var newScript = document.createElement('script');
+    for (var j = 0; j < script.attributes.length; j++) {
+      newScript.setAttribute(script.attributes[j].name, script.attributes[j].value);
+    }
+    newScript.text = script.text;
+    script.parentNode.replaceChild(newScript, script);
+  }
+}
+
+/**
+ * Creates a processor that applies the commands of a partial response while it is downloaded. Each
+ * completed partial-* element is applied as soon as it arrives, so the server can flush a large
+ * partial response in several parts (see FlushPolicy). The wire format is the same as the one
+ * processed by epr_process_ajax_response.
+ *
+ * The returned object has a push(data, chunk) function. If chunk is false, data must be the whole
+ * response text received so far (e.g. xhr.responseText). If chunk is true, data is only the newly
+ * received part (e.g. a decoded chunk of a fetch stream).
+ *
+ * Deferred fragments (partial-defer) are shown as placeholders until their partial-fill command
+ * arrives, so slow fragments do not hold back the fast ones.
+ *
+ * @param action
+ *          The optional name of the action that the measurements are recorded for.
+ */
+function epr_create_stream_processor(action) {
+  var commandEndRegExp =
+      /<\/partial-(?:replace|append|prepend|patch|patch-list|defer|fill|commands)>/g;
+  var responseStart = '<partial-response>';
+  var responseEnd = '</partial-response>';
+  var text = '';
+  var offset = -1;
+  var applied = 0;
+
+  function push(data, chunk) {
+    text = chunk ? text + data : data;
+    if (offset < 0) {
+      var startIndex = text.indexOf(responseStart);
+      if (startIndex < 0) {
+        return;
+      }
+      offset = startIndex + responseStart.length;
+    }
+
+    var end = offset;
+    commandEndRegExp.lastIndex = offset;
+    while (commandEndRegExp.exec(text) !== null) {
+      end = commandEndRegExp.lastIndex;
+    }
+    if (end === offset) {
+      return;
     }
+
+    var commands = text.substring(offset, end);
+    if (chunk) {
+      text = text.substring(end);
+      offset = 0;
+    } else {
+      offset = end;
+    }
+    var result = epr_apply_partial_response(responseStart + commands + responseEnd, action);
+    applied += result.applied;
+    epr_verify_command_count(result.expected, applied);
+  }
+
+  return {
+    push : push
+  };
+}
+
+/**
+ * Same as $.ajax(settings), but the commands of the partial response are applied while the
+ * response is downloaded, based on the progress events of the XMLHttpRequest. The rest of the
+ * commands are applied when the request is done, so browsers without progress events work, too.
+ */
+function epr_ajax_streaming(settings) {
+  var processor = epr_create_stream_processor();
+  var xhrFields = $.extend({}, settings.xhrFields, {
+    onprogress : function(event) {
+      processor.push(event.target.responseText, false);
+    }
+  });
+  return $.ajax($.extend({}, settings, {
+    xhrFields : xhrFields
+  })).done(function(msg) {
+    processor.push(msg, false);
   });
+}
+
+/**
+ * The name of the request parameter that holds the actions of a batch.
+ */
+var epr_batch_parameter = 'action';
+
+/**
+ * The batches that are collected in the current tick of the event loop by URL.
+ */
+var epr_batches = {};
+
+/**
+ * Requests an action whose commands are sent back in a partial response. The actions that are
+ * requested for the same URL within the same tick of the event loop are sent in one request, as
+ * repeated epr_batch_parameter parameters, so the server can write the commands of every action
+ * into one partial response.
+ *
+ * @param url
+ *          The URL of the request or undefined to request the URL of the document.
+ * @param action
+ *          The value of the action parameter.
+ * @return A promise that is resolved when the partial response of the batch is applied.
+ */
+function epr_ajax_batch(url, action) {
+  var key = String(url);
+  var batch = epr_batches[key];
+  if (!batch) {
+    batch = {
+      actions : [],
+      deferred : $.Deferred()
+    };
+    epr_batches[key] = batch;
+    setTimeout(function() {
+      delete epr_batches[key];
+      epr_send_batch(url, batch);
+    }, 0);
+  }
+  batch.actions.push(action);
+  return batch.deferred.promise();
+}
 
-  responseObj.children('partial-append').each(function() {
-    var appendObj = $(this);
-    var selector = appendObj.attr('selector');
-    $(selector).append(appendObj.html());
+function epr_send_batch(url, batch) {
+  var data = {};
+  data[epr_batch_parameter] = batch.actions;
+  $.ajax({
+    url : url,
+    data : data,
+    traditional : true,
+    headers : epr_ajax_headers()
+  }).done(function(msg) {
+    epr_process_ajax_response(msg, batch.actions.join(','));
+    batch.deferred.resolve();
+  }).fail(function() {
+    batch.deferred.reject();
   });
+}
+
+/**
+ * Same as fetch(url, init), but the commands of the partial response are applied while the body
+ * is read via the streams API. The returned promise is resolved when the whole response is
+ * processed.
+ */
+function epr_fetch_streaming(url, init) {
+  return fetch(url, init).then(epr_process_text_stream);
+}
+
+/**
+ * Applies the commands of a fetch response in the HTML envelope while its body is read.
+ */
+function epr_process_text_stream(response) {
+  var processor = epr_create_stream_processor();
+  if (!response.body || typeof TextDecoder === 'undefined') {
+    return response.text().then(function(text) {
+      processor.push(text, false);
+    });
+  }
+  var reader = response.body.getReader();
+  var decoder = new TextDecoder('utf-8');
+  function read() {
+    return reader.read().then(function(result) {
+      if (result.done) {
+        processor.push(decoder.decode(), true);
+        return;
+      }
+      processor.push(decoder.decode(result.value, {
+        stream : true
+      }), true);
+      return read();
+    });
+  }
+  return read();
+}
+
+/**
+ * The media type of the binary format of the partial response (see
+ * PartialResponseConfiguration.binaryFormat on the server side).
+ */
+var epr_binary_content_type = 'application/x-partial-response';
+
+/**
+ * True if the browser can process the binary format. The commands of the binary format are applied
+ * by the native processor.
+ */
+var epr_binary_processing = epr_native_processing && typeof TextDecoder !== 'undefined'
+    && typeof Uint8Array !== 'undefined';
+
+/**
+ * Creates the command element of a frame of the binary format, so it is applied in the same way
+ * as the commands of the HTML envelope. Only the payload is parsed as HTML.
+ *
+ * @return The command element or null if the opcode is unknown.
+ */
+function epr_binary_command(opcode, selector, attribute, payload) {
+  var command;
+  if (opcode === 1) {
+    command = document.createElement('partial-replace');
+    command.setAttribute('selector', selector);
+    if (attribute !== '') {
+      command.setAttribute('version', attribute);
+    }
+  } else if (opcode === 2) {
+    command = document.createElement('partial-replace');
+  } else if (opcode === 3) {
+    command = document.createElement('partial-replace');
+    command.setAttribute('version-key', '#' + selector);
+    command.setAttribute('version', attribute);
+  } else if (opcode === 4) {
+    command = document.createElement('partial-append');
+    command.setAttribute('selector', selector);
+  } else if (opcode === 5) {
+    command = document.createElement('partial-prepend');
+    command.setAttribute('selector', selector);
+  } else if (opcode === 6) {
+    command = document.createElement('partial-patch-list');
+    command.setAttribute('selector', selector);
+    command.setAttribute('key', attribute);
+  } else if (opcode === 7) {
+    command = document.createElement('partial-defer');
+    command.setAttribute('selector', selector);
+    command.setAttribute('slot', attribute);
+  } else if (opcode === 8) {
+    command = document.createElement('partial-fill');
+    command.setAttribute('slot', selector);
+  } else if (opcode === 9) {
+    command = document.createElement('partial-patch');
+    command.setAttribute('selector', selector);
+    command.setAttribute('versions', attribute);
+  } else {
+    return null;
+  }
+  var template = document.createElement('template');
+  template.innerHTML = payload;
+  command.appendChild(template.content);
+  return command;
+}
 
-  responseObj.children('partial-prepend').each(function() {
-    var prependObj = $(this);
-    var selector = prependObj.attr('selector');
-    $(selector).prepend(prependObj.html());
+/**
+ * Creates a processor that applies the commands of a partial response in the binary format while
+ * it is downloaded. Every frame starts with its opcode and the lengths of its selector, attribute
+ * and payload, so the command boundaries are found without scanning the response and only the
+ * payloads are decoded and parsed.
+ *
+ * The returned object has a push(bytes) function that takes the newly received Uint8Array chunk
+ * (or the whole response at once) and returns the number of the commands applied so far. The
+ * optional action is the name of the action that the measurements are recorded for.
+ */
+function epr_create_binary_processor(action) {
+  var decoder = new TextDecoder('utf-8');
+  var buffer = new Uint8Array(0);
+  var position = 0;
+  var headerRead = false;
+  var applied = 0;
+  var expected = -1;
+
+  function readVarint() {
+    var value = 0;
+    var multiplier = 1;
+    while (position < buffer.length) {
+      var b = buffer[position++];
+      value += (b & 0x7f) * multiplier;
+      if (b < 0x80) {
+        return value;
+      }
+      multiplier *= 128;
+    }
+    return -1;
+  }
+
+  function readString() {
+    var length = readVarint();
+    if (length < 0 || position + length > buffer.length) {
+      return null;
+    }
+    var value = decoder.decode(buffer.subarray(position, position + length));
+    position += length;
+    return value;
+  }
+
+  function readHeader() {
+    if (buffer.length < 4) {
+      return false;
+    }
+    if (buffer[0] !== 0x45 || buffer[1] !== 0x50 || buffer[2] !== 0x52 || buffer[3] !== 1) {
+      throw new Error('The response is not a partial response in the binary format');
+    }
+    headerRead = true;
+    return true;
+  }
+
+  function push(bytes) {
+    if (buffer.length === 0) {
+      buffer = bytes;
+    } else {
+      var joined = new Uint8Array(buffer.length + bytes.length);
+      joined.set(buffer, 0);
+      joined.set(bytes, buffer.length);
+      buffer = joined;
+    }
+    var frameStart = 0;
+    if (!headerRead) {
+      if (!readHeader()) {
+        return applied;
+      }
+      frameStart = 4;
+    }
+    position = frameStart;
+    var selectorCache = epr_create_selector_cache();
+    while (position < buffer.length) {
+      var opcode = buffer[position++];
+      var selector = readString();
+      var attribute = (selector !== null) ? readString() : null;
+      var payload = (attribute !== null) ? readString() : null;
+      if (payload === null) {
+        break;
+      }
+      frameStart = position;
+      if (opcode === 0) {
+        if (attribute !== '') {
+          expected = parseInt(attribute, 10);
+        }
+      } else {
+        var applyStart = epr_timing_start('apply');
+        var command = epr_binary_command(opcode, selector, attribute, payload);
+        if (command !== null) {
+          var timingSelector = applyStart < 0 ? null : epr_timing_selector(command);
+          if (epr_apply_command(command, selectorCache)) {
+            applied++;
+            epr_timing_end(action, 'apply', timingSelector, applyStart);
+          }
+        }
+      }
+    }
+    buffer = buffer.subarray(frameStart);
+    epr_verify_command_count(expected, applied);
+    return applied;
+  }
+
+  return {
+    push : push
+  };
+}
+
+/**
+ * Applies the commands of a partial response in the binary format.
+ *
+ * @param responseContent
+ *          The ArrayBuffer of the response.
+ * @return The number of applied commands.
+ */
+function epr_process_binary_response(responseContent) {
+  return epr_create_binary_processor().push(new Uint8Array(responseContent));
+}
+
+/**
+ * Same as epr_fetch_streaming(url, init), but the server is asked to answer in the binary format
+ * (see PartialResponseConfiguration.binaryFormat) if the browser can process it. Responses in the
+ * HTML envelope are processed as well, so the server decides which format it sends.
+ */
+function epr_fetch_binary(url, init) {
+  if (!epr_binary_processing) {
+    return epr_fetch_streaming(url, init);
+  }
+  var binaryInit = {};
+  for ( var name in init) {
+    if (Object.prototype.hasOwnProperty.call(init, name)) {
+      binaryInit[name] = init[name];
+    }
+  }
+  binaryInit.headers = new Headers(init ? init.headers : undefined);
+  binaryInit.headers.set('Accept', epr_binary_content_type + ', text/html;q=0.9');
+  return fetch(url, binaryInit).then(function(response) {
+    var contentType = response.headers.get('Content-Type') || '';
+    if (contentType.indexOf(epr_binary_content_type) !== 0) {
+      return epr_process_text_stream(response);
+    }
+    var processor = epr_create_binary_processor();
+    if (!response.body) {
+      return response.arrayBuffer().then(function(responseContent) {
+        processor.push(new Uint8Array(responseContent));
+      });
+    }
+    var reader = response.body.getReader();
+    function read() {
+      return reader.read().then(function(result) {
+        if (!result.done) {
+          processor.push(result.value);
+          return read();
+        }
+      });
+    }
+    return read();
+  });
+}
+
+/**
+ * Subscribes to the partial responses that are pushed by PartialUpdateHub over Server-Sent Events
+ * and applies them as they arrive. The browser reconnects automatically if the connection is lost.
+ *
+ * @return The EventSource that can be closed to unsubscribe or null if the browser does not
+ *         support Server-Sent Events.
+ */
+function epr_subscribe(url) {
+  if (typeof EventSource === 'undefined') {
+    return null;
+  }
+  var source = new EventSource(url);
+  source.addEventListener('partial-response', function(event) {
+    epr_process_ajax_response(event.data);
   });
+  return source;
 }
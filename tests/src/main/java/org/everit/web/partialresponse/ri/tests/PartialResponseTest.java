@@ -15,10 +15,34 @@
  */
 package org.everit.web.partialresponse.ri.tests;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
 
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.NetworkConnector;
@@ -31,7 +55,14 @@ import org.everit.osgi.ecm.annotation.attribute.StringAttribute;
 import org.everit.osgi.ecm.annotation.attribute.StringAttributes;
 import org.everit.osgi.ecm.extender.ECMExtenderConstants;
 import org.everit.osgi.jetty.server.component.JettyServerConstants;
+import org.everit.web.partialresponse.ri.Histogram;
+import org.everit.web.partialresponse.ri.PartialResponseStatistics;
+import org.everit.web.partialresponse.ri.tests.servlet.AsyncIndexServlet;
+import org.everit.web.partialresponse.ri.tests.servlet.IndexServlet;
+import org.everit.web.partialresponse.ri.tests.servlet.PushServlet;
+import org.everit.web.partialresponse.ri.tests.servlet.TimingServlet;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 import com.gargoylesoftware.htmlunit.BrowserVersion;
@@ -113,12 +144,51 @@ public class PartialResponseTest {
 
   }
 
+  private static final int ASYNC_ROW_COUNT = 50000;
+
+  private static final int ASYNC_SMALL_ROW_COUNT = 10;
+
+  private static final int ASYNC_WAIT_MILLIS = 10000;
+
+  private static final String BINARY_CONTENT_TYPE = "application/x-partial-response";
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final int COMPRESSED_ROW_COUNT = 100;
+
+  /**
+   * Matches the start of the command objects in the JSON format. The quotes within the content are
+   * escaped, so the content cannot match.
+   */
+  private static final Pattern JSON_COMMAND = Pattern.compile(
+      "\\{\"op\":\"(\\w+)\"(?:,\"selector\":\"([^\"]*)\")?");
+
+  private static final String JSON_CONTENT_TYPE = "application/json";
+
   private static final int ONE_HUNDRED = 1000;
 
+  private static final int PAGE_FRAGMENT_COUNT = 7;
+
+  private static final int POLL_MILLIS = 10;
+
+  private static final int SLOW_READER_COUNT = 4;
+
+  private static final int VARINT_MASK = 0x7f;
+
   private static final String WINDOW_NAME = "testWindow";
 
+  private AsyncIndexServlet asyncIndexServlet;
+
+  private IndexServlet indexServlet;
+
   private int jettyPort;
 
+  private PushServlet pushServlet;
+
+  private PartialResponseStatistics statistics;
+
+  private TimingServlet timingServlet;
+
   private void assertPageTexts(final HtmlPage page, final ExpectedTextMsgDTO expectedTextMsgDTO) {
     Assert.assertNotNull(expectedTextMsgDTO);
 
@@ -136,6 +206,54 @@ public class PartialResponseTest {
     Assert.assertEquals("[ elementId: " + elementId + "]", expectedText, actualText);
   }
 
+  /**
+   * Requests two versioned fragments, then sends their versions back. If the client holds both
+   * versions, the response is <code>304 Not Modified</code> without a body. If it holds only one of
+   * them, only the other fragment is written.
+   *
+   * @param action
+   *          The action that writes the versioned fragments.
+   */
+  private void assertVersionedSkip(final String action) throws IOException {
+    HttpsURLConnection connection = openConnection("/?action=" + action);
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    String content = readFully(connection);
+    Map<String, String> versions = new HashMap<>();
+    Matcher matcher = Pattern.compile("selector='#(div_table_[12])' version='([0-9a-f]+)'")
+        .matcher(content);
+    while (matcher.find()) {
+      versions.put(matcher.group(1), matcher.group(2));
+    }
+    Assert.assertEquals(2, versions.size());
+
+    connection = openConnection("/?action=" + action);
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    connection.setRequestProperty("x-partialresponse-versions",
+        "%23div_table_1=" + versions.get("div_table_1")
+            + "&%23div_table_2=" + versions.get("div_table_2"));
+    Assert.assertEquals(HttpsURLConnection.HTTP_NOT_MODIFIED, connection.getResponseCode());
+    Assert.assertEquals(0, readBytes(connection).length);
+
+    connection = openConnection("/?action=" + action);
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    connection.setRequestProperty("x-partialresponse-versions",
+        "%23div_table_2=" + versions.get("div_table_2"));
+    Assert.assertEquals(HttpsURLConnection.HTTP_OK, connection.getResponseCode());
+    content = readFully(connection);
+    Assert.assertTrue(content.contains("selector='#div_table_1'"));
+    Assert.assertTrue(content.contains(">versioned_div_table_1_cell_msg<"));
+    Assert.assertFalse(content.contains("selector='#div_table_2'"));
+  }
+
+  /**
+   * Skips the test if the servlet answered that the container does not support asynchronous
+   * processing.
+   */
+  private void assumeAsyncSupported(final HttpsURLConnection connection) throws IOException {
+    Assume.assumeTrue("The container does not support asynchronous processing",
+        connection.getResponseCode() != HttpsURLConnection.HTTP_NOT_IMPLEMENTED);
+  }
+
   private <R> R cast(final Object object) {
     if (object == null) {
       return null;
@@ -156,6 +274,33 @@ public class PartialResponseTest {
         .newContent("default_new_content");
   }
 
+  /**
+   * Decompresses the body of a response.
+   *
+   * @param content
+   *          The body of the response.
+   * @param contentEncoding
+   *          The value of the Content-Encoding header or <code>null</code>.
+   * @return The decompressed content.
+   */
+  private String decode(final byte[] content, final String contentEncoding) throws IOException {
+    if (contentEncoding == null) {
+      return new String(content, StandardCharsets.UTF_8);
+    }
+    InputStream in = new ByteArrayInputStream(content);
+    try (InputStream decoded = "gzip".equals(contentEncoding) ? new GZIPInputStream(in)
+        : new InflaterInputStream(in)) {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int r = decoded.read(buffer);
+      while (r >= 0) {
+        bout.write(buffer, 0, r);
+        r = decoded.read(buffer);
+      }
+      return new String(bout.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
   private void doTest(final String linkElementId, final Consumer<HtmlPage> testAction)
       throws IOException {
     HtmlPage htmlPage = getPageAfterClick(BrowserVersion.INTERNET_EXPLORER_11, linkElementId);
@@ -196,6 +341,22 @@ public class PartialResponseTest {
     return element.getTextContent();
   }
 
+  private HttpsURLConnection openConnection(final String path) throws IOException {
+    URL url = new URL("https://localhost:" + jettyPort + path);
+    HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+    connection.setSSLSocketFactory(trustAllSocketFactory());
+    connection.setHostnameVerifier((hostname, session) -> true);
+    return connection;
+  }
+
+  private HttpsURLConnection openSlowReader() throws IOException {
+    HttpsURLConnection connection = openConnection("/async?rows=" + ASYNC_ROW_COUNT);
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    assumeAsyncSupported(connection);
+    Assert.assertEquals(HttpsURLConnection.HTTP_OK, connection.getResponseCode());
+    return connection;
+  }
+
   private WebWindow openWindow(final WebClient webClient, final String url,
       final String windowName) {
     try {
@@ -205,6 +366,83 @@ public class PartialResponseTest {
     }
   }
 
+  private byte[] readBytes(final HttpsURLConnection connection) throws IOException {
+    try (InputStream in = connection.getInputStream()) {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int r = in.read(buffer);
+      while (r >= 0) {
+        bout.write(buffer, 0, r);
+        r = in.read(buffer);
+      }
+      return bout.toByteArray();
+    }
+  }
+
+  private String readFully(final HttpsURLConnection connection) throws IOException {
+    return new String(readBytes(connection), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Sets the servlet that writes the partial responses in asynchronous mode.
+   *
+   * @param asyncIndexServlet
+   *          The servlet.
+   */
+  @ServiceRef(defaultValue = "(objectClass=org.everit.web.partialresponse.ri.tests.servlet."
+      + "AsyncIndexServlet)")
+  public void setAsyncIndexServlet(final AsyncIndexServlet asyncIndexServlet) {
+    this.asyncIndexServlet = asyncIndexServlet;
+  }
+
+  /**
+   * Sets the servlet that dispatches the AJAX actions.
+   *
+   * @param indexServlet
+   *          The servlet.
+   */
+  @ServiceRef(defaultValue = "(objectClass=org.everit.web.partialresponse.ri.tests.servlet."
+      + "IndexServlet)")
+  public void setIndexServlet(final IndexServlet indexServlet) {
+    this.indexServlet = indexServlet;
+  }
+
+  /**
+   * Sets the servlet that pushes the partial updates over Server-Sent Events.
+   *
+   * @param pushServlet
+   *          The servlet.
+   */
+  @ServiceRef(defaultValue = "(objectClass=org.everit.web.partialresponse.ri.tests.servlet."
+      + "PushServlet)")
+  public void setPushServlet(final PushServlet pushServlet) {
+    this.pushServlet = pushServlet;
+  }
+
+  /**
+   * Sets the statistics of the partial responses that are written by the index servlet.
+   *
+   * @param statistics
+   *          The statistics.
+   */
+  @ServiceRef(defaultValue = "(objectClass=org.everit.web.partialresponse.ri."
+      + "PartialResponseStatistics)")
+  public void setStatistics(final PartialResponseStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  /**
+   * Sets the servlet that collects the client-side timing of the index page.
+   *
+   * @param timingServlet
+   *          The servlet.
+   */
+  @ServiceRef(defaultValue = "(objectClass=org.everit.web.partialresponse.ri.tests.servlet."
+      + "TimingServlet)")
+  public void setTimingServlet(final TimingServlet timingServlet) {
+    this.timingServlet = timingServlet;
+  }
+
   private void setClientOptions(final WebClient webClient) {
     webClient.setAjaxController(new NicelyResynchronizingAjaxController());
     webClient.getOptions().setUseInsecureSSL(true);
@@ -245,6 +483,184 @@ public class PartialResponseTest {
     });
   }
 
+  /**
+   * Requests a small partial response of the {@link AsyncIndexServlet} and checks that it was
+   * written in asynchronous mode and that the completion of the builder was completed.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testAsyncCompletion() throws IOException, InterruptedException {
+    int completedCount = asyncIndexServlet.getCompletedResponseCount();
+    HttpsURLConnection connection = openConnection("/async?rows=" + ASYNC_SMALL_ROW_COUNT);
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    assumeAsyncSupported(connection);
+    String content = readFully(connection);
+    Assert.assertTrue(asyncIndexServlet.isAsyncStarted());
+    Assert.assertTrue(content.startsWith("<partial-response>"));
+    Assert.assertTrue(content.contains("async_row_" + (ASYNC_SMALL_ROW_COUNT - 1) + "<"));
+    Assert.assertTrue(content.endsWith("</partial-response>"));
+
+    long deadline = System.currentTimeMillis() + ASYNC_WAIT_MILLIS;
+    while (asyncIndexServlet.getCompletedResponseCount() == completedCount
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(POLL_MILLIS);
+    }
+    Assert.assertEquals(completedCount + 1, asyncIndexServlet.getCompletedResponseCount());
+  }
+
+  /**
+   * Opens connections that do not read the large partial responses of the
+   * {@link AsyncIndexServlet}. The threads of the server must leave the servlet while the
+   * responses are still pending.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testAsyncSlowReaders() throws IOException, InterruptedException {
+    List<HttpsURLConnection> connections = new ArrayList<>();
+    for (int i = 0; i < SLOW_READER_COUNT; i++) {
+      connections.add(openSlowReader());
+    }
+
+    long deadline = System.currentTimeMillis() + ASYNC_WAIT_MILLIS;
+    while (asyncIndexServlet.getActiveServiceCount() > 0
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(POLL_MILLIS);
+    }
+    Assert.assertEquals(0, asyncIndexServlet.getActiveServiceCount());
+    Assert.assertTrue(asyncIndexServlet.getPendingResponseCount() > 0);
+
+    for (HttpsURLConnection connection : connections) {
+      String content = readFully(connection);
+      Assert.assertTrue(content.startsWith("<partial-response>"));
+      Assert.assertTrue(content.contains("async_row_" + (ASYNC_ROW_COUNT - 1) + "<"));
+      Assert.assertTrue(content.endsWith("</partial-response>"));
+    }
+
+    deadline = System.currentTimeMillis() + ASYNC_WAIT_MILLIS;
+    while (asyncIndexServlet.getPendingResponseCount() > 0
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(POLL_MILLIS);
+    }
+    Assert.assertEquals(0, asyncIndexServlet.getPendingResponseCount());
+  }
+
+  /**
+   * Requests three actions in the same tick and checks that they are answered with one partial
+   * response.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testBatch() throws IOException {
+    doTest("batch", (htmlPage) -> {
+      ExpectedTextMsgDTO expectedTextMsgDTO = createDefaultExpectedTextMsgDTO()
+          .subDiv0Msg("prepend_default_sub_div_0_msg_append");
+      assertPageTexts(htmlPage, expectedTextMsgDTO);
+      List<String> itemTexts = new ArrayList<>();
+      for (DomElement item : htmlPage.getElementById("keyed_list").getChildElements()) {
+        itemTexts.add(item.getTextContent());
+      }
+      Assert.assertEquals(Arrays.asList("c", "a_updated", "d"), itemTexts);
+    });
+
+    HttpsURLConnection connection =
+        openConnection("/?action=append_1&action=prepend_1&action=patch_list");
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    String content = readFully(connection);
+    Assert.assertTrue(content.startsWith("<partial-response>"));
+    Assert.assertEquals(content.indexOf("<partial-response>"),
+        content.lastIndexOf("<partial-response>"));
+    Assert.assertTrue(content.contains("<partial-commands count='3'>"));
+  }
+
+  /**
+   * Requests the complex action in the binary format and checks the opcodes and the selectors of
+   * the frames.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testBinaryFormat() throws IOException {
+    HttpsURLConnection connection = openConnection("/?action=complex");
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    connection.setRequestProperty("Accept", BINARY_CONTENT_TYPE + ", text/html;q=0.9");
+    Assert.assertEquals(HttpsURLConnection.HTTP_OK, connection.getResponseCode());
+    Assert.assertTrue(connection.getContentType().startsWith(BINARY_CONTENT_TYPE));
+
+    byte[] body = readBytes(connection);
+    Assert.assertArrayEquals(new byte[] { 'E', 'P', 'R', 1 }, Arrays.copyOf(body, 4));
+    List<String> frames = new ArrayList<>();
+    int position = 4;
+    while (position < body.length) {
+      byte opcode = body[position++];
+      String[] fields = new String[3];
+      for (int i = 0; i < fields.length; i++) {
+        int length = 0;
+        int shift = 0;
+        int b;
+        do {
+          b = body[position++];
+          length |= (b & VARINT_MASK) << shift;
+          shift += 7;
+        } while ((b & ~VARINT_MASK) != 0);
+        fields[i] = new String(body, position, length, StandardCharsets.UTF_8);
+        position += length;
+      }
+      frames.add(opcode + fields[0]);
+    }
+    Assert.assertEquals(
+        Arrays.asList("2", "4#new_content", "5#new_content", "1#sub_div_1", "0"), frames);
+  }
+
+  /**
+   * Requests an action in <code>BUFFERED</code> output mode that is flushed after every command and
+   * waits after its first command. The first command must reach the client before the action is
+   * released to write the second one.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testBufferedFlush() throws IOException {
+    HttpsURLConnection connection = openConnection("/?action=buffered");
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    connection.setReadTimeout(ASYNC_WAIT_MILLIS);
+    Assert.assertEquals(HttpsURLConnection.HTTP_OK, connection.getResponseCode());
+    try (InputStream in = connection.getInputStream()) {
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      byte[] buffer = new byte[BUFFER_SIZE];
+      String content = "";
+      int r = 0;
+      while (!content.contains(">buffered_row_0<") && (r >= 0)) {
+        r = in.read(buffer);
+        if (r > 0) {
+          bout.write(buffer, 0, r);
+          content = new String(bout.toByteArray(), StandardCharsets.UTF_8);
+        }
+      }
+      Assert.assertTrue(content.startsWith("<partial-response>"));
+      Assert.assertTrue(content.contains(">buffered_row_0<"));
+      Assert.assertFalse(content.contains(">buffered_row_1<"));
+
+      indexServlet.releaseBufferedResponse();
+      r = in.read(buffer);
+      while (r >= 0) {
+        bout.write(buffer, 0, r);
+        r = in.read(buffer);
+      }
+      content = new String(bout.toByteArray(), StandardCharsets.UTF_8);
+      Assert.assertTrue(content.contains(">buffered_row_1<"));
+      Assert.assertTrue(content.endsWith("</partial-response>"));
+    }
+  }
+
+  @Test
+  @TestDuringDevelopment
+  public void testCoalesced() throws IOException {
+    doTest("coalesced", (htmlPage) -> {
+      ExpectedTextMsgDTO expectedTextMsgDTO = createDefaultExpectedTextMsgDTO()
+          .newContent("default_new_content_append_coalesced")
+          .divTable2CellMsg("coalesced_div_table_2_cell_msg");
+      assertPageTexts(htmlPage, expectedTextMsgDTO);
+    });
+  }
+
   @Test
   @TestDuringDevelopment
   public void testComplex() throws IOException {
@@ -260,6 +676,189 @@ public class PartialResponseTest {
     });
   }
 
+  /**
+   * Requests a partial response above the compression threshold with gzip, deflate and identity
+   * encoding and checks the headers and the decompressed content. A response below the threshold
+   * is sent uncompressed even if the client accepts gzip.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testCompression() throws IOException {
+    for (String encoding : new String[] { "gzip", "deflate", "identity" }) {
+      HttpsURLConnection connection = openConnection("/?action=compressed&rows="
+          + COMPRESSED_ROW_COUNT);
+      connection.setRequestProperty("x-partialresponse-ajax", "true");
+      connection.setRequestProperty("Accept-Encoding", encoding);
+      Assert.assertEquals(HttpsURLConnection.HTTP_OK, connection.getResponseCode());
+      Assert.assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+      String contentEncoding = connection.getHeaderField("Content-Encoding");
+      Assert.assertEquals("identity".equals(encoding) ? null : encoding, contentEncoding);
+      String content = decode(readBytes(connection), contentEncoding);
+      Assert.assertTrue(content.startsWith("<partial-response>"));
+      Assert.assertTrue(content.contains(">compressed_row_" + (COMPRESSED_ROW_COUNT - 1) + "<"));
+      Assert.assertTrue(content.endsWith("</partial-response>"));
+    }
+
+    HttpsURLConnection connection = openConnection("/?action=compressed&rows=1");
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    Assert.assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+    Assert.assertNull(connection.getHeaderField("Content-Encoding"));
+    Assert.assertTrue(readFully(connection).contains(">compressed_row_0<"));
+  }
+
+  /**
+   * Requests an action that renders rows concurrently, the first row being the slowest one, and
+   * appends a last row sequentially. The rows must be written in call order.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testConcurrentRendering() throws IOException {
+    HttpsURLConnection connection = openConnection("/?action=concurrent");
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    String content = readFully(connection);
+    int previousIndex = -1;
+    for (String row : new String[] { "concurrent_row_0", "concurrent_row_1", "concurrent_row_2",
+        "concurrent_row_3", "concurrent_end" }) {
+      int index = content.indexOf(">" + row + "<");
+      Assert.assertTrue(row, index > previousIndex);
+      previousIndex = index;
+    }
+    Assert.assertTrue(content.endsWith("</partial-response>"));
+  }
+
+  @Test
+  @TestDuringDevelopment
+  public void testDeferred() throws IOException {
+    doTest("deferred", (htmlPage) -> {
+      ExpectedTextMsgDTO expectedTextMsgDTO = createDefaultExpectedTextMsgDTO()
+          .subDiv0Msg("deferred_sub_div_0_msg")
+          .subDiv1Msg("deferred_sub_div_1_msg")
+          .divTable1CellMsg("deferred_div_table_1_cell_msg")
+          .divTable2CellMsg("deferred_div_table_2_cell_msg");
+      assertPageTexts(htmlPage, expectedTextMsgDTO);
+      Assert.assertFalse(htmlPage.asText().contains("loading_sub_div"));
+    });
+  }
+
+  /**
+   * Replaces #div_table_2 twice in the same session and checks that the second replace is written
+   * as a partial-patch command against the version that the client reports.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testDomMirror() throws IOException {
+    doTest("mirror", (htmlPage) -> {
+      ExpectedTextMsgDTO expectedTextMsgDTO = createDefaultExpectedTextMsgDTO()
+          .divTable2CellMsg("mirror_2_div_table_2_cell_msg");
+      assertPageTexts(htmlPage, expectedTextMsgDTO);
+    });
+
+    HttpsURLConnection connection = openConnection("/?action=mirror&step=1");
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    String content = readFully(connection);
+    String sessionCookie = connection.getHeaderField("Set-Cookie").split(";")[0];
+    Matcher matcher = Pattern.compile("version='([0-9a-f]+)'").matcher(content);
+    Assert.assertTrue(matcher.find());
+    String version = matcher.group(1);
+
+    connection = openConnection("/?action=mirror&step=2");
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    connection.setRequestProperty("Cookie", sessionCookie);
+    connection.setRequestProperty("x-partialresponse-versions", "%23div_table_2=" + version);
+    content = readFully(connection);
+    Assert.assertTrue(content.contains("<partial-patch selector='#div_table_2' versions='"
+        + version + " "));
+    Assert.assertTrue(content.contains(">mirror_2_div_table_2_cell_msg<"));
+    Assert.assertFalse(content.contains("<table"));
+  }
+
+  /**
+   * Requests every fragment of the page rendered once by walking the full page template and once
+   * from its own template in the fragment index. Both must give the same markup.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testFragmentIndex() throws IOException {
+    HttpsURLConnection connection = openConnection("/?action=fragment_index");
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    String content = readFully(connection);
+    Map<String, List<String>> renderedFragments = new HashMap<>();
+    Matcher matcher = Pattern.compile("<partial-replace selector='#([a-z_0-9]+)'>(.*?)"
+        + "</partial-replace>", Pattern.DOTALL).matcher(content);
+    while (matcher.find()) {
+      renderedFragments.computeIfAbsent(matcher.group(1), (key) -> new ArrayList<>())
+          .add(matcher.group(2));
+    }
+    Assert.assertEquals(PAGE_FRAGMENT_COUNT, renderedFragments.size());
+    for (Map.Entry<String, List<String>> entry : renderedFragments.entrySet()) {
+      List<String> renderings = entry.getValue();
+      Assert.assertEquals(entry.getKey(), 2, renderings.size());
+      Assert.assertTrue(entry.getKey(), renderings.get(0).contains("id=\"" + entry.getKey()));
+      Assert.assertEquals(entry.getKey(), renderings.get(0), renderings.get(1));
+    }
+  }
+
+  /**
+   * Requests the complex action in the JSON format and checks the operations and the selectors of
+   * the command objects.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testJsonFormat() throws IOException {
+    HttpsURLConnection connection = openConnection("/?action=complex");
+    connection.setRequestProperty("x-partialresponse-ajax", "true");
+    connection.setRequestProperty("Accept", JSON_CONTENT_TYPE);
+    Assert.assertEquals(HttpsURLConnection.HTTP_OK, connection.getResponseCode());
+    Assert.assertTrue(connection.getContentType().startsWith(JSON_CONTENT_TYPE));
+
+    String body = readFully(connection);
+    Assert.assertTrue(body.startsWith("[") && body.endsWith("]"));
+    List<String> commands = new ArrayList<>();
+    Matcher matcher = JSON_COMMAND.matcher(body);
+    while (matcher.find()) {
+      String selector = matcher.group(2);
+      commands.add(matcher.group(1) + ((selector != null) ? selector : ""));
+    }
+    Assert.assertEquals(Arrays.asList("replaceById", "append#new_content",
+        "prepend#new_content", "replace#sub_div_1"), commands);
+  }
+
+  /**
+   * Requests an action alone and in a batch and checks that both requests are recorded in the
+   * latency histogram of the action.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testLatencyHistogram() throws IOException {
+    Histogram histogram = indexServlet.getLatencyHistogram("prepend_1");
+    long count = histogram.getCount();
+
+    for (String query : new String[] { "action=prepend_1", "action=append_1&action=prepend_1" }) {
+      HttpsURLConnection connection = openConnection("/?" + query);
+      connection.setRequestProperty("x-partialresponse-ajax", "true");
+      Assert.assertTrue(readFully(connection).contains("<partial-prepend"));
+    }
+
+    Assert.assertEquals(count + 2, histogram.getCount());
+    Assert.assertTrue(histogram.getValueAtPercentile(50) > 0);
+    Assert.assertTrue(histogram.getValueAtPercentile(100) <= histogram.getMax());
+    Assert.assertNull(indexServlet.getLatencyHistogram("unknown"));
+  }
+
+  @Test
+  @TestDuringDevelopment
+  public void testPatchList() throws IOException {
+    doTest("patch_list", (htmlPage) -> {
+      assertPageTexts(htmlPage, createDefaultExpectedTextMsgDTO());
+      List<String> itemTexts = new ArrayList<>();
+      for (DomElement item : htmlPage.getElementById("keyed_list").getChildElements()) {
+        itemTexts.add(item.getTextContent());
+      }
+      Assert.assertEquals(Arrays.asList("c", "a_updated", "d"), itemTexts);
+    });
+  }
+
   @Test
   @TestDuringDevelopment
   public void testPrepend1() throws IOException {
@@ -282,6 +881,43 @@ public class PartialResponseTest {
     });
   }
 
+  /**
+   * Subscribes to the push servlet, checks the heartbeat and a published update, then disconnects.
+   * The subscription must be removed when an update cannot be written to the closed connection.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testPush() throws IOException, InterruptedException {
+    HttpsURLConnection connection = openConnection("/push");
+    connection.setReadTimeout(ASYNC_WAIT_MILLIS);
+    try {
+      assumeAsyncSupported(connection);
+      Assert.assertEquals(HttpsURLConnection.HTTP_OK, connection.getResponseCode());
+      Assert.assertTrue(connection.getContentType().startsWith("text/event-stream"));
+      try (BufferedReader reader = new BufferedReader(
+          new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+        Assert.assertEquals(": heartbeat", reader.readLine());
+        Assert.assertEquals("", reader.readLine());
+
+        Assert.assertEquals(1, pushServlet.publish("push_1"));
+        Assert.assertEquals("event: partial-response", reader.readLine());
+        Assert.assertEquals("data: <partial-response><partial-replace selector='#push_msg'>"
+            + "<p id=\"push_msg\">push_1</p></partial-replace></partial-response>",
+            reader.readLine());
+        Assert.assertEquals("", reader.readLine());
+      }
+    } finally {
+      connection.disconnect();
+    }
+
+    long deadline = System.currentTimeMillis() + ASYNC_WAIT_MILLIS;
+    while (pushServlet.getSubscriptionCount() > 0 && System.currentTimeMillis() < deadline) {
+      pushServlet.publish("push_2");
+      Thread.sleep(POLL_MILLIS);
+    }
+    Assert.assertEquals(0, pushServlet.getSubscriptionCount());
+  }
+
   @Test
   @TestDuringDevelopment
   public void testReplace1() throws IOException {
@@ -331,4 +967,116 @@ public class PartialResponseTest {
       assertPageTexts(htmlPage, expectedTextMsgDTO);
     });
   }
+
+  @Test
+  @TestDuringDevelopment
+  public void testStaticFragment() throws IOException {
+    String title = "\u00c1rv\u00edzt\u0171r\u0151 t\u00fck\u00f6rf\u00far\u00f3g\u00e9p";
+    doTest("static_fragment", (htmlPage) -> {
+      assertPageTexts(htmlPage, createDefaultExpectedTextMsgDTO());
+      assertText(htmlPage, "static_fragment_title", title);
+      Assert.assertTrue(getTextContentById(htmlPage, "static_fragment_23").endsWith(title
+          .toUpperCase(Locale.ROOT)));
+    });
+
+    for (int i = 0; i < 2; i++) {
+      HttpsURLConnection connection = openConnection("/?action=static_fragment");
+      connection.setRequestProperty("x-partialresponse-ajax", "true");
+      String content = readFully(connection);
+      Assert.assertTrue(content.contains(">" + title + "<"));
+      Assert.assertFalse(content.contains("\ufffd"));
+    }
+  }
+
+  @Test
+  @TestDuringDevelopment
+  public void testStatistics() throws IOException {
+    Assert.assertSame(indexServlet.getStatistics(), statistics);
+    long responseCount = statistics.getResponseCount();
+    long commandCount = statistics.getCommandCount();
+
+    for (String action : new String[] { "append_1", "replace_by_id_1" }) {
+      HttpsURLConnection connection = openConnection("/?action=" + action);
+      connection.setRequestProperty("x-partialresponse-ajax", "true");
+      readFully(connection);
+    }
+
+    Assert.assertEquals(responseCount + 2, statistics.getResponseCount());
+    Assert.assertTrue(statistics.getCommandCount() >= commandCount + 2);
+    Assert.assertTrue(statistics.getCommandSizes("#sub_div_0_msg").getMax() > 0);
+    Assert.assertTrue(statistics.getRenderTimes("replaceById").getCount() > 0);
+    Assert.assertTrue(statistics.getSelectors().contains("#sub_div_0_msg"));
+    Assert.assertTrue(statistics.getResponseNanosMax() > 0);
+  }
+
+  @Test
+  @TestDuringDevelopment
+  public void testTiming() throws IOException {
+    doTest("timing", (htmlPage) -> {
+      ExpectedTextMsgDTO expectedTextMsgDTO = createDefaultExpectedTextMsgDTO()
+          .subDiv0Msg("default_sub_div_0_msg_append");
+      assertPageTexts(htmlPage, expectedTextMsgDTO);
+    });
+
+    Histogram parseTimes = timingServlet.getParseTimes("append_1");
+    Assert.assertNotNull(parseTimes);
+    Assert.assertTrue(parseTimes.getCount() > 0);
+    Assert.assertNotNull(timingServlet.getApplyTimes("append_1", "#sub_div_0_msg"));
+    Assert.assertTrue(timingServlet.getSelectors("append_1").contains("#sub_div_0_msg"));
+
+    HttpsURLConnection connection = openConnection("/timing");
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.getOutputStream().write(
+        "action=append_1&measure=unknown&selector=&durations=1".getBytes(StandardCharsets.UTF_8));
+    Assert.assertEquals(HttpsURLConnection.HTTP_BAD_REQUEST, connection.getResponseCode());
+    Assert.assertEquals(parseTimes.getCount(),
+        timingServlet.getParseTimes("append_1").getCount());
+  }
+
+  /**
+   * Checks the skip of the versioned fragments in the default output mode.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testVersionedSkip() throws IOException {
+    assertVersionedSkip("versioned");
+  }
+
+  /**
+   * Checks the skip of the versioned fragments in <code>BUFFERED</code> output mode, where the
+   * pooled buffer of the discarded response must still be released.
+   */
+  @Test
+  @TestDuringDevelopment
+  public void testVersionedSkipBuffered() throws IOException {
+    assertVersionedSkip("versioned_buffered");
+  }
+
+  private SSLSocketFactory trustAllSocketFactory() {
+    TrustManager trustManager = new X509TrustManager() {
+
+      @Override
+      public void checkClientTrusted(final X509Certificate[] chain, final String authType) {
+      }
+
+      @Override
+      public void checkServerTrusted(final X509Certificate[] chain, final String authType) {
+      }
+
+      @Override
+      public X509Certificate[] getAcceptedIssuers() {
+        return new X509Certificate[0];
+      }
+
+    };
+    try {
+      SSLContext sslContext = SSLContext.getInstance("TLS");
+      sslContext.init(null, new TrustManager[] { trustManager }, null);
+      return sslContext.getSocketFactory();
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri.tests.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.everit.osgi.ecm.annotation.Component;
+import org.everit.osgi.ecm.annotation.Service;
+import org.everit.osgi.ecm.extender.ECMExtenderConstants;
+import org.everit.web.partialresponse.ri.OutputMode;
+import org.everit.web.partialresponse.ri.PartialResponseBuilder;
+import org.everit.web.partialresponse.ri.PartialResponseConfiguration;
+
+import aQute.bnd.annotation.headers.ProvideCapability;
+
+/**
+ * Servlet that writes a large partial response in {@link OutputMode#ASYNC} mode or answers
+ * <code>501 Not Implemented</code> if the container does not support asynchronous processing. It
+ * counts the threads that are inside the servlet and the responses that are not completely written
+ * yet, so a test can show that slow clients do not hold the threads of the server.
+ */
+@Component
+@ProvideCapability(ns = ECMExtenderConstants.CAPABILITY_NS_COMPONENT,
+    value = ECMExtenderConstants.CAPABILITY_ATTR_CLASS + "=${@class}")
+@Service(value = { Servlet.class, AsyncIndexServlet.class })
+public class AsyncIndexServlet implements Servlet {
+
+  private static final int DEFAULT_ROW_COUNT = 1000;
+
+  private final AtomicInteger activeServiceCount = new AtomicInteger();
+
+  private volatile boolean asyncStarted;
+
+  private final AtomicInteger completedResponseCount = new AtomicInteger();
+
+  private ServletConfig config;
+
+  private final AtomicInteger pendingResponseCount = new AtomicInteger();
+
+  @Override
+  public void destroy() {
+  }
+
+  private void doService(final HttpServletRequest request, final HttpServletResponse response)
+      throws IOException {
+    if (!request.isAsyncSupported()) {
+      response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED,
+          "Asynchronous processing is not supported");
+      return;
+    }
+    String rowsParameter = request.getParameter("rows");
+    int rowCount = (rowsParameter != null) ? Integer.parseInt(rowsParameter) : DEFAULT_ROW_COUNT;
+
+    PartialResponseConfiguration configuration = new PartialResponseConfiguration()
+        .outputMode(OutputMode.ASYNC);
+    PartialResponseBuilder prb = new PartialResponseBuilder(request, response, configuration);
+    asyncStarted = request.isAsyncStarted();
+    pendingResponseCount.incrementAndGet();
+    prb.completion().whenComplete((result, cause) -> {
+      if (cause == null) {
+        completedResponseCount.incrementAndGet();
+      }
+      pendingResponseCount.decrementAndGet();
+    });
+    try {
+      for (int i = 0; i < rowCount; i++) {
+        prb.append("#async_rows", "<div class=\"async_row\">async_row_" + i + "</div>");
+      }
+    } finally {
+      prb.close();
+    }
+  }
+
+  /**
+   * The number of threads that are executing the service method of the servlet.
+   *
+   * @return The number of threads.
+   */
+  public int getActiveServiceCount() {
+    return activeServiceCount.get();
+  }
+
+  /**
+   * The number of partial responses whose completion was completed without an error.
+   *
+   * @return The number of responses.
+   */
+  public int getCompletedResponseCount() {
+    return completedResponseCount.get();
+  }
+
+  /**
+   * The number of partial responses that are not completely written to the clients yet.
+   *
+   * @return The number of responses.
+   */
+  public int getPendingResponseCount() {
+    return pendingResponseCount.get();
+  }
+
+  @Override
+  public ServletConfig getServletConfig() {
+    return config;
+  }
+
+  @Override
+  public String getServletInfo() {
+    return "";
+  }
+
+  @Override
+  public void init(final ServletConfig pConfig) throws ServletException {
+    config = pConfig;
+  }
+
+  /**
+   * Whether the builder put the last request into asynchronous mode.
+   *
+   * @return <code>true</code> if the asynchronous processing of the last request was started.
+   */
+  public boolean isAsyncStarted() {
+    return asyncStarted;
+  }
+
+  @Override
+  public void service(final ServletRequest req, final ServletResponse res) throws ServletException,
+      IOException {
+    if (!((req instanceof HttpServletRequest) && (res instanceof HttpServletResponse))) {
+      throw new ServletException("non-HTTP request or response");
+    }
+
+    activeServiceCount.incrementAndGet();
+    try {
+      doService((HttpServletRequest) req, (HttpServletResponse) res);
+    } finally {
+      activeServiceCount.decrementAndGet();
+    }
+  }
+
+}
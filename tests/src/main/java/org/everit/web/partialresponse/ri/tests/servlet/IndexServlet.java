@@ -16,13 +16,12 @@
 package org.everit.web.partialresponse.ri.tests.servlet;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.UncheckedIOException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.function.Consumer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
@@ -32,18 +31,26 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.everit.expression.ParserConfiguration;
-import org.everit.expression.mvel.MvelExpressionCompiler;
 import org.everit.osgi.ecm.annotation.Activate;
 import org.everit.osgi.ecm.annotation.Component;
+import org.everit.osgi.ecm.annotation.Deactivate;
 import org.everit.osgi.ecm.annotation.Service;
 import org.everit.osgi.ecm.extender.ECMExtenderConstants;
 import org.everit.templating.CompiledTemplate;
-import org.everit.templating.TemplateCompiler;
-import org.everit.templating.html.HTMLTemplateCompiler;
-import org.everit.templating.text.TextTemplateCompiler;
+import org.everit.web.partialresponse.ri.FlushPolicy;
+import org.everit.web.partialresponse.ri.FragmentRenderCache;
+import org.everit.web.partialresponse.ri.FragmentVersions;
+import org.everit.web.partialresponse.ri.Histogram;
+import org.everit.web.partialresponse.ri.OutputMode;
 import org.everit.web.partialresponse.ri.PartialResponseBuilder;
+import org.everit.web.partialresponse.ri.PartialResponseConfiguration;
+import org.everit.web.partialresponse.ri.PartialResponseDispatcher;
+import org.everit.web.partialresponse.ri.PartialResponseStatistics;
+import org.everit.web.partialresponse.ri.ResponseCompression;
+import org.everit.web.partialresponse.ri.StaticFragmentCache;
+import org.everit.web.partialresponse.ri.TemplateFragmentIndex;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.wiring.BundleWiring;
 
 import aQute.bnd.annotation.headers.ProvideCapability;
@@ -57,50 +64,96 @@ import aQute.bnd.annotation.headers.ProvideCapability;
 @Service(value = { Servlet.class, IndexServlet.class })
 public class IndexServlet implements Servlet {
 
+  private static final long BUFFERED_RELEASE_WAIT_MILLIS = 10000;
+
+  private static final String COALESCED_STRING = "coalesced";
+
+  private static final int CONCURRENT_ROW_COUNT = 4;
+
   private static final String DEFAULT_STRING = "default";
 
-  private static final String UPDATE_STRING = "update_";
+  private static final String DEFERRED_STRING = "deferred";
+
+  private static final int DOM_MIRROR_MAX_BYTES = 64 * 1024;
+
+  private static final int FRAGMENT_CACHE_MAX_BYTES = 1024 * 1024;
 
-  private static final String VAR_DIV_TABLE_1_CELL_MSG = "div_table_1_cell_msg";
+  private static final int FRAGMENT_CACHE_MAX_ENTRIES = 256;
 
-  private static final String VAR_DIV_TABLE_2_CELL_MSG = "div_table_2_cell_msg";
+  private static final int FRAGMENT_CACHE_TTL_MINUTES = 10;
 
-  private static final String VAR_NEW_CONTENT = "new_content";
+  private static final String MIRROR_STRING = "mirror";
 
-  private static final String VAR_SAMPLE_MSG = "sample_msg";
+  private static final String[] PAGE_FRAGMENT_IDS = { "full_content", "main_div", "sub_div_0",
+      "sub_div_1", "div_table_1", "sub_div_2", "div_table_2" };
 
-  private static final String VAR_SUB_DIV_0_MSG = "sub_div_0_msg";
+  private static final String SELECTOR_BENCHMARK_PATH = "/selector_benchmark";
 
-  private static final String VAR_SUB_DIV_1_MSG = "sub_div_1_msg";
+  private static final long SLOW_BACKEND_MILLIS = 200;
 
-  private static final String VAR_SUB_DIV_2_MSG = "sub_div_2_msg";
+  private static final int STATIC_FRAGMENT_CACHE_MAX_BYTES = 16 * 1024 * 1024;
 
-  private Map<String, Consumer<HttpServletResponse>> ajaxActions = new HashMap<>();
+  private static final int STATIC_FRAGMENT_CACHE_MAX_ENTRIES = 64;
+
+  private static final String UPDATE_STRING = "update_";
+
+  private static final String VERSIONED_STRING = "versioned";
+
+  private final Semaphore bufferedReleases = new Semaphore(0);
 
   private ClassLoader classLoader;
 
+  private final ResponseCompression compression = new ResponseCompression();
+
   private ServletConfig config;
 
+  private PartialResponseDispatcher dispatcher;
+
+  private final FragmentRenderCache fragmentCache = new FragmentRenderCache(
+      FRAGMENT_CACHE_MAX_ENTRIES, FRAGMENT_CACHE_MAX_BYTES, FRAGMENT_CACHE_TTL_MINUTES,
+      TimeUnit.MINUTES);
+
+  private TemplateFragmentIndex<CompiledTemplate> pageFragments;
+
   private CompiledTemplate pageTemplate;
 
+  private CompiledTemplate selectorBenchmarkTemplate;
+
+  private final PartialResponseStatistics statistics = new PartialResponseStatistics();
+
+  private final StaticFragmentCache staticFragments = new StaticFragmentCache(
+      STATIC_FRAGMENT_CACHE_MAX_ENTRIES, STATIC_FRAGMENT_CACHE_MAX_BYTES);
+
+  private ServiceRegistration<PartialResponseStatistics> statisticsRegistration;
+
   /**
-   * Compiles the layout template and sets the classLoader member variable.
+   * Compiles the layout template and its fragments, sets the classLoader member variable and
+   * registers the statistics of the partial responses as an OSGi service.
    */
   @Activate
   public void activate(final BundleContext bundleContext) {
     classLoader = bundleContext.getBundle().adapt(BundleWiring.class).getClassLoader();
-    pageTemplate = compileTemplate("META-INF/webcontent/" + getPageId() + ".html");
+    String pageSource = IndexTemplates.readResource(classLoader,
+        "META-INF/webcontent/" + getPageId() + ".html");
+    pageTemplate = compileSource(pageSource);
+    pageFragments = new TemplateFragmentIndex<>(pageSource, this::compileSource);
+    selectorBenchmarkTemplate = compileTemplate("META-INF/webcontent/selector_benchmark.html");
+    dispatcher = new PartialResponseDispatcher(PartialResponseDispatcher.DEFAULT_PARAMETER_NAME,
+        configuration().commandCount(true));
     putAjaxActions();
+    statisticsRegistration = bundleContext.registerService(PartialResponseStatistics.class,
+        statistics, null);
   }
 
-  private void appendVars(final String prefix, final Map<String, Object> vars) {
-    vars.put(VAR_SUB_DIV_0_MSG, prefix + "_sub_div_0_msg");
-    vars.put(VAR_SUB_DIV_1_MSG, prefix + "_sub_div_1_msg");
-    vars.put(VAR_DIV_TABLE_1_CELL_MSG, prefix + "_div_table_1_cell_msg");
-    vars.put(VAR_DIV_TABLE_2_CELL_MSG, prefix + "_div_table_2_cell_msg");
-    vars.put(VAR_SUB_DIV_2_MSG, prefix + "_sub_div_2_msg");
-    vars.put(VAR_SAMPLE_MSG, prefix + "_sample_msg");
-    vars.put(VAR_NEW_CONTENT, prefix + "_new_content");
+  /**
+   * Compiles the source of a template.
+   *
+   * @param template
+   *          The source of the template.
+   * @return The compiled template or <code>null</code> if the source is <code>null</code>.
+   */
+  private CompiledTemplate compileSource(final String template) {
+    return IndexTemplates.compileSource(template, classLoader);
   }
 
   /**
@@ -108,175 +161,235 @@ public class IndexServlet implements Servlet {
    *
    * @param templateName
    *          The url of the template resource.
-   * @param classLoader
-   *          The classLoader that is used to find the template resource.
    * @return The compiled template.
    */
   private CompiledTemplate compileTemplate(final String templateName) {
-    MvelExpressionCompiler mvelExpressionCompiler = new MvelExpressionCompiler();
-
-    Map<String, TemplateCompiler> inlineCompilers = new HashMap<>();
-    inlineCompilers.put("text", new TextTemplateCompiler(mvelExpressionCompiler));
-
-    HTMLTemplateCompiler htmlTemplateCompiler = new HTMLTemplateCompiler(mvelExpressionCompiler,
-        inlineCompilers);
-    ParserConfiguration parserConfiguration = new ParserConfiguration(classLoader);
+    return compileSource(IndexTemplates.readResource(classLoader, templateName));
+  }
 
-    String template = readResourceContent(templateName);
+  private PartialResponseConfiguration configuration() {
+    return new PartialResponseConfiguration().metrics(statistics);
+  }
 
-    if (template == null) {
-      return null;
+  /**
+   * Unregisters the statistics service.
+   */
+  @Deactivate
+  public void deactivate() {
+    if (statisticsRegistration != null) {
+      statisticsRegistration.unregister();
+      statisticsRegistration = null;
     }
-
-    CompiledTemplate result = htmlTemplateCompiler.compile(template, parserConfiguration);
-    return result;
   }
 
   @Override
   public void destroy() {
   }
 
-  private void doAjax(final HttpServletRequest req, final HttpServletResponse resp)
-      throws ServletException, IOException {
-    String action = req.getParameter("action");
-    if (action == null) {
-      return;
-    }
-    Consumer<HttpServletResponse> actionConsumer = ajaxActions.get(action);
-    if (actionConsumer != null) {
-      actionConsumer.accept(resp);
-    }
+  private Map<String, Object> createVars(final String prefix) {
+    Map<String, Object> vars = new HashMap<>();
+    IndexTemplates.appendVars(prefix, vars);
+    return vars;
   }
 
-  private void doAppend1(final HttpServletResponse resp) {
-    try (PartialResponseBuilder prb = new PartialResponseBuilder(resp)) {
-      prb.append("#sub_div_0_msg", "_append");
-    }
+  private void doAppend1(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    prb.append("#sub_div_0_msg", "_append");
   }
 
-  private void doAppend2(final HttpServletResponse resp) {
-    try (PartialResponseBuilder prb = new PartialResponseBuilder(resp)) {
-      prb.append("#new_content", "_append");
+  private void doAppend2(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    prb.append("#new_content", "_append");
 
-      prb.append("#main_div", "<div><div id=\"append_new_content\">append_new_content</div>"
-          + "<div id=\"after_append\"></div></div>");
+    prb.append("#main_div", "<div><div id=\"append_new_content\">append_new_content</div>"
+        + "<div id=\"after_append\"></div></div>");
 
-      prb.append("#after_append", "after_append");
+    prb.append("#after_append", "after_append");
+  }
+
+  private void doBuffered(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    prb.append("#new_content", "<div class=\"buffered_row\">buffered_row_0</div>");
+    try {
+      bufferedReleases.tryAcquire(BUFFERED_RELEASE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+    prb.append("#new_content", "<div class=\"buffered_row\">buffered_row_1</div>");
   }
 
-  private void doComplex(final HttpServletResponse resp) {
-    try (PartialResponseBuilder prb = new PartialResponseBuilder(resp)) {
-      Map<String, Object> vars = new HashMap<>();
-      appendVars("replace_by_id", vars);
+  private void doCoalesced(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    Map<String, Object> staleVars = createVars(UPDATE_STRING + "_DIV_TABLE_2");
+    prb.replace("#div_table_2",
+        writer -> pageFragments.get("div_table_2").render(writer, staleVars));
+
+    prb.append("#new_content", "_append");
 
-      prb.replaceById(writer -> pageTemplate.render(writer, vars, "main_div"));
+    prb.append("#new_content", "_coalesced");
 
-      prb.append("#new_content", "_append");
+    Map<String, Object> vars = createVars(COALESCED_STRING);
+    prb.replace("#div_table_2", writer -> pageFragments.get("div_table_2").render(writer, vars));
+  }
+
+  private void doComplex(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    Map<String, Object> vars = new HashMap<>();
+    IndexTemplates.appendVars("replace_by_id", vars);
 
-      prb.prepend("#new_content", "prepend_");
+    prb.replaceById(writer -> pageFragments.get("main_div").render(writer, vars));
 
-      appendVars(UPDATE_STRING + "_SUB_DIV_1", vars);
-      prb.replace("#sub_div_1", writer -> pageTemplate.render(writer, vars, "sub_div_1"));
+    prb.append("#new_content", "_append");
+
+    prb.prepend("#new_content", "prepend_");
+
+    IndexTemplates.appendVars(UPDATE_STRING + "_SUB_DIV_1", vars);
+    prb.replace("#sub_div_1", writer -> pageFragments.get("sub_div_1").render(writer, vars));
+  }
+
+  private void doCompressed(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    String rowsParameter = req.getParameter("rows");
+    int rowCount = (rowsParameter != null) ? Integer.parseInt(rowsParameter) : 1;
+    for (int i = 0; i < rowCount; i++) {
+      prb.append("#new_content", "<div class=\"compressed_row\">compressed_row_" + i + "</div>");
     }
   }
 
-  private void doPrepend1(final HttpServletResponse resp) {
-    try (PartialResponseBuilder prb = new PartialResponseBuilder(resp)) {
-      prb.prepend("#sub_div_0_msg", "prepend_");
+  private void doConcurrent(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    for (int i = 0; i < CONCURRENT_ROW_COUNT; i++) {
+      String row = "<div class=\"concurrent_row\">concurrent_row_" + i + "</div>";
+      long delay = (CONCURRENT_ROW_COUNT - i) * SLOW_BACKEND_MILLIS / CONCURRENT_ROW_COUNT;
+      prb.appendConcurrently("#new_content", writer -> {
+        waitForSlowBackend(delay);
+        writer.write(row);
+      });
     }
+    prb.append("#new_content", "<div class=\"concurrent_row\">concurrent_end</div>");
   }
 
-  private void doPrepend2(final HttpServletResponse resp) {
-    try (PartialResponseBuilder prb = new PartialResponseBuilder(resp)) {
-      prb.prepend("#new_content", "prepend_");
+  private void doDeferred(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    Map<String, Object> vars = createVars(DEFERRED_STRING);
 
-      prb.prepend("#main_div", "<div><div id=\"prepend_new_content\">prepend_new_content</div>"
-          + "<div id=\"after_prepend\"></div></div>");
+    prb.defer("#sub_div_0", "<div class=\"border\">loading_sub_div_0</div>", writer -> {
+      waitForSlowBackend(SLOW_BACKEND_MILLIS);
+      pageFragments.get("sub_div_0").render(writer, vars);
+    });
 
-      prb.prepend("#after_prepend", "after_prepend");
-    }
+    prb.defer("#sub_div_1", "<div class=\"border\">loading_sub_div_1</div>", writer -> {
+      waitForSlowBackend(SLOW_BACKEND_MILLIS / 2);
+      pageFragments.get("sub_div_1").render(writer, vars);
+    });
+
+    prb.replace("#div_table_2", writer -> pageFragments.get("div_table_2").render(writer, vars));
   }
 
-  private void doReplace1(final HttpServletResponse resp) {
-    try (PartialResponseBuilder prb = new PartialResponseBuilder(resp)) {
-      Map<String, Object> vars = new HashMap<>();
-      appendVars("replace", vars);
-      prb.replace("#div_table_2", writer -> pageTemplate.render(writer, vars, "div_table_2"));
+  private void doFragmentIndex(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    Map<String, Object> vars = createVars(DEFAULT_STRING);
+    for (String fragmentId : PAGE_FRAGMENT_IDS) {
+      prb.replace("#" + fragmentId, writer -> pageTemplate.render(writer, vars, fragmentId));
+      prb.replace("#" + fragmentId, writer -> pageFragments.get(fragmentId).render(writer, vars));
     }
   }
 
-  private void doReplace2(final HttpServletResponse resp) {
-    try (PartialResponseBuilder prb = new PartialResponseBuilder(resp)) {
-      prb.replace("#new_content",
-          "<div id=\"new_content\">replace_new_content_with_hard_code_html</div>");
-
-      Map<String, Object> vars = new HashMap<>();
-      appendVars("replace", vars);
+  private void doMirror(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    int step = "2".equals(req.getParameter("step")) ? 2 : 1;
+    Map<String, Object> vars = createVars(MIRROR_STRING + "_" + step);
+    prb.replace("#div_table_2", writer -> pageFragments.get("div_table_2").render(writer, vars));
+  }
 
-      prb.replace("#main_div", writer -> pageTemplate.render(writer, vars, "main_div"));
+  private void doPatchList(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    prb.patchList("#keyed_list", "data-key", patch -> patch
+        .remove("b")
+        .update("a", "<li id=\"keyed_item_a\">a_updated</li>")
+        .insert("d", "c", "<li id=\"keyed_item_d\">d</li>")
+        .move("c", "a"));
+  }
 
-      appendVars(UPDATE_STRING + "_DIV_TABLE_2", vars);
-      prb.replace("#div_table_2", writer -> pageTemplate.render(writer, vars, "div_table_2"));
+  private void doPrepend1(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    prb.prepend("#sub_div_0_msg", "prepend_");
+  }
 
-      appendVars(UPDATE_STRING + "_DIV_TABLE_1", vars);
-      prb.replace("#div_table_1", writer -> pageTemplate.render(writer, vars, "div_table_1"));
+  private void doPrepend2(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    prb.prepend("#new_content", "prepend_");
 
-      appendVars(UPDATE_STRING + "_SUB_DIV_0", vars);
-      prb.replace("#sub_div_0", writer -> pageTemplate.render(writer, vars, "sub_div_0"));
+    prb.prepend("#main_div", "<div><div id=\"prepend_new_content\">prepend_new_content</div>"
+        + "<div id=\"after_prepend\"></div></div>");
 
-      appendVars(UPDATE_STRING + "_SUB_DIV_1", vars);
-      prb.replace("div:nth-child(3)",
-          writer -> pageTemplate.render(writer, vars, "sub_div_1"));
+    prb.prepend("#after_prepend", "after_prepend");
+  }
 
-    }
+  private void doReplace1(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    Map<String, Object> vars = new HashMap<>();
+    IndexTemplates.appendVars("replace", vars);
+    byte[] content = fragmentCache.get("div_table_2", "replace",
+        writer -> pageFragments.get("div_table_2").render(writer, vars));
+    prb.replace("#div_table_2", FragmentVersions.hash(content), content);
   }
 
-  private void doReplaceById1(final HttpServletResponse resp) {
-    try (PartialResponseBuilder prb = new PartialResponseBuilder(resp)) {
-      Map<String, Object> vars = new HashMap<>();
-      appendVars("replace_by_id", vars);
-      prb.replaceById(writer -> pageTemplate.render(writer, vars, "div_table_2"));
-    }
+  private void doReplace2(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    prb.replace("#new_content",
+        "<div id=\"new_content\">replace_new_content_with_hard_code_html</div>");
+
+    Map<String, Object> mainDivVars = createVars("replace");
+    prb.replaceConcurrently("#main_div",
+        writer -> pageFragments.get("main_div").render(writer, mainDivVars));
+
+    Map<String, Object> divTable2Vars = createVars(UPDATE_STRING + "_DIV_TABLE_2");
+    prb.replaceConcurrently("#div_table_2",
+        writer -> pageFragments.get("div_table_2").render(writer, divTable2Vars));
+
+    Map<String, Object> divTable1Vars = createVars(UPDATE_STRING + "_DIV_TABLE_1");
+    prb.replaceConcurrently("#div_table_1",
+        writer -> pageFragments.get("div_table_1").render(writer, divTable1Vars));
+
+    Map<String, Object> subDiv0Vars = createVars(UPDATE_STRING + "_SUB_DIV_0");
+    prb.replaceConcurrently("#sub_div_0",
+        writer -> pageFragments.get("sub_div_0").render(writer, subDiv0Vars));
+
+    Map<String, Object> subDiv1Vars = createVars(UPDATE_STRING + "_SUB_DIV_1");
+    prb.replaceConcurrently("div:nth-child(3)",
+        writer -> pageFragments.get("sub_div_1").render(writer, subDiv1Vars));
+
   }
 
-  private void doReplaceById2(final HttpServletResponse resp) {
-    try (PartialResponseBuilder prb = new PartialResponseBuilder(resp)) {
-      prb.replaceById(
-          "<div id=\"new_content\">replace_by_id_new_content_with_hard_code_html</div>");
+  private void doReplaceById1(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    Map<String, Object> vars = new HashMap<>();
+    IndexTemplates.appendVars("replace_by_id", vars);
+    prb.replaceById(writer -> pageFragments.get("div_table_2").render(writer, vars));
+  }
 
-      Map<String, Object> vars = new HashMap<>();
-      appendVars("replace_by_id", vars);
+  private void doReplaceById2(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    prb.replaceById(
+        "<div id=\"new_content\">replace_by_id_new_content_with_hard_code_html</div>");
 
-      prb.replaceById(writer -> pageTemplate.render(writer, vars, "main_div"));
+    Map<String, Object> mainDivVars = createVars("replace_by_id");
+    prb.replaceByIdConcurrently(
+        writer -> pageFragments.get("main_div").render(writer, mainDivVars));
 
-      appendVars(UPDATE_STRING + "_DIV_TABLE_2", vars);
-      prb.replaceById(writer -> pageTemplate.render(writer, vars, "div_table_2"));
+    Map<String, Object> divTable2Vars = createVars(UPDATE_STRING + "_DIV_TABLE_2");
+    prb.replaceByIdConcurrently(
+        writer -> pageFragments.get("div_table_2").render(writer, divTable2Vars));
 
-      appendVars(UPDATE_STRING + "_DIV_TABLE_1", vars);
-      prb.replaceById(writer -> pageTemplate.render(writer, vars, "div_table_1"));
+    Map<String, Object> divTable1Vars = createVars(UPDATE_STRING + "_DIV_TABLE_1");
+    prb.replaceByIdConcurrently(
+        writer -> pageFragments.get("div_table_1").render(writer, divTable1Vars));
 
-      appendVars(UPDATE_STRING + "_SUB_DIV_0", vars);
-      prb.replaceById(writer -> pageTemplate.render(writer, vars, "sub_div_0"));
+    Map<String, Object> subDiv0Vars = createVars(UPDATE_STRING + "_SUB_DIV_0");
+    prb.replaceByIdConcurrently(
+        writer -> pageFragments.get("sub_div_0").render(writer, subDiv0Vars));
 
-      appendVars(UPDATE_STRING + "_SUB_DIV_1", vars);
-      prb.replaceById(writer -> pageTemplate.render(writer, vars, "sub_div_1"));
+    Map<String, Object> subDiv1Vars = createVars(UPDATE_STRING + "_SUB_DIV_1");
+    prb.replaceByIdConcurrently(
+        writer -> pageFragments.get("sub_div_1").render(writer, subDiv1Vars));
 
-    }
   }
 
-  private void doResetToDefault(final HttpServletResponse resp) {
-    try (PartialResponseBuilder prb = new PartialResponseBuilder(resp)) {
-      Map<String, Object> vars = new HashMap<>();
-      appendVars(DEFAULT_STRING, vars);
-      prb.replaceById(writer -> pageTemplate.render(writer, vars, "full_content"));
-    }
+  private void doResetToDefault(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    Map<String, Object> vars = new HashMap<>();
+    IndexTemplates.appendVars(DEFAULT_STRING, vars);
+    prb.replaceById(fragmentCache.get("full_content", DEFAULT_STRING,
+        writer -> pageFragments.get("full_content").render(writer, vars)));
   }
 
   private void doService(final HttpServletRequest request, final HttpServletResponse response)
       throws ServletException, IOException {
     if (isAjaxRequest(request)) {
-      doAjax(request, response);
+      dispatcher.dispatch(request, response);
       return;
     }
 
@@ -284,9 +397,38 @@ public class IndexServlet implements Servlet {
     response.setContentType("text/html");
     Map<String, Object> vars = new HashMap<>();
     vars.put("resources", new WebResourceURIMap(request.getServletContext()));
-    appendVars(DEFAULT_STRING, vars);
+    IndexTemplates.appendVars(DEFAULT_STRING, vars);
+
+    CompiledTemplate template = pageTemplate;
+    if (SELECTOR_BENCHMARK_PATH.equals(request.getServletPath())) {
+      template = selectorBenchmarkTemplate;
+    }
+    template.render(response.getWriter(), vars, null);
+  }
+
+  private void doStaticFragment(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    URL resource = classLoader.getResource("META-INF/webcontent/static_fragment.html");
+    prb.append("#main_div", staticFragments.get(resource));
+  }
 
-    pageTemplate.render(response.getWriter(), vars, null);
+  private void doVersioned(final HttpServletRequest req, final PartialResponseBuilder prb) {
+    Map<String, Object> vars = createVars(VERSIONED_STRING);
+    for (String fragmentId : new String[] { "div_table_1", "div_table_2" }) {
+      byte[] content = fragmentCache.get(fragmentId, VERSIONED_STRING,
+          writer -> pageFragments.get(fragmentId).render(writer, vars));
+      prb.replace("#" + fragmentId, FragmentVersions.hash(content), content);
+    }
+  }
+
+  /**
+   * The latencies of an AJAX action.
+   *
+   * @param action
+   *          The name of the action.
+   * @return The histogram or <code>null</code> if there is no such action.
+   */
+  public Histogram getLatencyHistogram(final String action) {
+    return dispatcher.getLatencyHistogram(action);
   }
 
   private String getPageId() {
@@ -303,6 +445,15 @@ public class IndexServlet implements Servlet {
     return "";
   }
 
+  /**
+   * The statistics of the partial responses that are written by the servlet.
+   *
+   * @return The statistics.
+   */
+  public PartialResponseStatistics getStatistics() {
+    return statistics;
+  }
+
   @Override
   public void init(final ServletConfig pConfig) throws ServletException {
     config = pConfig;
@@ -314,47 +465,49 @@ public class IndexServlet implements Servlet {
   }
 
   private void putAjaxActions() {
-    ajaxActions.put("reset_to_default", this::doResetToDefault);
-    ajaxActions.put("replace_by_id_1", this::doReplaceById1);
-    ajaxActions.put("replace_1", this::doReplace1);
-    ajaxActions.put("append_1", this::doAppend1);
-    ajaxActions.put("prepend_1", this::doPrepend1);
-    ajaxActions.put("replace_by_id_2", this::doReplaceById2);
-    ajaxActions.put("replace_2", this::doReplace2);
-    ajaxActions.put("append_2", this::doAppend2);
-    ajaxActions.put("prepend_2", this::doPrepend2);
-    ajaxActions.put("complex", this::doComplex);
+    dispatcher.addHandler("reset_to_default", configuration(), this::doResetToDefault);
+    dispatcher.addHandler("replace_by_id_1", configuration(), this::doReplaceById1);
+    dispatcher.addHandler("replace_1", configuration(), this::doReplace1);
+    dispatcher.addHandler("append_1", configuration(), this::doAppend1);
+    dispatcher.addHandler("prepend_1", configuration(), this::doPrepend1);
+    dispatcher.addHandler("replace_by_id_2", configuration()
+        .flushPolicy(FlushPolicy.everyCommands(1)), this::doReplaceById2);
+    dispatcher.addHandler("replace_2", configuration(), this::doReplace2);
+    dispatcher.addHandler("append_2", configuration()
+        .commandCount(true), this::doAppend2);
+    dispatcher.addHandler("prepend_2", configuration()
+        .outputMode(OutputMode.BUFFERED), this::doPrepend2);
+    dispatcher.addHandler("complex", configuration()
+        .outputMode(OutputMode.OUTPUT_STREAM)
+        .compression(compression)
+        .binaryFormat(true)
+        .jsonFormat(true), this::doComplex);
+    dispatcher.addHandler("patch_list", configuration(), this::doPatchList);
+    dispatcher.addHandler("deferred", configuration(), this::doDeferred);
+    dispatcher.addHandler("coalesced", configuration()
+        .coalesce(true), this::doCoalesced);
+    dispatcher.addHandler("static_fragment", configuration(), this::doStaticFragment);
+    dispatcher.addHandler("mirror", configuration()
+        .domMirror(DOM_MIRROR_MAX_BYTES), this::doMirror);
+    dispatcher.addHandler("versioned", configuration(), this::doVersioned);
+    dispatcher.addHandler("versioned_buffered", configuration()
+        .outputMode(OutputMode.BUFFERED), this::doVersioned);
+    dispatcher.addHandler("compressed", configuration()
+        .outputMode(OutputMode.OUTPUT_STREAM)
+        .compression(compression), this::doCompressed);
+    dispatcher.addHandler("buffered", configuration()
+        .outputMode(OutputMode.BUFFERED)
+        .flushPolicy(FlushPolicy.everyCommands(1)), this::doBuffered);
+    dispatcher.addHandler("concurrent", configuration(), this::doConcurrent);
+    dispatcher.addHandler("fragment_index", configuration(), this::doFragmentIndex);
   }
 
   /**
-   * Reads the content of a resource into a String with UTF8 character encoding.
-   *
-   * @param resource
-   *          The name of the resource.
-   * @param classLoader
-   *          The ClassLoader that sees the resource.
-   * @return The content of the file.
+   * Lets the buffered action write its second command. Until then the action waits after its first
+   * command, so a test can check that the first command was flushed to the client.
    */
-  private String readResourceContent(final String resource) {
-    URL resourceURL = classLoader.getResource(resource);
-
-    if (resourceURL == null) {
-      return null;
-    }
-
-    try (InputStream is = resourceURL.openStream()) {
-      final int bufferSize = 1024;
-      byte[] buffer = new byte[bufferSize];
-      int r = is.read(buffer);
-      StringBuilder sb = new StringBuilder();
-      while (r >= 0) {
-        sb.append(new String(buffer, 0, r, StandardCharsets.UTF_8));
-        r = is.read(buffer);
-      }
-      return sb.toString();
-    } catch (IOException e) {
-      throw new UncheckedIOException(e);
-    }
+  public void releaseBufferedResponse() {
+    bufferedReleases.release();
   }
 
   @Override
@@ -373,4 +526,12 @@ public class IndexServlet implements Servlet {
 
     doService(request, response);
   }
+
+  private void waitForSlowBackend(final long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri.tests.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.everit.expression.ParserConfiguration;
+import org.everit.expression.mvel.MvelExpressionCompiler;
+import org.everit.templating.CompiledTemplate;
+import org.everit.templating.TemplateCompiler;
+import org.everit.templating.html.HTMLTemplateCompiler;
+import org.everit.templating.text.TextTemplateCompiler;
+
+/**
+ * Reads and compiles the templates of the index page and creates their variables. Used by
+ * {@link IndexServlet} and by the benchmarks, so both work with the same page.
+ */
+public final class IndexTemplates {
+
+  /**
+   * The resource of the index page template.
+   */
+  public static final String PAGE_RESOURCE = "META-INF/webcontent/index.html";
+
+  private static final String VAR_DIV_TABLE_1_CELL_MSG = "div_table_1_cell_msg";
+
+  private static final String VAR_DIV_TABLE_2_CELL_MSG = "div_table_2_cell_msg";
+
+  private static final String VAR_NEW_CONTENT = "new_content";
+
+  private static final String VAR_SAMPLE_MSG = "sample_msg";
+
+  private static final String VAR_SUB_DIV_0_MSG = "sub_div_0_msg";
+
+  private static final String VAR_SUB_DIV_1_MSG = "sub_div_1_msg";
+
+  private static final String VAR_SUB_DIV_2_MSG = "sub_div_2_msg";
+
+  /**
+   * Creates the variables of the index template with the given message prefix.
+   *
+   * @param prefix
+   *          The prefix of the messages.
+   * @param vars
+   *          The map where the variables are put.
+   */
+  public static void appendVars(final String prefix, final Map<String, Object> vars) {
+    vars.put(VAR_SUB_DIV_0_MSG, prefix + "_sub_div_0_msg");
+    vars.put(VAR_SUB_DIV_1_MSG, prefix + "_sub_div_1_msg");
+    vars.put(VAR_DIV_TABLE_1_CELL_MSG, prefix + "_div_table_1_cell_msg");
+    vars.put(VAR_DIV_TABLE_2_CELL_MSG, prefix + "_div_table_2_cell_msg");
+    vars.put(VAR_SUB_DIV_2_MSG, prefix + "_sub_div_2_msg");
+    vars.put(VAR_SAMPLE_MSG, prefix + "_sample_msg");
+    vars.put(VAR_NEW_CONTENT, prefix + "_new_content");
+  }
+
+  /**
+   * Compiles the source of a template.
+   *
+   * @param template
+   *          The source of the template.
+   * @param classLoader
+   *          The class loader that resolves the classes of the expressions.
+   * @return The compiled template or <code>null</code> if the source is <code>null</code>.
+   */
+  public static CompiledTemplate compileSource(final String template,
+      final ClassLoader classLoader) {
+    if (template == null) {
+      return null;
+    }
+
+    MvelExpressionCompiler mvelExpressionCompiler = new MvelExpressionCompiler();
+
+    Map<String, TemplateCompiler> inlineCompilers = new HashMap<>();
+    inlineCompilers.put("text", new TextTemplateCompiler(mvelExpressionCompiler));
+
+    HTMLTemplateCompiler htmlTemplateCompiler = new HTMLTemplateCompiler(mvelExpressionCompiler,
+        inlineCompilers);
+    ParserConfiguration parserConfiguration = new ParserConfiguration(classLoader);
+
+    return htmlTemplateCompiler.compile(template, parserConfiguration);
+  }
+
+  /**
+   * Reads the content of a resource into a String with UTF8 character encoding.
+   *
+   * @param classLoader
+   *          The class loader that finds the resource.
+   * @param resource
+   *          The name of the resource.
+   * @return The content of the resource or <code>null</code> if the resource does not exist.
+   */
+  public static String readResource(final ClassLoader classLoader, final String resource) {
+    URL resourceURL = classLoader.getResource(resource);
+
+    if (resourceURL == null) {
+      return null;
+    }
+
+    try (InputStream is = resourceURL.openStream()) {
+      final int bufferSize = 1024;
+      byte[] buffer = new byte[bufferSize];
+      int r = is.read(buffer);
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      while (r >= 0) {
+        content.write(buffer, 0, r);
+        r = is.read(buffer);
+      }
+      // Decoded at once, as a chunk may end inside a multi-byte character.
+      return new String(content.toByteArray(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private IndexTemplates() {
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri.tests.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.everit.osgi.ecm.annotation.Component;
+import org.everit.osgi.ecm.annotation.Service;
+import org.everit.osgi.ecm.extender.ECMExtenderConstants;
+import org.everit.web.partialresponse.ri.PartialUpdateHub;
+
+import aQute.bnd.annotation.headers.ProvideCapability;
+
+/**
+ * Servlet that subscribes the clients to the partial updates of the index page over Server-Sent
+ * Events. The updates are published by server code with {@link #publish(String)} instead of being
+ * polled by the clients.
+ */
+@Component
+@ProvideCapability(ns = ECMExtenderConstants.CAPABILITY_NS_COMPONENT,
+    value = ECMExtenderConstants.CAPABILITY_ATTR_CLASS + "=${@class}")
+@Service(value = { Servlet.class, PushServlet.class })
+public class PushServlet implements Servlet {
+
+  private static final String MESSAGE_SELECTOR = "#push_msg";
+
+  private static final String TOPIC = "index";
+
+  private ServletConfig config;
+
+  private final PartialUpdateHub hub = new PartialUpdateHub();
+
+  @Override
+  public void destroy() {
+    hub.close();
+  }
+
+  /**
+   * The number of clients that are subscribed to the updates.
+   *
+   * @return The number of clients.
+   */
+  public int getSubscriptionCount() {
+    return hub.getSubscriptionCount(TOPIC);
+  }
+
+  @Override
+  public ServletConfig getServletConfig() {
+    return config;
+  }
+
+  @Override
+  public String getServletInfo() {
+    return "";
+  }
+
+  @Override
+  public void init(final ServletConfig pConfig) throws ServletException {
+    config = pConfig;
+  }
+
+  /**
+   * Replaces the push_msg element on every subscribed page. Messages that are not sent to a client
+   * yet are superseded by the newer ones.
+   *
+   * @param message
+   *          The new text of the element.
+   * @return The number of clients the update was queued for.
+   */
+  public int publish(final String message) {
+    return hub.publish(TOPIC, MESSAGE_SELECTOR, prb -> prb.replace(MESSAGE_SELECTOR,
+        "<p id=\"push_msg\">" + message + "</p>"));
+  }
+
+  @Override
+  public void service(final ServletRequest req, final ServletResponse res) throws ServletException,
+      IOException {
+    if (!((req instanceof HttpServletRequest) && (res instanceof HttpServletResponse))) {
+      throw new ServletException("non-HTTP request or response");
+    }
+
+    HttpServletRequest request = (HttpServletRequest) req;
+    HttpServletResponse response = (HttpServletResponse) res;
+    if (!request.isAsyncSupported()) {
+      response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED,
+          "Asynchronous processing is not supported");
+      return;
+    }
+    hub.subscribe(TOPIC, request, response);
+  }
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.web.partialresponse.ri.tests.servlet;
+
+import javax.servlet.Servlet;
+
+import org.everit.osgi.ecm.annotation.Component;
+import org.everit.osgi.ecm.annotation.Service;
+import org.everit.osgi.ecm.extender.ECMExtenderConstants;
+import org.everit.web.partialresponse.ri.ClientTimingServlet;
+
+import aQute.bnd.annotation.headers.ProvideCapability;
+
+/**
+ * Servlet that collects the measurements that the index page sends about applying the partial
+ * responses.
+ */
+@Component
+@ProvideCapability(ns = ECMExtenderConstants.CAPABILITY_NS_COMPONENT,
+    value = ECMExtenderConstants.CAPABILITY_ATTR_CLASS + "=${@class}")
+@Service(value = { Servlet.class, TimingServlet.class })
+public class TimingServlet extends ClientTimingServlet {
+
+  private static final long serialVersionUID = 1L;
+
+}